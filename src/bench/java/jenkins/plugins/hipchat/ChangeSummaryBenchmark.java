@@ -0,0 +1,60 @@
+package jenkins.plugins.hipchat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The change-set part of <code>ActiveNotifier.getChanges</code> on synthetic change sets: ten files per
+ * commit, spread over a few dozen top-level directories and authors.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ChangeSummaryBenchmark {
+
+   private static final int FILES_PER_ENTRY = 10;
+
+   @Param({ "10", "1000", "100000" })
+   public int files;
+
+   private String[] authors;
+   private List<List<String>> paths;
+
+   @Setup
+   public void setUp() {
+      int entries = Math.max(1, files / FILES_PER_ENTRY);
+      authors = new String[entries];
+      paths = new ArrayList<List<String>>(entries);
+      int file = 0;
+      for(int i = 0; i < entries; i++) {
+         authors[i] = "developer" + (i % 50);
+         List<String> entryPaths = new ArrayList<String>(FILES_PER_ENTRY);
+         for(int j = 0; j < FILES_PER_ENTRY && file < files; j++, file++) {
+            entryPaths.add("module" + (file % 37) + "/src/main/java/org/example/File" + file + ".java");
+         }
+         paths.add(entryPaths);
+      }
+   }
+
+   @Benchmark
+   public ChangeSummary summarise() {
+      ChangeSummary summary = new ChangeSummary(ChangeSummary.DEFAULT_FILE_CAP, ChangeSummary.DEFAULT_TOP_AUTHORS,
+            ChangeSummary.DEFAULT_TOP_DIRECTORIES);
+      for(int i = 0; i < authors.length; i++) {
+         summary.add(authors[i], paths.get(i));
+      }
+      summary.getTopAuthors();
+      summary.getTopDirectories();
+      return summary;
+   }
+}
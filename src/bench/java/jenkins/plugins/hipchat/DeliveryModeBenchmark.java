@@ -0,0 +1,131 @@
+package jenkins.plugins.hipchat;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A burst of <code>sends</code> messages through a {@link DeliveryQueue} against an in-process
+ * {@link FakeHipChatServer} that answers after <code>latencyMillis</code>, with up to <code>concurrency</code>
+ * sends in flight: on that many platform threads, or on virtual threads bounded by a semaphore. The score
+ * is the time until the whole burst is delivered; <code>peakPlatformThreads</code> and the <code>-prof gc</code>
+ * figures show what each mode costs in threads and memory. Virtual threads need a Java 21 JVM; on older
+ * ones the VIRTUAL runs fall back to the platform pool (and log so).
+ * <p>
+ * Messages for one room are sent in order on that room's lane, so the burst is spread round-robin over
+ * <code>concurrency</code> rooms picked to land on different lanes; otherwise one lane would send it all.
+ * <p>
+ * Run with: <code>mvn -Pbenchmark test-compile exec:exec -Djmh.args="DeliveryMode -prof gc"</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class DeliveryModeBenchmark {
+
+   private static final Logger pluginLogger = Logger.getLogger("jenkins.plugins.hipchat");
+   private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+   @Param({ "PLATFORM", "VIRTUAL" })
+   public DeliveryMode mode;
+
+   @Param({ "200", "2000" })
+   public int concurrency;
+
+   @Param({ "5000" })
+   public int sends;
+
+   @Param({ "20" })
+   public long latencyMillis;
+
+   private FakeHipChatServer server;
+   private DeliveryQueue queue;
+   private QueuedHipChatService[] services;
+
+   /**
+    * The most platform threads alive at once during each iteration, including the fake server's own
+    * (which are the same for both modes).
+    */
+   @State(Scope.Thread)
+   @AuxCounters(AuxCounters.Type.EVENTS)
+   public static class Resources {
+      public long peakPlatformThreads;
+
+      @Setup(org.openjdk.jmh.annotations.Level.Iteration)
+      public void reset() {
+         threads.resetPeakThreadCount();
+         peakPlatformThreads = 0;
+      }
+   }
+
+   @Setup
+   public void setUp() throws Exception {
+      pluginLogger.setLevel(Level.SEVERE);
+      RateLimiter.configure(Integer.MAX_VALUE, 1, 1);
+      CircuitBreaker.configure(Integer.MAX_VALUE, 100, 1);
+      HipChatHttpClient.configure(concurrency, concurrency, HipChatHttpClient.DEFAULT_CONNECT_TIMEOUT_MILLIS,
+            HipChatHttpClient.DEFAULT_READ_TIMEOUT_MILLIS);
+      server = new FakeHipChatServer();
+      server.setLatency(latencyMillis, 0);
+      queue = new DeliveryQueue(sends, concurrency, OverflowPolicy.BLOCK, TimeUnit.MINUTES.toMillis(1), mode);
+      if(queue.getMode() != mode) {
+         Logger.getLogger(DeliveryModeBenchmark.class.getName()).warning("Running " + mode + " on " + queue.getMode() + " threads");
+      }
+      services = new QueuedHipChatService[concurrency];
+      boolean[] taken = new boolean[queue.getLaneCount()];
+      for(int i = 0, n = 0; i < services.length; n++) {
+         String room = "room-" + n;
+         if(!taken[queue.laneIndex(room)]) {
+            taken[queue.laneIndex(room)] = true;
+            services[i++] = new QueuedHipChatService(server.newService("benchmark", room), queue);
+         }
+      }
+   }
+
+   @TearDown
+   public void tearDown() {
+      queue.drain(TimeUnit.SECONDS.toMillis(30));
+      server.stop();
+      HipChatHttpClient.shutdown();
+      HipChatHttpClient.configure(HipChatHttpClient.DEFAULT_MAX_CONNECTIONS_PER_HOST, HipChatHttpClient.DEFAULT_MAX_TOTAL_CONNECTIONS,
+            HipChatHttpClient.DEFAULT_CONNECT_TIMEOUT_MILLIS, HipChatHttpClient.DEFAULT_READ_TIMEOUT_MILLIS);
+      RateLimiter.configure(RateLimiter.DEFAULT_REQUESTS, RateLimiter.DEFAULT_PERIOD_SECONDS, RateLimiter.DEFAULT_MAX_ATTEMPTS);
+      CircuitBreaker.configure(CircuitBreaker.DEFAULT_FAILURE_THRESHOLD, CircuitBreaker.DEFAULT_ERROR_RATE_PERCENT,
+            CircuitBreaker.DEFAULT_OPEN_SECONDS);
+   }
+
+   @Benchmark
+   public int burst(Resources resources) throws Exception {
+      List<Future<PublishResult>> results = new ArrayList<Future<PublishResult>>(sends);
+      for(int i = 0; i < sends; i++) {
+         results.add(services[i % services.length].publishAsync("<b>FAILURE</b> #" + i, "red"));
+      }
+      int delivered = 0;
+      for(Future<PublishResult> result : results) {
+         if(result.get().isSuccess()) {
+            delivered++;
+         }
+      }
+      resources.peakPlatformThreads = Math.max(resources.peakPlatformThreads, threads.getPeakThreadCount());
+      return delivered;
+   }
+}
@@ -0,0 +1,84 @@
+package jenkins.plugins.hipchat;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import hudson.EnvVars;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Result;
+import hudson.model.Saveable;
+import hudson.model.TaskListener;
+import hudson.util.DescribableList;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of building a completion message for one build, with and without a custom message to expand.
+ * The build and project are Mockito mocks, so absolute numbers include a constant mock overhead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class MessageBuilderBenchmark {
+
+   @Param({ "", "Deployed $GIT_BRANCH to ${TARGET_ENV}" })
+   public String customMessage;
+
+   private HipChatNotifier notifier;
+   private ActiveNotifier activeNotifier;
+   private AbstractBuild build;
+   private TaskListener listener;
+
+   @Setup
+   public void setUp() throws Exception {
+      notifier = new HipChatNotifier("token", "room", "http://jenkins.example.com/", null);
+      activeNotifier = new ActiveNotifier(notifier);
+      listener = mock(TaskListener.class);
+
+      AbstractProject project = mock(AbstractProject.class);
+      when(project.getFullName()).thenReturn("benchmark-" + customMessage.hashCode());
+      when(project.getDisplayName()).thenReturn("hipchat-plugin");
+      when(project.getPublishersList()).thenReturn(new DescribableList(Saveable.NOOP));
+      when(project.getProperty(HipChatNotifier.HipChatJobProperty.class))
+            .thenReturn(new HipChatNotifier.HipChatJobProperty("room", false, customMessage));
+      ProjectConfig.invalidate(project.getFullName());
+
+      Map<String, String> variables = new HashMap<String, String>();
+      variables.put("GIT_BRANCH", "master");
+      EnvVars env = new EnvVars();
+      env.put("TARGET_ENV", "staging");
+
+      build = mock(AbstractBuild.class);
+      when(build.getProject()).thenReturn(project);
+      when(build.getDisplayName()).thenReturn("#1234");
+      when(build.getUrl()).thenReturn("job/hipchat-plugin/1234/");
+      when(build.getResult()).thenReturn(Result.FAILURE);
+      when(build.getDurationString()).thenReturn("3 min 12 sec");
+      when(build.getBuildVariables()).thenReturn(variables);
+      when(build.getEnvironment(any(TaskListener.class))).thenReturn(env);
+   }
+
+   @Benchmark
+   public String statusMessage() {
+      return activeNotifier.getBuildStatusMessage(build, listener);
+   }
+
+   @Benchmark
+   public String builderOnly() {
+      return new ActiveNotifier.MessageBuilder(notifier, build).appendStatusMessage().appendDuration().build();
+   }
+}
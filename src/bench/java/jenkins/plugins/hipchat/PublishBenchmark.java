@@ -0,0 +1,70 @@
+package jenkins.plugins.hipchat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * End-to-end <code>StandardHipChatService.publish</code> over the shared HTTP client against an in-process
+ * {@link FakeHipChatServer}, with injected server latency and errors. Rate limiting, the circuit breaker and
+ * retries are turned off so every invocation is exactly one post per room, made one after another.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PublishBenchmark {
+
+   private static final Logger pluginLogger = Logger.getLogger("jenkins.plugins.hipchat");
+
+   @Param({ "0", "5" })
+   public long latencyMillis;
+
+   @Param({ "0", "0.05" })
+   public double errorRate;
+
+   @Param({ "1", "4" })
+   public int rooms;
+
+   private FakeHipChatServer server;
+   private StandardHipChatService service;
+
+   @Setup
+   public void setUp() throws Exception {
+      pluginLogger.setLevel(Level.SEVERE);
+      RateLimiter.configure(Integer.MAX_VALUE, 1, 1);
+      CircuitBreaker.configure(Integer.MAX_VALUE, 100, 1);
+      server = new FakeHipChatServer();
+      server.setLatency(latencyMillis, 0);
+      server.setErrorRate(errorRate);
+      StringBuilder roomIds = new StringBuilder("room-0");
+      for(int i = 1; i < rooms; i++) {
+         roomIds.append(",room-").append(i);
+      }
+      service = server.newService("benchmark", roomIds.toString());
+   }
+
+   @TearDown
+   public void tearDown() {
+      server.stop();
+      HipChatHttpClient.shutdown();
+      RateLimiter.configure(RateLimiter.DEFAULT_REQUESTS, RateLimiter.DEFAULT_PERIOD_SECONDS, RateLimiter.DEFAULT_MAX_ATTEMPTS);
+      CircuitBreaker.configure(CircuitBreaker.DEFAULT_FAILURE_THRESHOLD, CircuitBreaker.DEFAULT_ERROR_RATE_PERCENT,
+            CircuitBreaker.DEFAULT_OPEN_SECONDS);
+   }
+
+   @Benchmark
+   public PublishResult publish() {
+      return service.publish("<a href='http://jenkins.example.com/job/hipchat-plugin/1234/console'>hipchat-plugin #1234</a>"
+            + " - <b>FAILURE</b> after 3 min 12 sec", "red");
+   }
+}
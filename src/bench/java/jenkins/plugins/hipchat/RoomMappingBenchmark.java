@@ -0,0 +1,65 @@
+package jenkins.plugins.hipchat;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * <code>HipChatNotifier.resolveRoom</code> against large "rooms by parameter" tables, nine plain keys to
+ * every wildcard key.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RoomMappingBenchmark {
+
+   @Param({ "10", "1000", "10000" })
+   public int entries;
+
+   private HipChatNotifier notifier;
+   private String exactKey;
+   private String patternKey;
+
+   @Setup
+   public void setUp() {
+      Map<String, String> rooms = new LinkedHashMap<String, String>();
+      int patterns = 0;
+      for(int i = 0; i < entries; i++) {
+         if(i % 10 == 9) {
+            rooms.put("pool-" + i + "-*", "pool-room-" + i);
+            patterns = i;
+         }
+         else {
+            rooms.put("host-" + i, "room-" + i);
+         }
+      }
+      notifier = new HipChatNotifier("token", "room", "http://jenkins.example.com/", rooms);
+      exactKey = "host-" + (entries / 2 - (entries / 2 % 10 == 9 ? 1 : 0));
+      patternKey = "pool-" + patterns + "-agent-07";
+      notifier.resolveRoom(exactKey);
+   }
+
+   @Benchmark
+   public String exactMatch() {
+      return notifier.resolveRoom(exactKey);
+   }
+
+   @Benchmark
+   public String lastPatternMatch() {
+      return notifier.resolveRoom(patternKey);
+   }
+
+   @Benchmark
+   public String noMatch() {
+      return notifier.resolveRoom("unmapped-agent");
+   }
+}
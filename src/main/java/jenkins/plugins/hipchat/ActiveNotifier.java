@@ -1,22 +1,13 @@
 package jenkins.plugins.hipchat;
 
-import hudson.model.Result;
 import hudson.model.AbstractBuild;
-import hudson.model.AbstractProject;
 import hudson.model.CauseAction;
+import hudson.model.Result;
 import hudson.model.TaskListener;
-import hudson.scm.ChangeLogSet;
-import hudson.scm.ChangeLogSet.AffectedFile;
-import hudson.scm.ChangeLogSet.Entry;
 
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
 import java.util.logging.Logger;
 
-import org.apache.commons.lang.StringUtils;
-
 @SuppressWarnings("rawtypes")
 public class ActiveNotifier implements FineGrainedNotifier {
 
@@ -29,125 +20,174 @@ public class ActiveNotifier implements FineGrainedNotifier {
       this.notifier = notifier;
    }
 
-   private HipChatService getHipChat(AbstractBuild r, TaskListener listener) {
-      AbstractProject<?, ?> project = r.getProject();
-      String projectRoom = notifier.resolveRoom(notifier.resolveVariables(project.getProperty(HipChatNotifier.HipChatJobProperty.class).getRoom(), r, listener));
-      return notifier.newHipChatService(projectRoom);
+   private HipChatService getHipChat(ExpansionContext context) {
+      return ProjectConfig.get(context.getBuild().getProject()).getService(getRoom(context));
+   }
+
+   private String getRoom(ExpansionContext context) {
+      return notifier.resolveRoom(notifier.resolveVariables(ProjectConfig.get(context.getBuild().getProject()).getRoom(), context));
    }
 
    public void deleted(AbstractBuild r) {}
 
-   public void started(AbstractBuild build, TaskListener listener) {
-      String changes = getChanges(build, listener);
+   public void started(ExpansionContext context) {
+      AbstractBuild build = context.getBuild();
+      String changes = getChanges(context);
       CauseAction cause = build.getAction(CauseAction.class);
       if(changes != null) {
-         notifyStart(build, listener, changes);
+         notifyStart(context, changes);
       }
       else if(cause != null) {
-         MessageBuilder message = new MessageBuilder(notifier, build);
-         message.appendCustomMessage(listener);
+         MessageBuilder message = new MessageBuilder(notifier, context);
+         message.appendCustomMessage(context);
          message.append(" - ");
          message.append(cause.getShortDescription());
-         notifyStart(build, listener, message.toString());
+         notifyStart(context, message.build());
       }
       else {
-         notifyStart(build, listener, getBuildStatusMessage(build, listener));
+         notifyStart(context, getBuildStatusMessage(context));
       }
    }
 
-   private void notifyStart(AbstractBuild build, TaskListener listener, String message) {
-      getHipChat(build, listener).publish(message, "green");
+   private void notifyStart(ExpansionContext context, String message) {
+      getHipChat(context).publish(message, "green");
    }
 
-    public void finalized(AbstractBuild r) {}
+   public void finalized(AbstractBuild r) {}
 
-   public void completed(AbstractBuild r, TaskListener listener) {
-      getHipChat(r, listener).publish(getBuildStatusMessage(r, listener), getBuildColor(r));
+   public void completed(ExpansionContext context) {
+      AbstractBuild r = context.getBuild();
+      String room = getRoom(context);
+      HipChatService hipChat = ProjectConfig.get(r.getProject()).getService(room);
+      String key = notifier.getAuthToken() + "/" + (room == null ? notifier.getRoom() : room);
+      HipChatNotifier.DescriptorImpl descriptor = notifier.getDescriptor();
+      MessageBuilder message = buildStatusMessage(context);
+      long fingerprint = message.getFingerprint();
+      String text = message.build();
+      String note = descriptor.getNotificationFilter().check(key, r.getProject().getFullName(), context.getResult(), fingerprint,
+            System.currentTimeMillis());
+      if(note == null) {
+         logger.fine("Holding back repeated notification for " + r.getFullDisplayName());
+         DeliveryMetrics.SUPPRESSED.increment();
+         return;
+      }
+      descriptor.getMessageCoalescer().publish(key, hipChat, r.getProject().getDisplayName(), context.getResult(),
+            text + note, MessageLayout.getColor(context.getResult()));
    }
 
    String getChanges(AbstractBuild r, TaskListener listener) {
+      return getChanges(new ExpansionContext(r, listener));
+   }
+
+   private String getChanges(ExpansionContext context) {
+      AbstractBuild r = context.getBuild();
       if(!r.hasChangeSetComputed()) {
-         logger.info("No change set computed...");
+         logger.fine("No change set computed...");
          return null;
       }
-      ChangeLogSet changeSet = r.getChangeSet();
-      List<Entry> entries = new LinkedList<Entry>();
-      Set<AffectedFile> files = new HashSet<AffectedFile>();
-      for(Object o : changeSet.getItems()) {
-         Entry entry = (Entry)o;
-         logger.info("Entry " + o);
-         entries.add(entry);
-         files.addAll(entry.getAffectedFiles());
-      }
-      if(entries.isEmpty()) {
-         logger.info("Empty change...");
+      HipChatNotifier.DescriptorImpl descriptor = notifier.getDescriptor();
+      ChangeSummary summary = ChangeSummary.of(r.getChangeSet(), descriptor.getChangeFileCap(), descriptor.getChangeTopAuthors(),
+            descriptor.getChangeTopDirectories());
+      if(summary.isEmpty()) {
+         logger.fine("Empty change...");
          return null;
       }
-      Set<String> authors = new HashSet<String>();
-      for(Entry entry : entries) {
-         authors.add(entry.getAuthor().getDisplayName());
-      }
-      MessageBuilder message = new MessageBuilder(notifier, r);
-      message.appendCustomMessage(listener);
+      MessageBuilder message = new MessageBuilder(notifier, context);
+      message.appendCustomMessage(context);
       message.append(" - ");
       message.append("Started by changes from ");
-      message.append(StringUtils.join(authors, ", "));
+      appendEscaped(message, summary.getTopAuthors());
+      if(summary.hasMoreAuthors()) {
+         message.append(" and others");
+      }
       message.append(" (");
-      message.append(files.size());
-      message.append(" file(s) changed)");
-      return message.toString();
+      message.append(summary.getFileCountText());
+      message.append(" file(s) changed");
+      List<String> directories = summary.getTopDirectories();
+      if(!directories.isEmpty()) {
+         message.append(" in ");
+         appendEscaped(message, directories);
+         if(summary.hasMoreDirectories()) {
+            message.append(", ...");
+         }
+      }
+      message.append(")");
+      return message.build();
    }
 
-   static String getBuildColor(AbstractBuild r) {
-      Result result = r.getResult();
-      if(result == Result.SUCCESS) {
-         return "green";
-      }
-      else if(result == Result.FAILURE) {
-         return "red";
-      }
-      else {
-         return "yellow";
+   private static void appendEscaped(MessageBuilder message, List<String> items) {
+      for(int i = 0; i < items.size(); i++) {
+         if(i > 0) {
+            message.append(", ");
+         }
+         message.appendEscaped(items.get(i));
       }
    }
 
    String getBuildStatusMessage(AbstractBuild r, TaskListener listener) {
-      MessageBuilder message = new MessageBuilder(notifier, r);
-      message.appendCustomMessage(listener);
+      return getBuildStatusMessage(new ExpansionContext(r, listener));
+   }
+
+   private String getBuildStatusMessage(ExpansionContext context) {
+      return buildStatusMessage(context).build();
+   }
+
+   private MessageBuilder buildStatusMessage(ExpansionContext context) {
+      MessageBuilder message = new MessageBuilder(notifier, context);
+      message.appendCustomMessage(context);
       message.append(" - ");
       message.appendStatusMessage();
       message.appendDuration();
-      return message.toString();
+      if(!context.isBuilding()) {
+         message.appendTestSummary();
+      }
+      if(context.getResult() == Result.FAILURE) {
+         message.appendLogExcerpt();
+      }
+      return message;
    }
 
+   /**
+    * Renders one message on a per-thread reusable buffer, using the job's precompiled {@link MessageLayout}.
+    * Call {@link #build()} once at the end to get the message and hand the buffer back.
+    */
    public static class MessageBuilder {
-      private StringBuffer message;
-      private HipChatNotifier notifier;
-      private AbstractBuild build;
+      private static final int INITIAL_CAPACITY = 256;
+      private static final int MAX_RETAINED_CAPACITY = 16 * 1024;
+      private static final ThreadLocal<StringBuilder> spare = new ThreadLocal<StringBuilder>();
+
+      private final StringBuilder message;
+      private final HipChatNotifier notifier;
+      private final AbstractBuild build;
+      private final ExpansionContext context;
+      private final MessageLayout layout;
+      private long fingerprint;
 
       public MessageBuilder(HipChatNotifier notifier, AbstractBuild build) {
+         this(notifier, new ExpansionContext(build, null));
+      }
+
+      public MessageBuilder(HipChatNotifier notifier, ExpansionContext context) {
          this.notifier = notifier;
-         this.message = new StringBuffer();
-         this.build = build;
-         startMessage();
+         this.build = context.getBuild();
+         this.context = context;
+         this.layout = ProjectConfig.get(build.getProject()).getLayout(notifier);
+         this.message = takeBuffer();
+         layout.appendLink(message, build);
       }
 
       public MessageBuilder appendStatusMessage() {
-         message.append(getStatusMessage(build));
+         String status = getStatusMessage(context);
+         message.append(status);
+         mix(NotificationFilter.fingerprint(status));
          return this;
       }
 
-      static String getStatusMessage(AbstractBuild r) {
-         if(r.isBuilding()) {
+      static String getStatusMessage(ExpansionContext context) {
+         if(context.isBuilding()) {
             return "Starting...";
          }
-         Result result = r.getResult();
-         if(result == Result.SUCCESS) return "Success";
-         if(result == Result.FAILURE) return "<b>FAILURE</b>";
-         if(result == Result.ABORTED) return "ABORTED";
-         if(result == Result.NOT_BUILT) return "Not built";
-         if(result == Result.UNSTABLE) return "Unstable";
-         return "Unknown";
+         return MessageLayout.getStatusMessage(context.getResult());
       }
 
       public MessageBuilder append(String string) {
@@ -156,44 +196,107 @@ public class ActiveNotifier implements FineGrainedNotifier {
       }
 
       public MessageBuilder append(Object string) {
-         message.append(string.toString());
+         message.append(string);
          return this;
       }
 
-      private MessageBuilder startMessage() {
-         String url = notifier.getJenkinsUrl() + build.getUrl() + "/console";
-         message.append("<a href='").append(url).append("'>");
-         message.append(build.getProject().getDisplayName());
-         message.append(" ");
-         message.append(build.getDisplayName());
-         message.append("</a>");
-         message.append(" ");
+      /**
+       * Appends <code>text</code> with HTML special characters escaped.
+       */
+      public MessageBuilder appendEscaped(String text) {
+         MessageLayout.escape(message, text);
          return this;
       }
 
-       public MessageBuilder appendCustomMessage(TaskListener listener) {
-           HipChatNotifier.HipChatJobProperty hipChatJobConfig = (HipChatNotifier.HipChatJobProperty) build.getProject().getProperty(HipChatNotifier.HipChatJobProperty.class);
-           String customMessage = hipChatJobConfig.getCustomMessage();
-           if (StringUtils.isBlank(customMessage)) {
-               return this;
-           }
-
-           // Expand variables if applicable
-           customMessage = notifier.resolveVariables(customMessage, build, listener);
-
-           message.append(" (").append(customMessage).append(")");
-           return this;
-       }
+      public MessageBuilder appendCustomMessage(TaskListener listener) {
+         return appendCustomMessage(new ExpansionContext(build, listener));
+      }
 
+      public MessageBuilder appendCustomMessage(ExpansionContext context) {
+         String customMessage = layout.getCustomMessage();
+         if(customMessage == null) {
+            return this;
+         }
+         message.append(" (").append(notifier.resolveVariables(customMessage, context)).append(")");
+         return this;
+      }
 
       public MessageBuilder appendDuration() {
          message.append(" after ");
-         message.append(build.getDurationString());
+         message.append(context.getDurationString());
+         return this;
+      }
+
+      /**
+       * Appends the build's test counts and how many failures are new since the previous build, if a test
+       * summary was {@link TestSummary#record recorded} for it.
+       */
+      public MessageBuilder appendTestSummary() {
+         TestSummary summary = TestSummary.recorded(build);
+         if(summary != null) {
+            message.append(" - ");
+            message.append(summary.describe(TestSummary.previous(build)));
+            mix(summary.getFailingFingerprint());
+         }
+         return this;
+      }
+
+      /**
+       * Appends the configured excerpt of the build's console log, if any, as preformatted text.
+       */
+      public MessageBuilder appendLogExcerpt() {
+         String excerpt = notifier.getDescriptor().getLogExcerpt().excerpt(build.getLogFile(), build.getCharset());
+         if(excerpt != null) {
+            message.append("<pre>");
+            MessageLayout.escape(message, excerpt);
+            message.append("</pre>");
+            mix(NotificationFilter.fingerprint(excerpt));
+         }
          return this;
       }
 
+      /**
+       * What the message says beyond its link, build number and duration: a hash of the status, the failing
+       * tests and the log excerpt appended so far, for {@link NotificationFilter} to tell repeats apart.
+       */
+      public long getFingerprint() {
+         return fingerprint;
+      }
+
+      private void mix(long part) {
+         fingerprint = 31 * fingerprint + part;
+      }
+
+      /**
+       * The finished message. The builder must not be used afterwards, as its buffer is reused.
+       */
+      public String build() {
+         String text = message.toString();
+         releaseBuffer(message);
+         return text;
+      }
+
       public String toString() {
          return message.toString();
       }
+
+      static StringBuilder takeBuffer() {
+         StringBuilder buffer = spare.get();
+         if(buffer == null) {
+            return new StringBuilder(INITIAL_CAPACITY);
+         }
+         spare.set(null);
+         buffer.setLength(0);
+         return buffer;
+      }
+
+      /**
+       * Keeps <code>buffer</code> for the thread's next message, unless it grew too large to be worth holding on to.
+       */
+      static void releaseBuffer(StringBuilder buffer) {
+         if(buffer.capacity() <= MAX_RETAINED_CAPACITY) {
+            spare.set(buffer);
+         }
+      }
    }
 }
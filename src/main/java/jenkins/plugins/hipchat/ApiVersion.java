@@ -0,0 +1,35 @@
+package jenkins.plugins.hipchat;
+
+/**
+ * Which HipChat REST API notifications are posted with.
+ */
+public enum ApiVersion {
+   V1("v1 (form post, token in the URL)"),
+   V2("v2 (JSON room notification, bearer token)");
+
+   private final String displayName;
+
+   ApiVersion(String displayName) {
+      this.displayName = displayName;
+   }
+
+   public String getDisplayName() {
+      return displayName;
+   }
+
+   public StandardHipChatService newService(String token, String roomIds, String from) {
+      return this == V2 ? new HipChatV2Service(token, roomIds, from) : new StandardHipChatService(token, roomIds, from);
+   }
+
+   public static ApiVersion parse(String value, ApiVersion defaultValue) {
+      if(value == null) {
+         return defaultValue;
+      }
+      try {
+         return valueOf(value.trim());
+      }
+      catch(IllegalArgumentException e) {
+         return defaultValue;
+      }
+   }
+}
@@ -0,0 +1,429 @@
+package jenkins.plugins.hipchat;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Sends messages to a relay in batches instead of one HipChat post per room and message. Messages for
+ * the same token and API server are gathered until there are {@link #getMaxMessages() enough} or the
+ * {@link #getLingerMillis() linger time} is up, then posted as one JSON request from a {@link DeliveryQueue}
+ * worker:
+ * <pre>
+ * POST relayUrl
+ * Authorization: Bearer token
+ * {"host":"https://api.hipchat.com","api":"v2","messages":[{"room":"ops","from":"Jenkins","message":"...",
+ *   "message_format":"html","color":"red","notify":true}, ...]}
+ * </pre>
+ * The relay answers with one HTTP status per message, in order, as <code>{"results":[204,404,...]}</code>;
+ * without that, every message in the batch gets the status of the response. Each room still gets its own
+ * {@link RoomResult}, so retries, metrics and the outbox work per message.
+ */
+public class BatchSender {
+
+   private static final Logger logger = Logger.getLogger(BatchSender.class.getName());
+
+   public static final int DEFAULT_MAX_MESSAGES = 50;
+   public static final int DEFAULT_LINGER_MILLIS = 200;
+
+   private static final Pattern RESULTS = Pattern.compile("\"results\"\\s*:\\s*\\[([^\\]]*)\\]");
+   private static final String BATCH_ROOM = "(batch)";
+
+   private final String relayUrl;
+   private final int maxMessages;
+   private final long lingerMillis;
+   private final DeliveryQueue queue;
+   private final Map<String, Batch> batches = new HashMap<String, Batch>();
+   private final ScheduledThreadPoolExecutor timer;
+
+   public BatchSender(String relayUrl, int maxMessages, long lingerMillis, DeliveryQueue queue) {
+      this.relayUrl = relayUrl;
+      this.maxMessages = Math.max(1, maxMessages);
+      this.lingerMillis = Math.max(0, lingerMillis);
+      this.queue = queue;
+      this.timer = new ScheduledThreadPoolExecutor(1, new DeliveryQueue.DaemonThreadFactory("HipChat batcher"));
+   }
+
+   public String getRelayUrl() {
+      return relayUrl;
+   }
+
+   public int getMaxMessages() {
+      return maxMessages;
+   }
+
+   public long getLingerMillis() {
+      return lingerMillis;
+   }
+
+   DeliveryQueue getQueue() {
+      return queue;
+   }
+
+   /**
+    * Adds <code>message</code> for every room of <code>service</code> to the pending batch for its token and
+    * server. The returned future completes once every room has a final result, after any retries;
+    * <code>callback</code> (if not null) is told each room's result as it becomes final.
+    */
+   public Future<PublishResult> submit(StandardHipChatService service, String message, String color, DeliveryCallback callback) {
+      String[] rooms = service.getRoomIds();
+      Delivery delivery = new Delivery(rooms.length, callback);
+      for(String room : rooms) {
+         add(new Item(service, room.trim(), message, color, delivery));
+      }
+      return delivery.future;
+   }
+
+   private void add(Item item) {
+      String key = batchKey(item.service);
+      Batch full = null;
+      synchronized(batches) {
+         Batch batch = batches.get(key);
+         if(batch == null) {
+            batch = new Batch(item.service);
+            if(!timer.isShutdown()) {
+               batches.put(key, batch);
+               batch.flush = timer.schedule(new Flush(key), lingerMillis, TimeUnit.MILLISECONDS);
+            }
+         }
+         batch.items.add(item);
+         if(batch.items.size() >= maxMessages || batch.flush == null) {
+            batches.remove(key);
+            if(batch.flush != null) {
+               batch.flush.cancel(false);
+            }
+            full = batch;
+         }
+      }
+      if(full != null) {
+         send(full.service, full.items, 1, false);
+      }
+   }
+
+   /**
+    * Hands every pending batch to the delivery queue now and stops batching; later messages go out on their own.
+    */
+   public void flushAll() {
+      timer.shutdown();
+      List<Batch> pending;
+      synchronized(batches) {
+         pending = new ArrayList<Batch>(batches.values());
+         batches.clear();
+      }
+      for(Batch batch : pending) {
+         batch.flush.cancel(false);
+         send(batch.service, batch.items, 1, false);
+      }
+   }
+
+   /**
+    * Batches, and the order they are posted in, are per token and server.
+    */
+   private static String batchKey(StandardHipChatService service) {
+      return service.getToken() + "@" + service.getBaseUrl();
+   }
+
+   private void send(final StandardHipChatService service, final List<Item> items, final int attempt, final boolean reserved) {
+      if(!queue.submit(new Runnable() {
+         public void run() {
+            post(service, items, attempt, reserved);
+         }
+      }, batchKey(service))) {
+         logger.warning("HipChat delivery queue rejected a batch of " + items.size() + " message(s) (" + queue.getOverflowPolicy() + ")");
+         RejectedExecutionException rejected = new RejectedExecutionException("HipChat delivery queue is full");
+         for(Item item : items) {
+            item.complete(new RoomResult(item.room, -1, 0, rejected));
+         }
+      }
+   }
+
+   /**
+    * @param reserved whether the batch already holds a rate limit slot, reserved when it was held back
+    */
+   private void post(StandardHipChatService service, List<Item> items, int attempt, boolean reserved) {
+      String token = service.getToken();
+      long wait = reserved ? 0 : RateLimiter.reserve(token);
+      if(wait > 0) {
+         // Not an attempt: the batch keeps its slot and goes out when the slot comes up, however late.
+         long delay = RateLimiter.waitDelayMillis(wait, attempt);
+         logger.fine("Rate limit reached, delaying batch of " + items.size() + " by " + delay + "ms");
+         retryLater(service, items, attempt, true, delay);
+         return;
+      }
+      CircuitBreaker breaker = CircuitBreaker.forEndpoint(relayUrl, token);
+      long closedIn = breaker.tryAcquire();
+      if(closedIn > 0) {
+         DeliveryMetrics.SHED.increment();
+         if(attempt < RateLimiter.getMaxAttempts()) {
+            retryLater(service, items, attempt + 1, false, closedIn);
+            return;
+         }
+         CircuitBreaker.OpenException open = new CircuitBreaker.OpenException(breaker.getEndpoint());
+         for(Item item : items) {
+            item.complete(new RoomResult(item.room, -1, 0, open));
+         }
+         return;
+      }
+      HttpClient client = HipChatHttpClient.get();
+      PostMethod post = new PostMethod(relayUrl);
+      post.setRequestHeader("Authorization", "Bearer " + token);
+      post.setRequestEntity(new Body(service, items));
+      long start = System.nanoTime();
+      try {
+         int status = client.executeMethod(post);
+         long nanos = System.nanoTime() - start;
+         long latency = TimeUnit.NANOSECONDS.toMillis(nanos);
+         DeliveryMetrics.recordHttp(BATCH_ROOM, status, nanos);
+         StandardHipChatService.recordOutcome(breaker, status);
+         RateLimiter.update(token, post);
+         int[] statuses = status >= 200 && status < 300 ? parseResults(post.getResponseBodyAsString(), items.size(), status) : null;
+         List<Item> retry = new ArrayList<Item>();
+         for(int i = 0; i < items.size(); i++) {
+            int itemStatus = statuses == null ? status : statuses[i];
+            if(RateLimiter.isRetryable(itemStatus) && attempt < RateLimiter.getMaxAttempts()) {
+               retry.add(items.get(i));
+            }
+            else {
+               items.get(i).complete(new RoomResult(items.get(i).room, itemStatus, latency, null));
+            }
+         }
+         if(!retry.isEmpty()) {
+            long delay = RateLimiter.retryDelayMillis(post, attempt);
+            if(status == 429) {
+               RateLimiter.pause(token, delay);
+            }
+            logger.warning("Relay did not accept " + retry.size() + " of " + items.size() + " message(s), retrying in " + delay
+                  + "ms (attempt " + attempt + ")");
+            retryLater(service, retry, attempt + 1, false, delay);
+         }
+      }
+      catch(Exception e) {
+         long nanos = System.nanoTime() - start;
+         long latency = TimeUnit.NANOSECONDS.toMillis(nanos);
+         DeliveryMetrics.recordHttp(BATCH_ROOM, -1, nanos);
+         breaker.recordFailure(e.toString());
+         if(e instanceof IOException && attempt < RateLimiter.getMaxAttempts()) {
+            long delay = RateLimiter.retryDelayMillis(null, attempt);
+            logger.log(Level.WARNING, "Error posting batch to relay, retrying in " + delay + "ms (attempt " + attempt + ")", e);
+            retryLater(service, items, attempt + 1, false, delay);
+            return;
+         }
+         logger.log(Level.WARNING, "Error posting batch to relay", e);
+         for(Item item : items) {
+            item.complete(new RoomResult(item.room, -1, latency, e));
+         }
+      }
+      finally {
+         post.releaseConnection();
+      }
+   }
+
+   private void retryLater(final StandardHipChatService service, final List<Item> items, final int attempt, final boolean reserved, long delayMillis) {
+      for(int i = 0; i < items.size(); i++) {
+         DeliveryMetrics.RETRIES.increment();
+      }
+      RateLimiter.schedule(new Runnable() {
+         public void run() {
+            send(service, items, attempt, reserved);
+         }
+      }, delayMillis);
+   }
+
+   /**
+    * The per-message statuses in a relay response, or <code>null</code> if it does not list one for each
+    * of the <code>count</code> messages.
+    */
+   static int[] parseResults(String response, int count, int status) {
+      if(response == null) {
+         return null;
+      }
+      Matcher results = RESULTS.matcher(response);
+      if(!results.find()) {
+         return null;
+      }
+      String[] values = results.group(1).split(",");
+      if(values.length != count) {
+         logger.warning("Relay answered " + values.length + " result(s) for a batch of " + count + ", using HTTP " + status + " for all");
+         return null;
+      }
+      int[] statuses = new int[count];
+      try {
+         for(int i = 0; i < count; i++) {
+            statuses[i] = Integer.parseInt(values[i].trim());
+         }
+      }
+      catch(NumberFormatException e) {
+         return null;
+      }
+      return statuses;
+   }
+
+   private class Flush implements Runnable {
+      private final String key;
+
+      Flush(String key) {
+         this.key = key;
+      }
+
+      public void run() {
+         Batch batch;
+         synchronized(batches) {
+            batch = batches.remove(key);
+         }
+         if(batch != null) {
+            send(batch.service, batch.items, 1, false);
+         }
+      }
+   }
+
+   private static class Batch {
+      private final StandardHipChatService service;
+      private final List<Item> items = new ArrayList<Item>();
+      private ScheduledFuture<?> flush;
+
+      Batch(StandardHipChatService service) {
+         this.service = service;
+      }
+   }
+
+   /**
+    * One message for one room.
+    */
+   private static class Item {
+      private final StandardHipChatService service;
+      private final String room;
+      private final String message;
+      private final String color;
+      private final Delivery delivery;
+
+      Item(StandardHipChatService service, String room, String message, String color, Delivery delivery) {
+         this.service = service;
+         this.room = room;
+         this.message = message;
+         this.color = color;
+         this.delivery = delivery;
+      }
+
+      void complete(RoomResult result) {
+         if(result.isSuccess()) {
+            DeliveryMetrics.DELIVERED.increment();
+         }
+         else {
+            DeliveryMetrics.FAILURES.increment();
+            logger.warning("Failed to post to HipChat room " + result);
+         }
+         delivery.complete(result);
+      }
+   }
+
+   /**
+    * Collects the room results of one submitted message and completes its future with the last one.
+    */
+   private static class Delivery {
+      private final List<RoomResult> results;
+      private final int rooms;
+      private final DeliveryCallback callback;
+      private final FutureTask<PublishResult> future;
+
+      Delivery(int rooms, DeliveryCallback callback) {
+         this.rooms = rooms;
+         this.callback = callback;
+         this.results = Collections.synchronizedList(new ArrayList<RoomResult>(rooms));
+         this.future = new FutureTask<PublishResult>(new Callable<PublishResult>() {
+            public PublishResult call() {
+               return PublishResult.completed(results);
+            }
+         });
+      }
+
+      void complete(RoomResult result) {
+         if(callback != null) {
+            callback.completed(result);
+         }
+         results.add(result);
+         if(results.size() == rooms) {
+            future.run();
+         }
+      }
+   }
+
+   /**
+    * The batch as JSON, written straight to the connection.
+    */
+   private static class Body implements RequestEntity {
+      private final StandardHipChatService service;
+      private final List<Item> items;
+
+      Body(StandardHipChatService service, List<Item> items) {
+         this.service = service;
+         this.items = items;
+      }
+
+      public boolean isRepeatable() {
+         return true;
+      }
+
+      public void writeRequest(OutputStream out) throws IOException {
+         Writer writer = new OutputStreamWriter(out, "UTF-8");
+         write(writer, service, items);
+         writer.flush();
+      }
+
+      public long getContentLength() {
+         return -1;
+      }
+
+      public String getContentType() {
+         return "application/json; charset=UTF-8";
+      }
+   }
+
+   private static void write(Writer out, StandardHipChatService service, List<Item> items) throws IOException {
+      out.write("{\"host\":");
+      HipChatV2Service.Notification.writeString(out, service.getBaseUrl());
+      out.write(",\"api\":");
+      out.write(service instanceof HipChatV2Service ? "\"v2\"" : "\"v1\"");
+      out.write(",\"messages\":[");
+      for(int i = 0; i < items.size(); i++) {
+         Item item = items.get(i);
+         if(i > 0) {
+            out.write(',');
+         }
+         out.write("{\"room\":");
+         HipChatV2Service.Notification.writeString(out, item.room);
+         if(service.getFrom() != null) {
+            out.write(",\"from\":");
+            HipChatV2Service.Notification.writeString(out, service.getFrom());
+         }
+         out.write(",\"message\":");
+         HipChatV2Service.Notification.writeString(out, item.message);
+         out.write(",\"message_format\":\"html\",\"color\":");
+         HipChatV2Service.Notification.writeString(out, item.color);
+         out.write(",\"notify\":");
+         out.write(service.shouldNotify(item.color) ? "true" : "false");
+         out.write('}');
+      }
+      out.write("]}");
+   }
+}
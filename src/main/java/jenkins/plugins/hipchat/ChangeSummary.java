@@ -0,0 +1,193 @@
+package jenkins.plugins.hipchat;
+
+import hudson.scm.ChangeLogSet;
+import hudson.scm.ChangeLogSet.Entry;
+
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * One-pass summary of a change set in bounded memory: the number of files changed (counted exactly up to
+ * a cap, then reported as "N+"), and the most active authors and top-level directories, tracked with
+ * a fixed number of counters each (the Space-Saving algorithm), however large the change set is.
+ */
+public class ChangeSummary {
+
+   public static final int DEFAULT_FILE_CAP = 10000;
+   public static final int DEFAULT_TOP_AUTHORS = 5;
+   public static final int DEFAULT_TOP_DIRECTORIES = 3;
+
+   private final int fileCap;
+   private final int topAuthors;
+   private final int topDirectories;
+   private final Set<String> files = new HashSet<String>();
+   private final TopK authors;
+   private final TopK directories;
+   private int entries;
+   private boolean filesCapped;
+
+   public ChangeSummary(int fileCap, int topAuthors, int topDirectories) {
+      this.fileCap = Math.max(1, fileCap);
+      this.topAuthors = Math.max(1, topAuthors);
+      this.topDirectories = Math.max(0, topDirectories);
+      this.authors = new TopK(this.topAuthors * 4);
+      this.directories = new TopK(Math.max(1, this.topDirectories * 4));
+   }
+
+   public static ChangeSummary of(ChangeLogSet<? extends Entry> changeSet, int fileCap, int topAuthors, int topDirectories) {
+      ChangeSummary summary = new ChangeSummary(fileCap, topAuthors, topDirectories);
+      for(Entry entry : changeSet) {
+         summary.add(entry.getAuthor().getDisplayName(), entry.getAffectedPaths());
+      }
+      return summary;
+   }
+
+   public void add(String author, Collection<String> paths) {
+      entries++;
+      authors.add(author == null ? "unknown" : author);
+      if(paths == null) {
+         return;
+      }
+      for(String path : paths) {
+         if(!filesCapped) {
+            if(files.size() < fileCap) {
+               files.add(path);
+            }
+            else if(!files.contains(path)) {
+               filesCapped = true;
+            }
+         }
+         if(topDirectories > 0) {
+            directories.add(topLevelDirectory(path));
+         }
+      }
+   }
+
+   public boolean isEmpty() {
+      return entries == 0;
+   }
+
+   public int getEntryCount() {
+      return entries;
+   }
+
+   public int getFileCount() {
+      return files.size();
+   }
+
+   public boolean isFileCountCapped() {
+      return filesCapped;
+   }
+
+   /**
+    * The number of changed files for display, e.g. <code>"42"</code> or <code>"10,000+"</code>.
+    */
+   public String getFileCountText() {
+      String count = NumberFormat.getIntegerInstance(Locale.ENGLISH).format(files.size());
+      return filesCapped ? count + "+" : count;
+   }
+
+   public List<String> getTopAuthors() {
+      return authors.top(topAuthors);
+   }
+
+   /**
+    * True if more authors took part than {@link #getTopAuthors()} lists.
+    */
+   public boolean hasMoreAuthors() {
+      return authors.seen() > topAuthors;
+   }
+
+   public List<String> getTopDirectories() {
+      return directories.top(topDirectories);
+   }
+
+   public boolean hasMoreDirectories() {
+      return directories.seen() > topDirectories;
+   }
+
+   static String topLevelDirectory(String path) {
+      int start = 0;
+      while(start < path.length() && (path.charAt(start) == '/' || path.charAt(start) == '\\')) {
+         start++;
+      }
+      for(int i = start; i < path.length(); i++) {
+         char c = path.charAt(i);
+         if(c == '/' || c == '\\') {
+            return path.substring(start, i);
+         }
+      }
+      return "/";
+   }
+
+   /**
+    * Space-Saving heavy hitters: keeps <code>capacity</code> counters; a new key replaces the smallest
+    * counter and inherits its count, so frequent keys are never lost.
+    */
+   static class TopK {
+      private final int capacity;
+      private final Map<String, long[]> counters = new HashMap<String, long[]>();
+      private int distinctUpToCapacity;
+
+      TopK(int capacity) {
+         this.capacity = capacity;
+      }
+
+      void add(String key) {
+         long[] counter = counters.get(key);
+         if(counter != null) {
+            counter[0]++;
+            return;
+         }
+         if(distinctUpToCapacity <= capacity) {
+            distinctUpToCapacity++;
+         }
+         if(counters.size() < capacity) {
+            counters.put(key, new long[] { 1 });
+            return;
+         }
+         String smallest = null;
+         long min = Long.MAX_VALUE;
+         for(Map.Entry<String, long[]> entry : counters.entrySet()) {
+            if(entry.getValue()[0] < min) {
+               min = entry.getValue()[0];
+               smallest = entry.getKey();
+            }
+         }
+         counters.remove(smallest);
+         counters.put(key, new long[] { min + 1 });
+      }
+
+      /**
+       * Number of distinct keys seen, exact up to the capacity and a lower bound beyond it.
+       */
+      int seen() {
+         return distinctUpToCapacity;
+      }
+
+      List<String> top(int n) {
+         List<Map.Entry<String, long[]>> sorted = new ArrayList<Map.Entry<String, long[]>>(counters.entrySet());
+         Collections.sort(sorted, new Comparator<Map.Entry<String, long[]>>() {
+            public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+               long ca = a.getValue()[0];
+               long cb = b.getValue()[0];
+               return ca != cb ? (cb > ca ? 1 : -1) : a.getKey().compareTo(b.getKey());
+            }
+         });
+         List<String> top = new ArrayList<String>(Math.min(n, sorted.size()));
+         for(int i = 0; i < n && i < sorted.size(); i++) {
+            top.add(sorted.get(i).getKey());
+         }
+         return top;
+      }
+   }
+}
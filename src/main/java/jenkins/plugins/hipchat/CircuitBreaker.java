@@ -0,0 +1,259 @@
+package jenkins.plugins.hipchat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Stops posting to an endpoint (API server and token) that keeps failing, so that during an outage
+ * messages wait in the retry schedule and the outbox instead of each tying up a delivery thread until
+ * it times out. The breaker opens after a number of consecutive failures, or when too many of the
+ * recent posts failed. While open, posts fail fast; once the open time is up, a single probe is let
+ * through. A successful probe closes the breaker, a failed one opens it again for twice as long.
+ * <p>
+ * Only server trouble counts as failure: I/O errors and 5xx answers. A 4xx means the server is up.
+ */
+public final class CircuitBreaker {
+
+   private static final Logger logger = Logger.getLogger(CircuitBreaker.class.getName());
+
+   public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+   public static final int DEFAULT_ERROR_RATE_PERCENT = 50;
+   public static final int DEFAULT_OPEN_SECONDS = 30;
+
+   /** How many recent posts the error rate is computed over, and how many it needs before it can trip. */
+   static final int WINDOW = 20;
+   static final int MIN_CALLS = 10;
+   private static final long MAX_OPEN_MILLIS = 10 * 60 * 1000;
+
+   public enum State {
+      CLOSED, OPEN, HALF_OPEN
+   }
+
+   private static final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+
+   private static volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+   private static volatile int errorRatePercent = DEFAULT_ERROR_RATE_PERCENT;
+   private static volatile long openMillis = DEFAULT_OPEN_SECONDS * 1000L;
+
+   private final String endpoint;
+   private State state = State.CLOSED;
+   private int consecutiveFailures;
+   private final boolean[] recent = new boolean[WINDOW];
+   private int recentCount;
+   private int recentFailures;
+   private int next;
+   private long currentOpenMillis;
+   private long retryAt;
+   private String lastError;
+
+   CircuitBreaker(String endpoint) {
+      this.endpoint = endpoint;
+   }
+
+   public static void configure(int failures, int errorRate, int openSeconds) {
+      failureThreshold = Math.max(1, failures);
+      errorRatePercent = Math.max(1, Math.min(100, errorRate));
+      openMillis = Math.max(1, openSeconds) * 1000L;
+   }
+
+   /**
+    * The breaker for posts to <code>baseUrl</code> with <code>token</code>. Breakers are kept per full token;
+    * the masked one only names them.
+    */
+   public static CircuitBreaker forEndpoint(String baseUrl, String token) {
+      String key = baseUrl + "\n" + token;
+      CircuitBreaker breaker = breakers.get(key);
+      if(breaker == null) {
+         CircuitBreaker created = new CircuitBreaker(baseUrl + " (token " + mask(token) + ")");
+         breaker = breakers.putIfAbsent(key, created);
+         if(breaker == null) {
+            breaker = created;
+         }
+      }
+      return breaker;
+   }
+
+   /**
+    * Every endpoint posted to so far, by name.
+    */
+   public static List<CircuitBreaker> getAll() {
+      List<CircuitBreaker> all = new ArrayList<CircuitBreaker>(breakers.values());
+      Collections.sort(all, new Comparator<CircuitBreaker>() {
+         public int compare(CircuitBreaker a, CircuitBreaker b) {
+            return a.endpoint.compareTo(b.endpoint);
+         }
+      });
+      return all;
+   }
+
+   /**
+    * Closes every breaker; returns how many were open.
+    */
+   public static int resetAll() {
+      int reset = 0;
+      for(CircuitBreaker breaker : breakers.values()) {
+         if(breaker.reset()) {
+            reset++;
+         }
+      }
+      return reset;
+   }
+
+   /**
+    * Asks to post; returns 0 if the post may go ahead, otherwise the milliseconds until the breaker
+    * lets a probe through. A caller that is allowed must report the outcome.
+    */
+   public long tryAcquire() {
+      return tryAcquire(System.nanoTime());
+   }
+
+   synchronized long tryAcquire(long now) {
+      if(state == State.CLOSED) {
+         return 0;
+      }
+      if(now - retryAt < 0) {
+         return Math.max(1, TimeUnit.NANOSECONDS.toMillis(retryAt - now));
+      }
+      state = State.HALF_OPEN;
+      // Later callers wait for the probe; should it never report back, another one goes after the same time.
+      retryAt = now + TimeUnit.MILLISECONDS.toNanos(currentOpenMillis);
+      return 0;
+   }
+
+   public void recordSuccess() {
+      boolean closed;
+      synchronized(this) {
+         record(false);
+         consecutiveFailures = 0;
+         closed = state != State.CLOSED;
+         if(closed) {
+            close();
+         }
+      }
+      if(closed) {
+         logger.info("HipChat endpoint " + endpoint + " is reachable again, resuming posts");
+      }
+   }
+
+   public void recordFailure(String error) {
+      recordFailure(error, System.nanoTime());
+   }
+
+   void recordFailure(String error, long now) {
+      boolean opened = false;
+      long openFor;
+      synchronized(this) {
+         record(true);
+         consecutiveFailures++;
+         lastError = error;
+         if(state == State.HALF_OPEN) {
+            currentOpenMillis = Math.min(MAX_OPEN_MILLIS, currentOpenMillis * 2);
+            open(now);
+         }
+         else if(state == State.CLOSED && (consecutiveFailures >= failureThreshold
+               || (recentCount >= MIN_CALLS && recentFailures * 100 >= errorRatePercent * recentCount))) {
+            currentOpenMillis = openMillis;
+            open(now);
+            opened = true;
+         }
+         openFor = currentOpenMillis;
+      }
+      if(opened) {
+         logger.warning("HipChat endpoint " + endpoint + " keeps failing (" + error + "), holding posts back for " + openFor + "ms");
+      }
+   }
+
+   /**
+    * Closes the breaker now; returns <code>false</code> if it was closed already.
+    */
+   public synchronized boolean reset() {
+      if(state == State.CLOSED) {
+         return false;
+      }
+      close();
+      return true;
+   }
+
+   private void record(boolean failure) {
+      if(recentCount == WINDOW) {
+         if(recent[next]) {
+            recentFailures--;
+         }
+      }
+      else {
+         recentCount++;
+      }
+      recent[next] = failure;
+      if(failure) {
+         recentFailures++;
+      }
+      next = (next + 1) % WINDOW;
+   }
+
+   private void open(long now) {
+      state = State.OPEN;
+      retryAt = now + TimeUnit.MILLISECONDS.toNanos(currentOpenMillis);
+   }
+
+   private void close() {
+      state = State.CLOSED;
+      consecutiveFailures = 0;
+      recentCount = 0;
+      recentFailures = 0;
+      next = 0;
+   }
+
+   public String getEndpoint() {
+      return endpoint;
+   }
+
+   public synchronized State getState() {
+      return state;
+   }
+
+   public synchronized int getConsecutiveFailures() {
+      return consecutiveFailures;
+   }
+
+   /**
+    * Percentage of the recent posts that failed.
+    */
+   public synchronized int getErrorRatePercent() {
+      return recentCount == 0 ? 0 : recentFailures * 100 / recentCount;
+   }
+
+   /**
+    * Seconds until the next probe, or 0 if the breaker is closed or a probe is due.
+    */
+   public synchronized long getRetryInSeconds() {
+      return state == State.CLOSED ? 0 : Math.max(0, TimeUnit.NANOSECONDS.toSeconds(retryAt - System.nanoTime()));
+   }
+
+   public synchronized String getLastError() {
+      return lastError;
+   }
+
+   private static String mask(String token) {
+      if(token == null || token.length() <= 4) {
+         return "****";
+      }
+      return "..." + token.substring(token.length() - 4);
+   }
+
+   /**
+    * The error of a post that was not attempted because the breaker was open.
+    */
+   public static class OpenException extends Exception {
+      private static final long serialVersionUID = 1L;
+
+      public OpenException(String endpoint) {
+         super("Not posting to " + endpoint + ", it has been failing");
+      }
+   }
+}
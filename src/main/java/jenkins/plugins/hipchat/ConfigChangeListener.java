@@ -0,0 +1,48 @@
+package jenkins.plugins.hipchat;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.AbstractProject;
+import hudson.model.Item;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+
+import java.io.File;
+
+/**
+ * Drops cached {@link ProjectConfig}s when the configuration they were built from changes, and
+ * {@link NotificationHistory}s when their job's directory goes away.
+ */
+@Extension
+public class ConfigChangeListener extends SaveableListener {
+
+   @Override
+   public void onChange(Saveable o, XmlFile file) {
+      if(o instanceof AbstractProject) {
+         ProjectConfig.invalidate(((AbstractProject<?, ?>)o).getFullName());
+      }
+      else if(o instanceof HipChatNotifier.DescriptorImpl) {
+         ProjectConfig.clear();
+      }
+   }
+
+   @Extension
+   public static class Items extends ItemListener {
+      @Override
+      public void onDeleted(Item item) {
+         ProjectConfig.invalidate(item.getFullName());
+         if(item instanceof AbstractProject) {
+            NotificationHistory.forget(((AbstractProject<?, ?>)item).getRootDir());
+         }
+      }
+
+      @Override
+      public void onRenamed(Item item, String oldName, String newName) {
+         ProjectConfig.clear();
+         if(item instanceof AbstractProject) {
+            NotificationHistory.forget(new File(((AbstractProject<?, ?>)item).getRootDir().getParentFile(), oldName));
+         }
+      }
+   }
+}
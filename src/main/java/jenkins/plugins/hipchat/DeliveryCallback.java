@@ -0,0 +1,8 @@
+package jenkins.plugins.hipchat;
+
+/**
+ * Told the final outcome of a post to one room, once any retries are over.
+ */
+public interface DeliveryCallback {
+   void completed(RoomResult result);
+}
@@ -0,0 +1,240 @@
+package jenkins.plugins.hipchat;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Counters and latency histograms along the notification path, from the build listener to the HTTP
+ * post. Recording is cheap enough for every event; {@link MetricsAction} renders them as JSON or in the
+ * Prometheus text format.
+ */
+public final class DeliveryMetrics {
+
+   /**
+    * Caps the number of distinct room/status series; anything beyond is counted under room "other".
+    */
+   private static final int MAX_HTTP_SERIES = 128;
+   private static final String OTHER_ROOM = "other";
+   private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+   static final LatencyHistogram LISTENER = new LatencyHistogram();
+   static final LatencyHistogram ENVIRONMENT = new LatencyHistogram();
+   static final LatencyHistogram EXPANSION = new LatencyHistogram();
+   static final LatencyHistogram QUEUE_WAIT = new LatencyHistogram();
+   static final LatencyHistogram EVENT = new LatencyHistogram();
+
+   static final StripedCounter POSTS = new StripedCounter();
+   static final StripedCounter DELIVERED = new StripedCounter();
+   static final StripedCounter RETRIES = new StripedCounter();
+   static final StripedCounter FAILURES = new StripedCounter();
+   static final StripedCounter DROPPED = new StripedCounter();
+   static final StripedCounter REJECTED = new StripedCounter();
+   static final StripedCounter SUPPRESSED = new StripedCounter();
+   static final StripedCounter EVENTS_INLINE = new StripedCounter();
+   static final StripedCounter SHED = new StripedCounter();
+   static final StripedCounter EXPIRED = new StripedCounter();
+
+   private static final ConcurrentMap<HttpSeries, LatencyHistogram> http = new ConcurrentHashMap<HttpSeries, LatencyHistogram>();
+
+   private DeliveryMetrics() {
+   }
+
+   /**
+    * Records one HTTP post to <code>room</code>; <code>status</code> is -1 if no response was received.
+    */
+   static void recordHttp(String room, int status, long nanos) {
+      POSTS.increment();
+      HttpSeries key = new HttpSeries(room, status);
+      LatencyHistogram histogram = http.get(key);
+      if(histogram == null) {
+         if(http.size() >= MAX_HTTP_SERIES) {
+            key = new HttpSeries(OTHER_ROOM, status);
+            histogram = http.get(key);
+         }
+         if(histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = http.putIfAbsent(key, created);
+            if(histogram == null) {
+               histogram = created;
+            }
+         }
+      }
+      histogram.recordNanos(nanos);
+   }
+
+   /**
+    * Writes all metrics, plus the given point-in-time <code>gauges</code>, as one JSON object. Latencies are in milliseconds.
+    */
+   public static void writeJson(PrintWriter out, Map<String, Long> gauges) {
+      out.print("{\"counters\":{");
+      Map<String, StripedCounter> counters = counters();
+      int i = 0;
+      for(Map.Entry<String, StripedCounter> counter : counters.entrySet()) {
+         out.print(i++ > 0 ? "," : "");
+         out.print(quote(counter.getKey()) + ":" + counter.getValue().get());
+      }
+      out.print("},\"gauges\":{");
+      i = 0;
+      for(Map.Entry<String, Long> gauge : gauges.entrySet()) {
+         out.print(i++ > 0 ? "," : "");
+         out.print(quote(gauge.getKey()) + ":" + gauge.getValue());
+      }
+      out.print("},\"latency\":{");
+      i = 0;
+      for(Map.Entry<String, LatencyHistogram> stage : stages().entrySet()) {
+         out.print(i++ > 0 ? "," : "");
+         out.print(quote(stage.getKey()) + ":");
+         writeJson(out, stage.getValue().snapshot());
+      }
+      out.print("},\"http\":[");
+      i = 0;
+      for(Map.Entry<HttpSeries, LatencyHistogram> series : sortedHttp().entrySet()) {
+         out.print(i++ > 0 ? "," : "");
+         out.print("{\"room\":" + quote(series.getKey().room) + ",\"status\":" + series.getKey().status + ",\"latency\":");
+         writeJson(out, series.getValue().snapshot());
+         out.print("}");
+      }
+      out.print("]}");
+   }
+
+   private static void writeJson(PrintWriter out, LatencyHistogram.Snapshot snapshot) {
+      out.print("{\"count\":" + snapshot.getCount());
+      out.print(",\"sum\":" + millis(snapshot.getSum()));
+      out.print(",\"max\":" + millis(snapshot.getMax()));
+      for(double quantile : QUANTILES) {
+         out.print(",\"p" + quantileName(quantile) + "\":" + millis(snapshot.getValueAtQuantile(quantile)));
+      }
+      out.print("}");
+   }
+
+   /**
+    * Writes all metrics in the Prometheus text exposition format. Latencies are summaries in seconds.
+    */
+   public static void writePrometheus(PrintWriter out, Map<String, Long> gauges) {
+      for(Map.Entry<String, StripedCounter> counter : counters().entrySet()) {
+         String name = "hipchat_" + counter.getKey() + "_total";
+         out.print("# TYPE " + name + " counter\n");
+         out.print(name + " " + counter.getValue().get() + "\n");
+      }
+      for(Map.Entry<String, Long> gauge : gauges.entrySet()) {
+         String name = "hipchat_" + gauge.getKey();
+         out.print("# TYPE " + name + " gauge\n");
+         out.print(name + " " + gauge.getValue() + "\n");
+      }
+      for(Map.Entry<String, LatencyHistogram> stage : stages().entrySet()) {
+         String name = "hipchat_" + stage.getKey() + "_seconds";
+         out.print("# TYPE " + name + " summary\n");
+         writePrometheus(out, name, "", stage.getValue().snapshot());
+      }
+      out.print("# TYPE hipchat_http_request_seconds summary\n");
+      for(Map.Entry<HttpSeries, LatencyHistogram> series : sortedHttp().entrySet()) {
+         String labels = "room=\"" + escapeLabel(series.getKey().room) + "\",status=\"" + series.getKey().status + "\"";
+         writePrometheus(out, "hipchat_http_request_seconds", labels, series.getValue().snapshot());
+      }
+   }
+
+   private static void writePrometheus(PrintWriter out, String name, String labels, LatencyHistogram.Snapshot snapshot) {
+      String prefix = labels.length() == 0 ? "" : labels + ",";
+      for(double quantile : QUANTILES) {
+         out.print(name + "{" + prefix + "quantile=\"" + quantile + "\"} " + seconds(snapshot.getValueAtQuantile(quantile)) + "\n");
+      }
+      String suffix = labels.length() == 0 ? "" : "{" + labels + "}";
+      out.print(name + "_sum" + suffix + " " + seconds(snapshot.getSum()) + "\n");
+      out.print(name + "_count" + suffix + " " + snapshot.getCount() + "\n");
+   }
+
+   private static Map<String, StripedCounter> counters() {
+      Map<String, StripedCounter> counters = new TreeMap<String, StripedCounter>();
+      counters.put("posts", POSTS);
+      counters.put("delivered", DELIVERED);
+      counters.put("retries", RETRIES);
+      counters.put("failures", FAILURES);
+      counters.put("dropped", DROPPED);
+      counters.put("rejected", REJECTED);
+      counters.put("suppressed", SUPPRESSED);
+      counters.put("events_inline", EVENTS_INLINE);
+      counters.put("shed", SHED);
+      counters.put("outbox_expired", EXPIRED);
+      return counters;
+   }
+
+   private static Map<String, LatencyHistogram> stages() {
+      Map<String, LatencyHistogram> stages = new TreeMap<String, LatencyHistogram>();
+      stages.put("listener", LISTENER);
+      stages.put("environment", ENVIRONMENT);
+      stages.put("expansion", EXPANSION);
+      stages.put("queue_wait", QUEUE_WAIT);
+      stages.put("event", EVENT);
+      return stages;
+   }
+
+   private static Map<HttpSeries, LatencyHistogram> sortedHttp() {
+      return new TreeMap<HttpSeries, LatencyHistogram>(http);
+   }
+
+   private static String millis(long micros) {
+      return String.valueOf(micros / 1000.0);
+   }
+
+   private static String seconds(long micros) {
+      return String.valueOf(micros / 1000000.0);
+   }
+
+   private static String quantileName(double quantile) {
+      String digits = String.valueOf(quantile).substring(2);
+      return digits.length() == 1 ? digits + "0" : digits;
+   }
+
+   private static String quote(String value) {
+      StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+      for(int i = 0; i < value.length(); i++) {
+         char c = value.charAt(i);
+         if(c == '"' || c == '\\') {
+            quoted.append('\\').append(c);
+         }
+         else if(c < 0x20) {
+            quoted.append(String.format("\\u%04x", (int)c));
+         }
+         else {
+            quoted.append(c);
+         }
+      }
+      return quoted.append('"').toString();
+   }
+
+   private static String escapeLabel(String value) {
+      return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+   }
+
+   private static final class HttpSeries implements Comparable<HttpSeries> {
+      private final String room;
+      private final int status;
+
+      HttpSeries(String room, int status) {
+         this.room = room == null ? "" : room;
+         this.status = status;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+         if(!(o instanceof HttpSeries)) {
+            return false;
+         }
+         HttpSeries other = (HttpSeries)o;
+         return status == other.status && room.equals(other.room);
+      }
+
+      @Override
+      public int hashCode() {
+         return room.hashCode() * 31 + status;
+      }
+
+      public int compareTo(HttpSeries o) {
+         int c = room.compareTo(o.room);
+         return c != 0 ? c : (status < o.status ? -1 : (status == o.status ? 0 : 1));
+      }
+   }
+}
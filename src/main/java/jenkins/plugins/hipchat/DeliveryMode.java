@@ -0,0 +1,73 @@
+package jenkins.plugins.hipchat;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * What the {@link DeliveryQueue} runs deliveries on.
+ */
+public enum DeliveryMode {
+   PLATFORM("Platform thread pool"),
+   VIRTUAL("Virtual thread per message (Java 21+)");
+
+   private static final Logger logger = Logger.getLogger(DeliveryMode.class.getName());
+
+   private final String displayName;
+
+   DeliveryMode(String displayName) {
+      this.displayName = displayName;
+   }
+
+   public String getDisplayName() {
+      return displayName;
+   }
+
+   /**
+    * Whether this JVM can start virtual threads.
+    */
+   public static boolean isVirtualThreadsAvailable() {
+      return virtualThreadFactory("HipChat probe") != null;
+   }
+
+   /**
+    * A factory for virtual threads named <code>name #n</code>, or <code>null</code> if the JVM has none
+    * (before Java 21, or 19 and 20 without preview features). Looked up reflectively so the plugin still
+    * builds and runs on older JDKs.
+    */
+   static ThreadFactory virtualThreadFactory(String name) {
+      try {
+         Class<?> builder = Class.forName("java.lang.Thread$Builder");
+         Object virtual = Thread.class.getMethod("ofVirtual").invoke(null);
+         virtual = builder.getMethod("name", String.class, long.class).invoke(virtual, name + " #", 1L);
+         return (ThreadFactory)builder.getMethod("factory").invoke(virtual);
+      }
+      catch(ClassNotFoundException e) {
+         return null;
+      }
+      catch(NoSuchMethodException e) {
+         return null;
+      }
+      catch(IllegalAccessException e) {
+         logger.log(Level.FINE, "Virtual threads are not accessible", e);
+         return null;
+      }
+      catch(InvocationTargetException e) {
+         logger.log(Level.FINE, "Virtual threads are not enabled", e.getCause());
+         return null;
+      }
+   }
+
+   public static DeliveryMode parse(String value, DeliveryMode defaultValue) {
+      if(value == null) {
+         return defaultValue;
+      }
+      try {
+         return valueOf(value.trim());
+      }
+      catch(IllegalArgumentException e) {
+         return defaultValue;
+      }
+   }
+}
@@ -0,0 +1,448 @@
+package jenkins.plugins.hipchat;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded in-memory queue of pending HipChat deliveries, drained by a small pool of
+ * daemon worker threads so that build threads only pay for an enqueue.
+ * <p>
+ * In {@link DeliveryMode#VIRTUAL} mode a single dispatcher thread takes deliveries off the queue and
+ * starts each on its own virtual thread, with a semaphore bounding how many run at once; blocking HTTP
+ * calls then cost a parked virtual thread rather than a platform thread each. Without virtual threads
+ * in the JVM, it falls back to the platform pool.
+ * <p>
+ * Deliveries submitted with a key (the resolved room) are also put on one of a fixed set of lanes, picked
+ * by the key's hash. Each lane runs its deliveries one at a time in the order they were submitted, so
+ * that, say, "started" reaches a room before "completed", while other lanes use the remaining workers.
+ * The queued task is then only a token asking a worker to drain the lane; dropping it drops its delivery.
+ */
+public class DeliveryQueue {
+
+   private static final Logger logger = Logger.getLogger(DeliveryQueue.class.getName());
+
+   public static final int DEFAULT_CAPACITY = 1000;
+   public static final int DEFAULT_WORKERS = 2;
+   public static final long DEFAULT_BLOCK_TIMEOUT_MILLIS = 5000;
+   public static final int DEFAULT_VIRTUAL_CONCURRENCY = 256;
+
+   private final int capacity;
+   private final int workers;
+   private final OverflowPolicy overflowPolicy;
+   private final long blockTimeoutMillis;
+   private final DeliveryMode mode;
+   private final ThreadPoolExecutor executor;
+   private final ThreadFactory virtualThreads;
+   private final Semaphore running;
+   private final AtomicLong dropped = new AtomicLong();
+   private final Lane[] lanes;
+
+   public DeliveryQueue(int capacity, int workers, OverflowPolicy overflowPolicy, long blockTimeoutMillis) {
+      this(capacity, workers, overflowPolicy, blockTimeoutMillis, DeliveryMode.PLATFORM);
+   }
+
+   /**
+    * @param workers the number of platform worker threads, or in {@link DeliveryMode#VIRTUAL} mode the
+    *                number of deliveries that may run at once
+    */
+   public DeliveryQueue(int capacity, int workers, OverflowPolicy overflowPolicy, long blockTimeoutMillis, DeliveryMode mode) {
+      this.capacity = Math.max(1, capacity);
+      this.workers = Math.max(1, workers);
+      this.overflowPolicy = overflowPolicy == null ? OverflowPolicy.DROP_OLDEST : overflowPolicy;
+      this.blockTimeoutMillis = Math.max(0, blockTimeoutMillis);
+      ThreadFactory virtual = mode == DeliveryMode.VIRTUAL ? DeliveryMode.virtualThreadFactory("HipChat delivery") : null;
+      if(mode == DeliveryMode.VIRTUAL && virtual == null) {
+         logger.info("Virtual threads are not available in this JVM, delivering HipChat messages on " + this.workers + " platform threads");
+      }
+      this.mode = virtual == null ? DeliveryMode.PLATFORM : DeliveryMode.VIRTUAL;
+      this.virtualThreads = virtual;
+      this.running = virtual == null ? null : new Semaphore(this.workers);
+      int threads = virtual == null ? this.workers : 1;
+      this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(this.capacity), new DaemonThreadFactory(virtual == null ? "HipChat delivery" : "HipChat dispatcher"),
+            new OverflowHandler());
+      this.lanes = new Lane[Math.max(this.workers, Runtime.getRuntime().availableProcessors())];
+      for(int i = 0; i < lanes.length; i++) {
+         lanes[i] = new Lane();
+      }
+   }
+
+   /**
+    * Queues a delivery. Returns <code>false</code> if the task (or, for {@link OverflowPolicy#DROP_OLDEST},
+    * nothing) had to be dropped to respect the capacity.
+    */
+   public boolean submit(Runnable task) {
+      if(!execute(task)) {
+         rejected();
+         return false;
+      }
+      return true;
+   }
+
+   /**
+    * Queues a delivery that runs after, and never alongside, every earlier delivery submitted with the same
+    * <code>key</code>. A <code>null</code> key queues it unordered. Returns <code>false</code> only if the
+    * delivery will not run; one that ran even though its own token was refused counts as accepted.
+    */
+   public boolean submit(Runnable task, String key) {
+      if(key == null) {
+         return submit(task);
+      }
+      Ordered ordered = new Ordered(lanes[laneIndex(key)], task);
+      ordered.lane.offer(ordered);
+      if(!execute(ordered)) {
+         // While the token waited for room, an earlier token draining the lane may have run the delivery already.
+         if(!ordered.claim()) {
+            return true;
+         }
+         rejected();
+         return false;
+      }
+      return true;
+   }
+
+   private boolean execute(Runnable task) {
+      try {
+         executor.execute(virtualThreads == null ? new Enqueued(task) : new Dispatch(new Enqueued(task)));
+         return true;
+      }
+      catch(RejectedExecutionException e) {
+         return false;
+      }
+   }
+
+   private void rejected() {
+      dropped.incrementAndGet();
+      DeliveryMetrics.REJECTED.increment();
+   }
+
+   int laneIndex(String key) {
+      int hash = key.hashCode();
+      hash ^= hash >>> 16;
+      return (hash & Integer.MAX_VALUE) % lanes.length;
+   }
+
+   public int size() {
+      return executor.getQueue().size();
+   }
+
+   public int getCapacity() {
+      return capacity;
+   }
+
+   public int getWorkers() {
+      return workers;
+   }
+
+   /**
+    * The mode deliveries actually run in, which is {@link DeliveryMode#PLATFORM} if virtual threads were asked for but are not available.
+    */
+   public DeliveryMode getMode() {
+      return mode;
+   }
+
+   /**
+    * How many deliveries are running right now.
+    */
+   public int getActiveCount() {
+      return running == null ? executor.getActiveCount() : workers - running.availablePermits();
+   }
+
+   public int getLaneCount() {
+      return lanes.length;
+   }
+
+   /**
+    * The most ordered deliveries waiting on any one lane.
+    */
+   public int getMaxLaneDepth() {
+      int max = 0;
+      for(Lane lane : lanes) {
+         max = Math.max(max, lane.getDepth());
+      }
+      return max;
+   }
+
+   /**
+    * How far the busiest lane is above the average lane depth, in percent: 0 when the waiting deliveries are
+    * spread evenly (or there are none), up to <code>100 * (lanes - 1)</code> when they all wait on one lane.
+    */
+   public int getLaneSkewPercent() {
+      long total = 0;
+      int max = 0;
+      for(Lane lane : lanes) {
+         int depth = lane.getDepth();
+         total += depth;
+         max = Math.max(max, depth);
+      }
+      return total == 0 ? 0 : (int)((max * (long)lanes.length - total) * 100 / total);
+   }
+
+   public OverflowPolicy getOverflowPolicy() {
+      return overflowPolicy;
+   }
+
+   public long getBlockTimeoutMillis() {
+      return blockTimeoutMillis;
+   }
+
+   public long getDropped() {
+      return dropped.get();
+   }
+
+   public boolean isShutdown() {
+      return executor.isShutdown();
+   }
+
+   /**
+    * Stops accepting new deliveries; already queued deliveries still go out in the background.
+    */
+   public void shutdown() {
+      executor.shutdown();
+   }
+
+   /**
+    * Stops accepting new deliveries and waits up to <code>timeoutMillis</code> for the queue to drain.
+    * Anything still queued after that is discarded. Returns <code>true</code> if the queue drained fully.
+    */
+   public boolean drain(long timeoutMillis) {
+      executor.shutdown();
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      try {
+         if(executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)
+               && (running == null || running.tryAcquire(workers, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS))) {
+            if(running != null) {
+               running.release(workers);
+            }
+            return true;
+         }
+      }
+      catch(InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      List<Runnable> abandoned = executor.shutdownNow();
+      for(Runnable task : abandoned) {
+         discard(task);
+      }
+      logger.warning("Gave up draining HipChat delivery queue, " + abandoned.size() + " message(s) not sent");
+      return false;
+   }
+
+   /**
+    * Counts a task as dropped and cancels it, so that anyone waiting on its result is released.
+    */
+   private void discard(Runnable task) {
+      if(task instanceof Dispatch) {
+         task = ((Dispatch)task).task;
+      }
+      if(task instanceof Enqueued) {
+         task = ((Enqueued)task).task;
+      }
+      if(task instanceof Ordered) {
+         Ordered ordered = (Ordered)task;
+         if(!ordered.claim()) {
+            // Its lane already ran it, only the token was left.
+            return;
+         }
+         task = ordered.task;
+      }
+      dropped.incrementAndGet();
+      DeliveryMetrics.DROPPED.increment();
+      if(task instanceof Future) {
+         ((Future<?>)task).cancel(false);
+      }
+   }
+
+   private class OverflowHandler implements RejectedExecutionHandler {
+      public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+         if(executor.isShutdown()) {
+            throw new RejectedExecutionException("HipChat delivery queue is shut down");
+         }
+         BlockingQueue<Runnable> queue = executor.getQueue();
+         switch(overflowPolicy) {
+            case DROP_OLDEST:
+               while(!queue.offer(task)) {
+                  Runnable oldest = queue.poll();
+                  if(oldest != null) {
+                     discard(oldest);
+                  }
+               }
+               return;
+            case BLOCK:
+               try {
+                  if(queue.offer(task, blockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                     return;
+                  }
+               }
+               catch(InterruptedException e) {
+                  Thread.currentThread().interrupt();
+               }
+               throw new RejectedExecutionException("Timed out waiting for space in HipChat delivery queue");
+            default:
+               throw new RejectedExecutionException("HipChat delivery queue is full");
+         }
+      }
+   }
+
+   /**
+    * A queued task, remembering when it was queued to measure how long it waited for a worker.
+    */
+   private static class Enqueued implements Runnable {
+      private final Runnable task;
+      private final long enqueued = System.nanoTime();
+
+      Enqueued(Runnable task) {
+         this.task = task;
+      }
+
+      public void run() {
+         DeliveryMetrics.QUEUE_WAIT.recordNanos(System.nanoTime() - enqueued);
+         task.run();
+      }
+   }
+
+   /**
+    * Deliveries with keys that hash alike, drained by at most one worker at a time. Producers append without
+    * locking; whichever worker wins the <code>draining</code> flag is the single consumer until the lane is empty.
+    */
+   private static final class Lane {
+      private final MpscQueue<Ordered> pending = new MpscQueue<Ordered>();
+      private final AtomicBoolean draining = new AtomicBoolean();
+      /** Deliveries appended and neither run nor dropped yet; counted after appending, so it can dip below 0 briefly. */
+      private final AtomicInteger depth = new AtomicInteger();
+
+      void offer(Ordered ordered) {
+         pending.offer(ordered);
+         depth.incrementAndGet();
+      }
+
+      void drain() {
+         while(draining.compareAndSet(false, true)) {
+            try {
+               Ordered next;
+               while((next = pending.poll()) != null) {
+                  if(next.claim()) {
+                     try {
+                        next.task.run();
+                     }
+                     catch(RuntimeException e) {
+                        logger.log(Level.WARNING, "Unexpected error delivering HipChat message", e);
+                     }
+                  }
+               }
+            }
+            finally {
+               draining.set(false);
+            }
+            // Something appended after the last poll but before the flag was cleared would otherwise wait for the next token.
+            if(depth.get() <= 0) {
+               return;
+            }
+         }
+      }
+
+      int getDepth() {
+         return Math.max(0, depth.get());
+      }
+   }
+
+   /**
+    * A delivery waiting on its lane. The queued token drains the lane; the delivery itself runs or is dropped exactly once.
+    */
+   private static final class Ordered implements Runnable {
+      private final Lane lane;
+      private final Runnable task;
+      private final AtomicBoolean claimed = new AtomicBoolean();
+
+      Ordered(Lane lane, Runnable task) {
+         this.lane = lane;
+         this.task = task;
+      }
+
+      public void run() {
+         lane.drain();
+      }
+
+      boolean claim() {
+         if(claimed.compareAndSet(false, true)) {
+            lane.depth.decrementAndGet();
+            return true;
+         }
+         return false;
+      }
+   }
+
+   /**
+    * Waits for a free slot, then runs the delivery on a new virtual thread.
+    */
+   private class Dispatch implements Runnable {
+      private final Runnable task;
+
+      Dispatch(Runnable task) {
+         this.task = task;
+      }
+
+      public void run() {
+         try {
+            running.acquire();
+         }
+         catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            discard(task);
+            return;
+         }
+         try {
+            virtualThreads.newThread(new Runnable() {
+               public void run() {
+                  try {
+                     task.run();
+                  }
+                  catch(RuntimeException e) {
+                     logger.log(Level.WARNING, "Unexpected error delivering HipChat message", e);
+                  }
+                  finally {
+                     running.release();
+                  }
+               }
+            }).start();
+         }
+         catch(RuntimeException e) {
+            running.release();
+            throw e;
+         }
+      }
+   }
+
+   static class DaemonThreadFactory implements ThreadFactory {
+      private final String name;
+      private final AtomicInteger count = new AtomicInteger();
+
+      DaemonThreadFactory(String name) {
+         this.name = name;
+      }
+
+      public Thread newThread(Runnable r) {
+         Thread thread = new Thread(r, name + " #" + count.incrementAndGet());
+         thread.setDaemon(true);
+         thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            public void uncaughtException(Thread t, Throwable e) {
+               logger.log(Level.WARNING, "Unexpected error in " + t.getName(), e);
+            }
+         });
+         return thread;
+      }
+   }
+}
@@ -0,0 +1,137 @@
+package jenkins.plugins.hipchat;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs build event handlers off the Jenkins threads. {@link HipChatListener} snapshots what an event needs
+ * and hands the rest (resolving rooms, reading the log and test report, rendering) to a small pool of
+ * daemon threads. Each job's events go to the same thread, picked by the job's name, so they are handled in
+ * the order they happened, while a slow job only holds up the jobs that share its thread.
+ * <p>
+ * Events are not dropped for lack of room: when a thread's backlog is full the build thread waits for room,
+ * and an event that arrives while the dispatcher is shut down is handled right away on the build thread.
+ * Only events still queued when a shutdown {@link #drain} gives up are lost.
+ */
+public class EventDispatcher {
+
+   private static final Logger logger = Logger.getLogger(EventDispatcher.class.getName());
+
+   public static final int DEFAULT_CAPACITY = 1000;
+   public static final int DEFAULT_THREADS = 4;
+
+   private static final RejectedExecutionHandler WAIT_FOR_ROOM = new RejectedExecutionHandler() {
+      public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+         if(!executor.isShutdown()) {
+            try {
+               executor.getQueue().put(task);
+               return;
+            }
+            catch(InterruptedException e) {
+               Thread.currentThread().interrupt();
+            }
+         }
+         throw new RejectedExecutionException("HipChat event dispatcher is shut down");
+      }
+   };
+
+   private final ThreadPoolExecutor[] executors;
+
+   /**
+    * @param capacity how many events may wait, in all, before build threads wait for room
+    */
+   public EventDispatcher(int capacity, int threads) {
+      this.executors = new ThreadPoolExecutor[Math.max(1, threads)];
+      int perThread = Math.max(1, capacity / executors.length);
+      DeliveryQueue.DaemonThreadFactory factory = new DeliveryQueue.DaemonThreadFactory("HipChat events");
+      for(int i = 0; i < executors.length; i++) {
+         executors[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(perThread), factory, WAIT_FOR_ROOM);
+      }
+   }
+
+   /**
+    * Queues <code>handler</code> behind the earlier events of the job <code>key</code>. Returns
+    * <code>false</code> if the dispatcher was shut down and the handler ran on the calling thread instead.
+    */
+   public boolean dispatch(String key, final String description, final Runnable handler) {
+      Runnable event = new Runnable() {
+         public void run() {
+            long start = System.nanoTime();
+            try {
+               handler.run();
+            }
+            catch(RuntimeException e) {
+               logger.log(Level.WARNING, "Failed to handle " + description, e);
+            }
+            finally {
+               DeliveryMetrics.EVENT.recordNanos(System.nanoTime() - start);
+            }
+         }
+      };
+      try {
+         executors[index(key)].execute(event);
+         return true;
+      }
+      catch(RejectedExecutionException e) {
+         DeliveryMetrics.EVENTS_INLINE.increment();
+         logger.fine("HipChat event dispatcher is shut down, handling " + description + " on the build thread");
+         event.run();
+         return false;
+      }
+   }
+
+   int index(String key) {
+      int hash = key == null ? 0 : key.hashCode();
+      hash ^= hash >>> 16;
+      return (hash & Integer.MAX_VALUE) % executors.length;
+   }
+
+   public int size() {
+      int size = 0;
+      for(ThreadPoolExecutor executor : executors) {
+         size += executor.getQueue().size();
+      }
+      return size;
+   }
+
+   public int getThreads() {
+      return executors.length;
+   }
+
+   public boolean isShutdown() {
+      return executors[0].isShutdown();
+   }
+
+   /**
+    * Stops accepting events and waits up to <code>timeoutMillis</code> for the queued ones to be handled.
+    */
+   public boolean drain(long timeoutMillis) {
+      for(ThreadPoolExecutor executor : executors) {
+         executor.shutdown();
+      }
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      boolean drained = true;
+      int abandoned = 0;
+      for(ThreadPoolExecutor executor : executors) {
+         try {
+            if(executor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+               continue;
+            }
+         }
+         catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         drained = false;
+         abandoned += executor.shutdownNow().size();
+      }
+      if(!drained) {
+         logger.warning("Gave up handling HipChat build events, " + abandoned + " event(s) not handled");
+      }
+      return drained;
+   }
+}
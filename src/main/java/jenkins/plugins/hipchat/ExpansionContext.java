@@ -0,0 +1,132 @@
+package jenkins.plugins.hipchat;
+
+import hudson.EnvVars;
+import hudson.model.AbstractBuild;
+import hudson.model.Result;
+import hudson.model.TaskListener;
+
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resolves template variables for one build event. Build parameters are checked first since they are
+ * cheap and take precedence in the build environment anyway; the full environment, which may involve
+ * calls to the build's node, is computed at most once and only if a template needs it.
+ * <p>
+ * The build's state is captured when the context is created, on the thread that saw the event, so the
+ * message renders the same when it is put together later on another thread. A context made with
+ * {@link #snapshot} also captures the variables its templates need then.
+ */
+@SuppressWarnings("rawtypes")
+public class ExpansionContext implements MessageTemplate.VariableResolver {
+
+   private static final Logger logger = Logger.getLogger(ExpansionContext.class.getName());
+
+   private final AbstractBuild build;
+   private final TaskListener listener;
+   private final boolean building;
+   private final Result result;
+   private final String durationString;
+   private Map<String, String> buildVariables;
+   private EnvVars env;
+   private boolean envComputed;
+
+   public ExpansionContext(AbstractBuild build, TaskListener listener) {
+      this.build = build;
+      this.listener = listener;
+      this.building = build.isBuilding();
+      this.result = build.getResult();
+      this.durationString = building ? null : build.getDurationString();
+   }
+
+   /**
+    * A context for an event that is handled later on another thread. If any of <code>templates</code>
+    * references a variable, the build variables and environment are read now, while the listener is still
+    * open and the build still holds its executor.
+    */
+   public static ExpansionContext snapshot(AbstractBuild build, TaskListener listener, String... templates) {
+      ExpansionContext context = new ExpansionContext(build, listener);
+      for(String template : templates) {
+         if(template != null && template.length() > 0 && MessageTemplate.compile(template).hasVariables()) {
+            context.capture();
+            break;
+         }
+      }
+      return context;
+   }
+
+   private synchronized void capture() {
+      buildVariables = build.getBuildVariables();
+      getEnvironment();
+   }
+
+   public AbstractBuild getBuild() {
+      return build;
+   }
+
+   public TaskListener getListener() {
+      return listener;
+   }
+
+   /**
+    * Whether the build was still running when the event happened.
+    */
+   public boolean isBuilding() {
+      return building;
+   }
+
+   public Result getResult() {
+      return result;
+   }
+
+   /**
+    * How long the build took, or <code>null</code> if it was still running.
+    */
+   public String getDurationString() {
+      return durationString;
+   }
+
+   public String expand(String template) {
+      if(template == null || template.length() == 0) {
+         return "";
+      }
+      long start = System.nanoTime();
+      try {
+         return MessageTemplate.compile(template).expand(this);
+      }
+      finally {
+         DeliveryMetrics.EXPANSION.recordNanos(System.nanoTime() - start);
+      }
+   }
+
+   @SuppressWarnings("unchecked")
+   public synchronized String resolve(String name) {
+      if(buildVariables == null) {
+         buildVariables = build.getBuildVariables();
+      }
+      String value = buildVariables == null ? null : buildVariables.get(name);
+      if(value != null) {
+         return value;
+      }
+      EnvVars vars = getEnvironment();
+      return vars == null ? null : vars.get(name);
+   }
+
+   private EnvVars getEnvironment() {
+      if(!envComputed) {
+         envComputed = true;
+         long start = System.nanoTime();
+         try {
+            env = build.getEnvironment(listener);
+         }
+         catch(Exception e) {
+            logger.log(Level.WARNING, "Could not resolve environment for build " + build.getProject().getName(), e);
+         }
+         finally {
+            DeliveryMetrics.ENVIRONMENT.recordNanos(System.nanoTime() - start);
+         }
+      }
+      return env;
+   }
+}
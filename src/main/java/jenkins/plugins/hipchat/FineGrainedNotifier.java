@@ -1,12 +1,14 @@
 package jenkins.plugins.hipchat;
 
 import hudson.model.AbstractBuild;
-import hudson.model.TaskListener;
 
+/**
+ * Handles build events. {@link HipChatListener} calls it off the Jenkins threads, with the build's state as
+ * it was when the event happened captured in the {@link ExpansionContext}.
+ */
 public interface FineGrainedNotifier {
 
-   @SuppressWarnings("rawtypes")
-   void started(AbstractBuild r, TaskListener listener);
+   void started(ExpansionContext context);
 
    @SuppressWarnings("rawtypes")
    void deleted(AbstractBuild r);
@@ -14,7 +16,6 @@ public interface FineGrainedNotifier {
    @SuppressWarnings("rawtypes")
    void finalized(AbstractBuild r);
 
-   @SuppressWarnings("rawtypes")
-   void completed(AbstractBuild r, TaskListener listener);
+   void completed(ExpansionContext context);
 
 }
@@ -0,0 +1,75 @@
+package jenkins.plugins.hipchat;
+
+import java.util.logging.Logger;
+
+/**
+ * The global HipChat settings that every notification reads, as one immutable snapshot. The descriptor
+ * publishes a new snapshot through a volatile reference when the configuration is saved, so readers see
+ * settings that belong together without locking, and every job picks up a change right away.
+ */
+public final class GlobalConfig {
+
+   private static final Logger logger = Logger.getLogger(GlobalConfig.class.getName());
+
+   private final String token;
+   private final ApiVersion apiVersion;
+   private final String room;
+   private final String jenkinsUrl;
+   private final String roomsByHostText;
+   private final RoomMapping roomMapping;
+
+   private GlobalConfig(String token, ApiVersion apiVersion, String room, String jenkinsUrl, String roomsByHostText, RoomMapping roomMapping) {
+      this.token = token;
+      this.apiVersion = apiVersion == null ? ApiVersion.V1 : apiVersion;
+      this.room = room;
+      this.jenkinsUrl = jenkinsUrl;
+      this.roomsByHostText = roomsByHostText;
+      this.roomMapping = roomMapping;
+   }
+
+   /**
+    * A snapshot of the given settings, with the room mapping compiled.
+    *
+    * @throws IllegalArgumentException if the room mapping is invalid
+    */
+   public static GlobalConfig of(String token, ApiVersion apiVersion, String room, String jenkinsUrl, String roomsByHostText) {
+      return new GlobalConfig(token, apiVersion, room, jenkinsUrl, roomsByHostText, RoomMapping.parse(roomsByHostText));
+   }
+
+   /**
+    * Like {@link #of}, but an invalid room mapping is logged and treated as empty, for settings that were already saved.
+    */
+   static GlobalConfig lenient(String token, ApiVersion apiVersion, String room, String jenkinsUrl, String roomsByHostText) {
+      try {
+         return of(token, apiVersion, room, jenkinsUrl, roomsByHostText);
+      }
+      catch(IllegalArgumentException e) {
+         logger.warning("Ignoring invalid HipChat room mapping: " + e.getMessage());
+         return new GlobalConfig(token, apiVersion, room, jenkinsUrl, roomsByHostText, RoomMapping.EMPTY);
+      }
+   }
+
+   public String getToken() {
+      return token;
+   }
+
+   public ApiVersion getApiVersion() {
+      return apiVersion;
+   }
+
+   public String getRoom() {
+      return room;
+   }
+
+   public String getJenkinsUrl() {
+      return jenkinsUrl;
+   }
+
+   public String getRoomsByHostText() {
+      return roomsByHostText;
+   }
+
+   public RoomMapping getRoomMapping() {
+      return roomMapping;
+   }
+}
@@ -0,0 +1,51 @@
+package jenkins.plugins.hipchat;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+
+/**
+ * Process-wide {@link HttpClient} backed by a pooled, keep-alive connection manager, so that
+ * repeated posts to HipChat reuse TCP/TLS connections instead of handshaking every time.
+ */
+public final class HipChatHttpClient {
+
+   public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 10;
+   public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 20;
+   public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10 * 1000;
+   public static final int DEFAULT_READ_TIMEOUT_MILLIS = 30 * 1000;
+
+   private static final MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
+   private static final HttpClient client = new HttpClient(connectionManager);
+
+   static {
+      configure(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_MAX_TOTAL_CONNECTIONS, DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS);
+   }
+
+   private HipChatHttpClient() {}
+
+   public static HttpClient get() {
+      return client;
+   }
+
+   /**
+    * Applies new pool limits and timeouts; pooled connections pick them up as they are handed out.
+    */
+   public static void configure(int maxConnectionsPerHost, int maxTotalConnections, int connectTimeoutMillis, int readTimeoutMillis) {
+      HttpConnectionManagerParams params = connectionManager.getParams();
+      params.setDefaultMaxConnectionsPerHost(Math.max(1, maxConnectionsPerHost));
+      params.setMaxTotalConnections(Math.max(1, maxTotalConnections));
+      params.setConnectionTimeout(Math.max(0, connectTimeoutMillis));
+      params.setSoTimeout(Math.max(0, readTimeoutMillis));
+      params.setStaleCheckingEnabled(true);
+      client.getParams().setConnectionManagerTimeout(Math.max(0, connectTimeoutMillis));
+      client.getParams().setSoTimeout(Math.max(0, readTimeoutMillis));
+   }
+
+   /**
+    * Closes pooled connections; called when Jenkins shuts down.
+    */
+   public static void shutdown() {
+      connectionManager.closeIdleConnections(0);
+   }
+}
@@ -1,59 +1,62 @@
 package jenkins.plugins.hipchat;
 
 import hudson.Extension;
-import hudson.model.Descriptor;
 import hudson.model.TaskListener;
 import hudson.model.AbstractBuild;
-import hudson.model.AbstractProject;
 import hudson.model.listeners.RunListener;
-import hudson.tasks.Publisher;
-
-import java.util.Map;
-import java.util.logging.Logger;
 
+/**
+ * Passes build events on to the project's {@link FineGrainedNotifier}. Only what the event needs is captured
+ * here, on the Jenkins thread; the notifier runs later on one of the {@link EventDispatcher}'s threads, so
+ * neither job scheduling nor build teardown waits for HipChat.
+ */
 @Extension
 @SuppressWarnings("rawtypes")
 public class HipChatListener extends RunListener<AbstractBuild> {
 
-   private static final Logger logger = Logger.getLogger(HipChatListener.class.getName());
-
    public HipChatListener() {
       super(AbstractBuild.class);
    }
 
    @Override
-   public void onCompleted(AbstractBuild r, TaskListener listener) {
-      getNotifier(r.getProject()).completed(r, listener);
+   public void onCompleted(final AbstractBuild r, TaskListener listener) {
+      long start = System.nanoTime();
+      try {
+         final ProjectConfig config = ProjectConfig.get(r.getProject());
+         if(config.getNotifier() != null) {
+            final ExpansionContext context = ExpansionContext.snapshot(r, listener, config.getRoom(), config.getCustomMessage());
+            dispatch(config, r, "completion", new Runnable() {
+               public void run() {
+                  // Recorded before the filter decides, as the message may be held back and never rendered.
+                  TestSummary.record(r);
+                  config.getFineGrainedNotifier().completed(context);
+               }
+            });
+         }
+      }
+      finally {
+         DeliveryMetrics.LISTENER.recordNanos(System.nanoTime() - start);
+      }
       super.onCompleted(r, listener);
    }
 
-   @Override
-   public void onStarted(AbstractBuild r, TaskListener listener) {
-      // getNotifier(r.getProject()).started(r);
-      // super.onStarted(r, listener);
-   }
-
-   @Override
-   public void onDeleted(AbstractBuild r) {
-      // getNotifier(r.getProject()).deleted(r);
-      // super.onDeleted(r);
-   }
-
-   @Override
-   public void onFinalized(AbstractBuild r) {
-      // getNotifier(r.getProject()).finalized(r);
-      // super.onFinalized(r);
-   }
-
-   @SuppressWarnings("unchecked")
-   FineGrainedNotifier getNotifier(AbstractProject project) {
-      Map<Descriptor<Publisher>, Publisher> map = project.getPublishersList().toMap();
-      for(Publisher publisher : map.values()) {
-         if(publisher instanceof HipChatNotifier) {
-            return new ActiveNotifier((HipChatNotifier)publisher);
-         }
+   /**
+    * Passes on the start of a build. Called from {@link HipChatNotifier.HipChatJobProperty#prebuild} rather
+    * than {@link #onStarted}, as the change set is only known once the workspace is checked out.
+    */
+   static void started(AbstractBuild r, TaskListener listener) {
+      final ProjectConfig config = ProjectConfig.get(r.getProject());
+      if(config.getNotifier() != null) {
+         final ExpansionContext context = ExpansionContext.snapshot(r, listener, config.getRoom(), config.getCustomMessage());
+         dispatch(config, r, "start", new Runnable() {
+            public void run() {
+               config.getFineGrainedNotifier().started(context);
+            }
+         });
       }
-      return new DisabledNotifier();
    }
 
+   private static void dispatch(ProjectConfig config, AbstractBuild r, String event, Runnable handler) {
+      config.getNotifier().getDescriptor().getEventDispatcher().dispatch(r.getProject().getFullName(), event + " of " + r.getFullDisplayName(), handler);
+   }
 }
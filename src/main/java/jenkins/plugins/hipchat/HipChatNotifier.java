@@ -1,23 +1,27 @@
 package jenkins.plugins.hipchat;
 
-import hudson.EnvVars;
 import hudson.Extension;
 import hudson.Launcher;
+import hudson.model.Action;
 import hudson.model.BuildListener;
-import hudson.model.Descriptor;
 import hudson.model.JobPropertyDescriptor;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.Hudson;
 import hudson.model.Job;
 import hudson.model.TaskListener;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Notifier;
 import hudson.tasks.Publisher;
+import hudson.util.FormValidation;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.sf.json.JSONObject;
@@ -27,9 +31,6 @@ import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.export.Exported;
 
-import static org.apache.commons.lang.StringUtils.chomp;
-import static org.apache.commons.lang.StringUtils.split;
-import static org.apache.commons.lang.StringUtils.strip;
 
 @SuppressWarnings({ "unchecked" })
 public class HipChatNotifier extends Notifier {
@@ -40,22 +41,33 @@ public class HipChatNotifier extends Notifier {
    private String authToken;
    private String room;
    private Map<String, String> roomsByHost;
+   private transient volatile RoomMapping roomMapping;
 
    @Override
    public DescriptorImpl getDescriptor() {
       return (DescriptorImpl)super.getDescriptor();
    }
 
+   /**
+    * The default room: the global one, or for jobs saved before there was one, the job's own copy.
+    */
    public String getRoom() {
-      return room;
+      return orLocal(getDescriptor().getConfig().getRoom(), room);
    }
 
    public String getAuthToken() {
-      return authToken;
+      return orLocal(getDescriptor().getConfig().getToken(), authToken);
    }
 
    public String getJenkinsUrl() {
-      return jenkinsUrl;
+      return orLocal(getDescriptor().getConfig().getJenkinsUrl(), jenkinsUrl);
+   }
+
+   /**
+    * The global setting if there is one, so that a change applies to every job without saving it again.
+    */
+   private static String orLocal(String global, String local) {
+      return StringUtils.isBlank(global) ? local : global;
    }
 
     public Map<String, String> getRoomsByHost() {
@@ -76,6 +88,7 @@ public class HipChatNotifier extends Notifier {
 
     public void setRoomsByHost(Map<String, String> roomsByHost) {
         this.roomsByHost = roomsByHost;
+        this.roomMapping = null;
     }
 
    @DataBoundConstructor
@@ -92,7 +105,11 @@ public class HipChatNotifier extends Notifier {
    }
 
    public HipChatService newHipChatService(String room) {
-      return new StandardHipChatService(getAuthToken(), room == null ? getRoom() : room, "Jenkins");
+      GlobalConfig config = getDescriptor().getConfig();
+      StandardHipChatService service = config.getApiVersion().newService(orLocal(config.getToken(), authToken),
+            room == null ? orLocal(config.getRoom(), this.room) : room, "Jenkins");
+      service.setRetryQueue(getDescriptor().getDeliveryQueue());
+      return new QueuedHipChatService(service, getDescriptor().getDeliveryQueue(), getDescriptor().getOutbox(), getDescriptor().getBatchSender());
    }
    
    @Override
@@ -102,72 +119,599 @@ public class HipChatNotifier extends Notifier {
 
    @Extension
    public static class DescriptorImpl extends BuildStepDescriptor<Publisher> {
+      private static final long SHUTDOWN_DRAIN_MILLIS = 30 * 1000;
+
       private String token;
+      private ApiVersion apiVersion = ApiVersion.V1;
       private String room;
       private String jenkinsUrl;
       private String roomsByHostText;
+      private int queueCapacity = DeliveryQueue.DEFAULT_CAPACITY;
+      private int deliveryThreads = DeliveryQueue.DEFAULT_WORKERS;
+      private DeliveryMode deliveryMode = DeliveryMode.PLATFORM;
+      private int deliveryConcurrency = DeliveryQueue.DEFAULT_VIRTUAL_CONCURRENCY;
+      private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+      private long queueBlockTimeout = DeliveryQueue.DEFAULT_BLOCK_TIMEOUT_MILLIS;
+      private int maxConnectionsPerHost = HipChatHttpClient.DEFAULT_MAX_CONNECTIONS_PER_HOST;
+      private int maxTotalConnections = HipChatHttpClient.DEFAULT_MAX_TOTAL_CONNECTIONS;
+      private int connectTimeout = HipChatHttpClient.DEFAULT_CONNECT_TIMEOUT_MILLIS;
+      private int readTimeout = HipChatHttpClient.DEFAULT_READ_TIMEOUT_MILLIS;
+      private int rateLimitRequests = RateLimiter.DEFAULT_REQUESTS;
+      private int rateLimitPeriod = RateLimiter.DEFAULT_PERIOD_SECONDS;
+      private int maxAttempts = RateLimiter.DEFAULT_MAX_ATTEMPTS;
+      private int breakerFailures = CircuitBreaker.DEFAULT_FAILURE_THRESHOLD;
+      private int breakerErrorRate = CircuitBreaker.DEFAULT_ERROR_RATE_PERCENT;
+      private int breakerOpenSeconds = CircuitBreaker.DEFAULT_OPEN_SECONDS;
+      private int changeFileCap = ChangeSummary.DEFAULT_FILE_CAP;
+      private int changeTopAuthors = ChangeSummary.DEFAULT_TOP_AUTHORS;
+      private int changeTopDirectories = ChangeSummary.DEFAULT_TOP_DIRECTORIES;
+      private int coalesceWindow;
+      private int coalesceMaxMessages = MessageCoalescer.DEFAULT_MAX_MESSAGES;
+      private boolean coalesceBypassFailures = true;
+      private int repeatInterval;
+      private int flapThreshold = NotificationFilter.DEFAULT_FLAP_THRESHOLD;
+      private int excerptLines;
+      private String excerptPattern;
+      private int excerptMaxKb = LogExcerpt.DEFAULT_MAX_KB;
+      private String batchRelayUrl;
+      private int batchMaxMessages = BatchSender.DEFAULT_MAX_MESSAGES;
+      private int batchLinger = BatchSender.DEFAULT_LINGER_MILLIS;
+      private boolean outboxEnabled = true;
+      private long outboxFlushInterval = Outbox.DEFAULT_FLUSH_MILLIS;
+      private transient volatile GlobalConfig config;
+      private transient DeliveryQueue deliveryQueue;
+      private transient EventDispatcher eventDispatcher;
+      private transient Outbox outbox;
+      private transient boolean outboxFailed;
+      private transient MessageCoalescer messageCoalescer;
+      private transient NotificationFilter notificationFilter;
+      private transient LogExcerpt logExcerpt;
+      private transient BatchSender batchSender;
 
       public DescriptorImpl() {
          load();
+         config = GlobalConfig.lenient(token, apiVersion, room, jenkinsUrl, roomsByHostText);
+         configureHttpClient();
+      }
+
+      /**
+       * The current global settings. Read it once and use that snapshot for a whole notification.
+       */
+      public GlobalConfig getConfig() {
+         return config;
       }
 
       public String getToken() {
-         return token;
+         return config.getToken();
       }
 
       public String getRoom() {
-         return room;
+         return config.getRoom();
       }
 
       public String getJenkinsUrl() {
-         return jenkinsUrl;
+         return config.getJenkinsUrl();
       }
 
        public String getRoomsByHostText() {
-           return roomsByHostText;
+           return config.getRoomsByHostText();
        }
 
+      public int getQueueCapacity() {
+         return queueCapacity;
+      }
+
+      public int getDeliveryThreads() {
+         return deliveryThreads;
+      }
+
+      public DeliveryMode getDeliveryMode() {
+         return deliveryMode == null ? DeliveryMode.PLATFORM : deliveryMode;
+      }
+
+      public DeliveryMode[] getDeliveryModes() {
+         return DeliveryMode.values();
+      }
+
+      public boolean isVirtualThreadsAvailable() {
+         return DeliveryMode.isVirtualThreadsAvailable();
+      }
+
+      /**
+       * How many messages may be sent at once in {@link DeliveryMode#VIRTUAL} mode.
+       */
+      public int getDeliveryConcurrency() {
+         return deliveryConcurrency;
+      }
+
+      public OverflowPolicy getOverflowPolicy() {
+         return overflowPolicy;
+      }
+
+      public ApiVersion getApiVersion() {
+         return config.getApiVersion();
+      }
+
+      public ApiVersion[] getApiVersions() {
+         return ApiVersion.values();
+      }
+
+      public OverflowPolicy[] getOverflowPolicies() {
+         return OverflowPolicy.values();
+      }
+
+      public long getQueueBlockTimeout() {
+         return queueBlockTimeout;
+      }
+
+      public int getMaxConnectionsPerHost() {
+         return maxConnectionsPerHost;
+      }
+
+      public int getMaxTotalConnections() {
+         return maxTotalConnections;
+      }
+
+      public int getConnectTimeout() {
+         return connectTimeout;
+      }
+
+      public int getReadTimeout() {
+         return readTimeout;
+      }
+
+      public int getChangeFileCap() {
+         return changeFileCap;
+      }
+
+      public int getChangeTopAuthors() {
+         return changeTopAuthors;
+      }
+
+      public int getChangeTopDirectories() {
+         return changeTopDirectories;
+      }
+
+      /**
+       * Window in seconds during which completion messages for the same room are merged into a digest; 0 disables it.
+       */
+      public int getCoalesceWindow() {
+         return coalesceWindow;
+      }
+
+      public int getCoalesceMaxMessages() {
+         return coalesceMaxMessages;
+      }
+
+      public boolean getCoalesceBypassFailures() {
+         return coalesceBypassFailures;
+      }
+
+      public int getRepeatInterval() {
+         return repeatInterval;
+      }
+
+      public int getFlapThreshold() {
+         return flapThreshold;
+      }
+
+      public synchronized NotificationFilter getNotificationFilter() {
+         if(notificationFilter == null) {
+            notificationFilter = new NotificationFilter(repeatInterval * 60 * 1000L, flapThreshold);
+         }
+         return notificationFilter;
+      }
+
+      /**
+       * How many lines from the end of the console log to quote in failure messages, 0 for none.
+       */
+      public int getExcerptLines() {
+         return excerptLines;
+      }
+
+      /**
+       * A regular expression for the log line to quote instead of the last lines, if one matches.
+       */
+      public String getExcerptPattern() {
+         return excerptPattern;
+      }
+
+      public int getExcerptMaxKb() {
+         return excerptMaxKb;
+      }
+
+      public synchronized LogExcerpt getLogExcerpt() {
+         if(logExcerpt == null) {
+            logExcerpt = new LogExcerpt(excerptLines, excerptPattern, excerptMaxKb * 1024);
+         }
+         return logExcerpt;
+      }
+
+      /**
+       * URL of a relay that takes batches of messages, or blank to post each message to HipChat directly.
+       */
+      public String getBatchRelayUrl() {
+         return batchRelayUrl;
+      }
+
+      public int getBatchMaxMessages() {
+         return batchMaxMessages;
+      }
+
+      public int getBatchLinger() {
+         return batchLinger;
+      }
+
+      /**
+       * Gathers messages into batches for the relay, or <code>null</code> if no relay is configured.
+       */
+      public synchronized BatchSender getBatchSender() {
+         if(StringUtils.isBlank(batchRelayUrl)) {
+            return null;
+         }
+         DeliveryQueue queue = getDeliveryQueue();
+         if(batchSender == null || batchSender.getQueue() != queue) {
+            if(batchSender != null) {
+               batchSender.flushAll();
+            }
+            batchSender = new BatchSender(batchRelayUrl, batchMaxMessages, batchLinger, queue);
+         }
+         return batchSender;
+      }
+
+      public synchronized MessageCoalescer getMessageCoalescer() {
+         if(messageCoalescer == null) {
+            messageCoalescer = new MessageCoalescer(coalesceWindow * 1000L, coalesceMaxMessages, coalesceBypassFailures);
+         }
+         return messageCoalescer;
+      }
+
+      public int getRateLimitRequests() {
+         return rateLimitRequests;
+      }
+
+      public int getRateLimitPeriod() {
+         return rateLimitPeriod;
+      }
+
+      public int getMaxAttempts() {
+         return maxAttempts;
+      }
+
+      public int getBreakerFailures() {
+         return breakerFailures;
+      }
+
+      public int getBreakerErrorRate() {
+         return breakerErrorRate;
+      }
+
+      public int getBreakerOpenSeconds() {
+         return breakerOpenSeconds;
+      }
+
+      /**
+       * The circuit breakers of every endpoint posted to since Jenkins started, for the configuration page.
+       */
+      public List<CircuitBreaker> getCircuitBreakers() {
+         return CircuitBreaker.getAll();
+      }
+
+      /**
+       * Closes every circuit breaker so that posts are tried again right away.
+       */
+      public FormValidation doResetCircuitBreakers() {
+         Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+         int reset = CircuitBreaker.resetAll();
+         return FormValidation.ok(reset == 0 ? "No circuit breaker was open" : "Closed " + reset + " circuit breaker(s)");
+      }
+
+      public boolean getOutboxEnabled() {
+         return outboxEnabled;
+      }
+
+      public long getOutboxFlushInterval() {
+         return outboxFlushInterval;
+      }
+
+      /**
+       * The on-disk outbox under <code>JENKINS_HOME</code>, or <code>null</code> if it is disabled or cannot be opened.
+       */
+      public synchronized Outbox getOutbox() {
+         if(!outboxEnabled || outboxFailed) {
+            return null;
+         }
+         if(outbox == null) {
+            try {
+               outbox = new Outbox(new File(Hudson.getInstance().getRootDir(), "hipchat-outbox"), Outbox.DEFAULT_SEGMENT_SIZE, outboxFlushInterval);
+            }
+            catch(IOException e) {
+               logger.log(Level.WARNING, "Could not open the HipChat outbox, notifications will not survive a restart", e);
+               outboxFailed = true;
+            }
+         }
+         return outbox;
+      }
+
+      /**
+       * Queues the messages that were still undelivered when Jenkins last stopped.
+       */
+      public void replayOutbox() {
+         Outbox box = getOutbox();
+         if(box == null) {
+            return;
+         }
+         Map<String, String> tokens = getTokensByDigest();
+         for(Outbox.Record record : box.getRecovered()) {
+            String token = tokens.get(record.getTokenDigest());
+            if(token == null) {
+               logger.warning("Dropping an undelivered HipChat message for " + record.getRoom() + ", its API token is no longer configured");
+               box.ack(record.getId());
+               continue;
+            }
+            StandardHipChatService service = getApiVersion().newService(token, record.getRoom(), record.getFrom());
+            service.setRetryQueue(getDeliveryQueue());
+            new QueuedHipChatService(service, getDeliveryQueue(), box, getBatchSender()).resend(record);
+         }
+      }
+
+      /**
+       * Every configured API token, the global one and those saved with jobs, by {@link Outbox.Record#digest(String) digest}.
+       */
+      @SuppressWarnings("rawtypes")
+      private Map<String, String> getTokensByDigest() {
+         Map<String, String> tokens = new HashMap<String, String>();
+         tokens.put(Outbox.Record.digest(config.getToken()), config.getToken());
+         for(AbstractProject project : Hudson.getInstance().getAllItems(AbstractProject.class)) {
+            for(Object publisher : project.getPublishersList().toMap().values()) {
+               if(publisher instanceof HipChatNotifier) {
+                  String token = ((HipChatNotifier)publisher).authToken;
+                  tokens.put(Outbox.Record.digest(token), token);
+               }
+            }
+         }
+         return tokens;
+      }
+
+      private void configureHttpClient() {
+         int perHost = maxConnectionsPerHost;
+         if(getDeliveryMode() == DeliveryMode.VIRTUAL) {
+            // A virtual thread waiting for a pooled connection pins its carrier inside the pool's lock,
+            // so give every delivery that may run at once a connection of its own.
+            perHost = Math.max(perHost, deliveryConcurrency);
+         }
+         HipChatHttpClient.configure(perHost, Math.max(maxTotalConnections, perHost), connectTimeout, readTimeout);
+         RateLimiter.configure(rateLimitRequests, rateLimitPeriod, maxAttempts);
+         CircuitBreaker.configure(breakerFailures, breakerErrorRate, breakerOpenSeconds);
+      }
+
+      public synchronized DeliveryQueue getDeliveryQueue() {
+         if(deliveryQueue == null || deliveryQueue.isShutdown()) {
+            deliveryQueue = new DeliveryQueue(queueCapacity, getDeliveryWorkers(), overflowPolicy, queueBlockTimeout, getDeliveryMode());
+         }
+         return deliveryQueue;
+      }
+
+      /**
+       * The delivery queue, or <code>null</code> if none is running; unlike {@link #getDeliveryQueue()}, never starts one.
+       */
+      synchronized DeliveryQueue peekDeliveryQueue() {
+         return deliveryQueue == null || deliveryQueue.isShutdown() ? null : deliveryQueue;
+      }
+
+      /**
+       * The event dispatcher, or <code>null</code> if none is running; never starts one.
+       */
+      synchronized EventDispatcher peekEventDispatcher() {
+         return eventDispatcher == null || eventDispatcher.isShutdown() ? null : eventDispatcher;
+      }
+
+      /**
+       * The outbox, or <code>null</code> if it is not open; never opens it.
+       */
+      synchronized Outbox peekOutbox() {
+         return outbox;
+      }
+
+      public synchronized EventDispatcher getEventDispatcher() {
+         if(eventDispatcher == null || eventDispatcher.isShutdown()) {
+            eventDispatcher = new EventDispatcher(EventDispatcher.DEFAULT_CAPACITY, EventDispatcher.DEFAULT_THREADS);
+         }
+         return eventDispatcher;
+      }
+
+      /**
+       * Waits for pending build events to be handled and queued notifications to go out; called when Jenkins shuts down.
+       */
+      public void shutdownDelivery() {
+         EventDispatcher dispatcher;
+         DeliveryQueue queue;
+         MessageCoalescer coalescer;
+         synchronized(this) {
+            dispatcher = eventDispatcher;
+            eventDispatcher = null;
+         }
+         if(dispatcher != null) {
+            dispatcher.drain(SHUTDOWN_DRAIN_MILLIS);
+         }
+         synchronized(this) {
+            coalescer = messageCoalescer;
+            messageCoalescer = null;
+         }
+         if(coalescer != null) {
+            coalescer.flushAll();
+         }
+         BatchSender batcher;
+         synchronized(this) {
+            batcher = batchSender;
+            batchSender = null;
+         }
+         if(batcher != null) {
+            batcher.flushAll();
+         }
+         synchronized(this) {
+            queue = deliveryQueue;
+            deliveryQueue = null;
+         }
+         if(queue != null) {
+            queue.drain(SHUTDOWN_DRAIN_MILLIS);
+         }
+         ProjectConfig.clear();
+         synchronized(this) {
+            if(outbox != null) {
+               outbox.close();
+               outbox = null;
+            }
+         }
+      }
+
+      private synchronized void reconfigureDelivery() {
+         if(outbox != null && (!outboxEnabled || outbox.getFlushInterval() != outboxFlushInterval)) {
+            outbox.close();
+            outbox = null;
+         }
+         outboxFailed = false;
+         MessageCoalescer coalescer = messageCoalescer;
+         if(coalescer != null && (coalescer.getWindowMillis() != coalesceWindow * 1000L
+               || coalescer.getMaxMessages() != coalesceMaxMessages || coalescer.isBypassFailures() != coalesceBypassFailures)) {
+            messageCoalescer = null;
+            coalescer.flushAll();
+         }
+         BatchSender batcher = batchSender;
+         if(batcher != null && (StringUtils.isBlank(batchRelayUrl) || !batcher.getRelayUrl().equals(batchRelayUrl)
+               || batcher.getMaxMessages() != batchMaxMessages || batcher.getLingerMillis() != batchLinger)) {
+            batchSender = null;
+            batcher.flushAll();
+         }
+         NotificationFilter filter = notificationFilter;
+         if(filter != null && (filter.getIntervalMillis() != repeatInterval * 60 * 1000L || filter.getFlapThreshold() != flapThreshold)) {
+            notificationFilter = null;
+         }
+         logExcerpt = null;
+         DeliveryQueue queue = deliveryQueue;
+         if(queue == null) {
+            return;
+         }
+         if(queue.getCapacity() != queueCapacity || queue.getWorkers() != getDeliveryWorkers()
+               || (queue.getMode() != getDeliveryMode() && DeliveryMode.isVirtualThreadsAvailable())
+               || queue.getOverflowPolicy() != overflowPolicy || queue.getBlockTimeoutMillis() != queueBlockTimeout) {
+            if(batchSender != null) {
+               batchSender.flushAll();
+               batchSender = null;
+            }
+            deliveryQueue = null;
+            queue.shutdown();
+         }
+      }
+
+      private int getDeliveryWorkers() {
+         return getDeliveryMode() == DeliveryMode.VIRTUAL ? deliveryConcurrency : deliveryThreads;
+      }
+
       public boolean isApplicable(Class<? extends AbstractProject> aClass) {
          return true;
       }
 
       @Override
       public HipChatNotifier newInstance(StaplerRequest sr) {
+         GlobalConfig current = config;
+         if(current.getToken() == null || current.getJenkinsUrl() == null || current.getRoom() == null || current.getRoomsByHostText() == null) {
+            current = fillIn(sr);
+         }
+         // The job keeps copies for older versions of the plugin; this one reads the global settings.
+         return new HipChatNotifier(current.getToken(), current.getRoom(), current.getJenkinsUrl(), null);
+      }
+
+      /**
+       * Takes any global setting that was never saved from the job's form instead.
+       */
+      private synchronized GlobalConfig fillIn(StaplerRequest sr) {
          if(token == null) token = sr.getParameter("hipChatToken");
          if(jenkinsUrl == null) jenkinsUrl = sr.getParameter("hipChatJenkinsUrl");
          if(room == null) room = sr.getParameter("hipChatRoom");
          if(roomsByHostText == null) roomsByHostText = sr.getParameter("hipChatRoomsByHostText");
-         return new HipChatNotifier(token, room, jenkinsUrl, createRoomsByHostMap(roomsByHostText));
+         config = GlobalConfig.lenient(token, apiVersion, room, jenkinsUrl, roomsByHostText);
+         return config;
       }
 
       @Override
       public boolean configure(StaplerRequest sr, JSONObject formData) throws FormException {
-         token = sr.getParameter("hipChatToken");
-         room = sr.getParameter("hipChatRoom");
-         jenkinsUrl = sr.getParameter("hipChatJenkinsUrl");
-         if(jenkinsUrl != null && !jenkinsUrl.endsWith("/")) {
-            jenkinsUrl = jenkinsUrl + "/";
+         String url = sr.getParameter("hipChatJenkinsUrl");
+         if(url != null && !url.endsWith("/")) {
+            url = url + "/";
          }
-         roomsByHostText = sr.getParameter("hipChatRoomsByHostText");
+         GlobalConfig updated;
          try {
-            new HipChatNotifier(token, room, jenkinsUrl, createRoomsByHostMap(roomsByHostText));
+            updated = GlobalConfig.of(sr.getParameter("hipChatToken"), ApiVersion.parse(sr.getParameter("hipChatApiVersion"), ApiVersion.V1),
+                  sr.getParameter("hipChatRoom"), url, sr.getParameter("hipChatRoomsByHostText"));
          }
-         catch(Exception e) {
+         catch(IllegalArgumentException e) {
             throw new FormException("Failed to initialize notifier - check your global notifier configuration settings", e, "");
          }
+         token = updated.getToken();
+         apiVersion = updated.getApiVersion();
+         room = updated.getRoom();
+         jenkinsUrl = updated.getJenkinsUrl();
+         roomsByHostText = updated.getRoomsByHostText();
+         config = updated;
+         queueCapacity = parseInt(sr.getParameter("hipChatQueueCapacity"), DeliveryQueue.DEFAULT_CAPACITY);
+         deliveryThreads = parseInt(sr.getParameter("hipChatDeliveryThreads"), DeliveryQueue.DEFAULT_WORKERS);
+         deliveryMode = DeliveryMode.parse(sr.getParameter("hipChatDeliveryMode"), DeliveryMode.PLATFORM);
+         deliveryConcurrency = parseInt(sr.getParameter("hipChatDeliveryConcurrency"), DeliveryQueue.DEFAULT_VIRTUAL_CONCURRENCY);
+         overflowPolicy = OverflowPolicy.parse(sr.getParameter("hipChatOverflowPolicy"), OverflowPolicy.DROP_OLDEST);
+         queueBlockTimeout = parseInt(sr.getParameter("hipChatQueueBlockTimeout"), (int)DeliveryQueue.DEFAULT_BLOCK_TIMEOUT_MILLIS);
+         maxConnectionsPerHost = parseInt(sr.getParameter("hipChatMaxConnectionsPerHost"), HipChatHttpClient.DEFAULT_MAX_CONNECTIONS_PER_HOST);
+         maxTotalConnections = parseInt(sr.getParameter("hipChatMaxTotalConnections"), HipChatHttpClient.DEFAULT_MAX_TOTAL_CONNECTIONS);
+         connectTimeout = parseInt(sr.getParameter("hipChatConnectTimeout"), HipChatHttpClient.DEFAULT_CONNECT_TIMEOUT_MILLIS);
+         readTimeout = parseInt(sr.getParameter("hipChatReadTimeout"), HipChatHttpClient.DEFAULT_READ_TIMEOUT_MILLIS);
+         rateLimitRequests = parseInt(sr.getParameter("hipChatRateLimitRequests"), RateLimiter.DEFAULT_REQUESTS);
+         rateLimitPeriod = parseInt(sr.getParameter("hipChatRateLimitPeriod"), RateLimiter.DEFAULT_PERIOD_SECONDS);
+         maxAttempts = parseInt(sr.getParameter("hipChatMaxAttempts"), RateLimiter.DEFAULT_MAX_ATTEMPTS);
+         breakerFailures = parseInt(sr.getParameter("hipChatBreakerFailures"), CircuitBreaker.DEFAULT_FAILURE_THRESHOLD);
+         breakerErrorRate = parseInt(sr.getParameter("hipChatBreakerErrorRate"), CircuitBreaker.DEFAULT_ERROR_RATE_PERCENT);
+         breakerOpenSeconds = parseInt(sr.getParameter("hipChatBreakerOpenSeconds"), CircuitBreaker.DEFAULT_OPEN_SECONDS);
+         outboxEnabled = sr.getParameter("hipChatOutboxEnabled") != null;
+         outboxFlushInterval = parseInt(sr.getParameter("hipChatOutboxFlushInterval"), (int)Outbox.DEFAULT_FLUSH_MILLIS);
+         changeFileCap = parseInt(sr.getParameter("hipChatChangeFileCap"), ChangeSummary.DEFAULT_FILE_CAP);
+         changeTopAuthors = parseInt(sr.getParameter("hipChatChangeTopAuthors"), ChangeSummary.DEFAULT_TOP_AUTHORS);
+         changeTopDirectories = parseInt(sr.getParameter("hipChatChangeTopDirectories"), ChangeSummary.DEFAULT_TOP_DIRECTORIES);
+         coalesceWindow = parseInt(sr.getParameter("hipChatCoalesceWindow"), 0);
+         coalesceMaxMessages = parseInt(sr.getParameter("hipChatCoalesceMaxMessages"), MessageCoalescer.DEFAULT_MAX_MESSAGES);
+         coalesceBypassFailures = sr.getParameter("hipChatCoalesceBypassFailures") != null;
+         batchRelayUrl = StringUtils.trimToNull(sr.getParameter("hipChatBatchRelayUrl"));
+         batchMaxMessages = parseInt(sr.getParameter("hipChatBatchMaxMessages"), BatchSender.DEFAULT_MAX_MESSAGES);
+         batchLinger = parseInt(sr.getParameter("hipChatBatchLinger"), BatchSender.DEFAULT_LINGER_MILLIS);
+         repeatInterval = parseInt(sr.getParameter("hipChatRepeatInterval"), 0);
+         flapThreshold = parseInt(sr.getParameter("hipChatFlapThreshold"), NotificationFilter.DEFAULT_FLAP_THRESHOLD);
+         excerptLines = parseInt(sr.getParameter("hipChatExcerptLines"), 0);
+         excerptPattern = StringUtils.trimToNull(sr.getParameter("hipChatExcerptPattern"));
+         excerptMaxKb = parseInt(sr.getParameter("hipChatExcerptMaxKb"), LogExcerpt.DEFAULT_MAX_KB);
          save();
+         configureHttpClient();
+         reconfigureDelivery();
+         ProjectConfig.clear();
          return super.configure(sr, formData);
       }
 
-       private Map<String, String> createRoomsByHostMap(String roomsByHostText) {
-           logger.info("Creating rooms by host mapping for\n" + roomsByHostText + "\n");
-           Map<String, String> map = new HashMap<String, String>();
-           for (String hostMapping : roomsByHostText.split("\n")) {
-               map.put(strip(chomp(split(hostMapping, "=")[0])), strip(chomp(split(hostMapping, "=")[1])));
-           }
-           return map;
-       }
-       
+      private static int parseInt(String value, int defaultValue) {
+         if(StringUtils.isBlank(value)) {
+            return defaultValue;
+         }
+         try {
+            return Integer.parseInt(value.trim());
+         }
+         catch(NumberFormatException e) {
+            return defaultValue;
+         }
+      }
+
+      /**
+       * The global room mapping, compiled once from {@link #getRoomsByHostText()}.
+       */
+      public RoomMapping getRoomMapping() {
+         return config.getRoomMapping();
+      }
+
       @Override
       public String getDisplayName() {
          return "HipChat Notifications";
@@ -175,29 +719,44 @@ public class HipChatNotifier extends Notifier {
    }
 
     public String resolveVariables(String message, AbstractBuild build, TaskListener listener) {
+        return resolveVariables(message, new ExpansionContext(build, listener));
+    }
+
+    /**
+     * Expands <code>message</code> using the variables of the build event behind <code>context</code>, which
+     * computes the build environment at most once however many templates are expanded.
+     */
+    public String resolveVariables(String message, ExpansionContext context) {
         if (StringUtils.isBlank(message)) {
             return "";
         }
-
-        try {
-            EnvVars env = build.getEnvironment(listener);
-            return env != null ? env.expand(message) : message;
-        } catch (Exception e) {
-            logger.warning("Could not resolve listener for build " + build.getProject().getName());
-            return message;
-        }
+        return context.expand(message);
     }
 
     public String resolveRoom(String parameter) {
-        for (String host : roomsByHost.keySet()) {
-            if (StringUtils.equals(host, parameter)) {
-                logger.info("Room for " + parameter + " resolved to " + roomsByHost.get(host));
-                return roomsByHost.get(host);
+        return getRoomMapping().resolve(parameter);
+    }
+
+    /**
+     * The global room mapping, unless it is empty and this job still carries its own from before.
+     */
+    private RoomMapping getRoomMapping() {
+        RoomMapping global = getDescriptor().getRoomMapping();
+        if (global != RoomMapping.EMPTY || roomsByHost == null || roomsByHost.isEmpty()) {
+            return global;
+        }
+        RoomMapping mapping = roomMapping;
+        if (mapping == null) {
+            try {
+                mapping = RoomMapping.fromMap(roomsByHost);
+            } catch (IllegalArgumentException e) {
+                logger.warning("Ignoring invalid HipChat room mapping: " + e.getMessage());
+                mapping = RoomMapping.EMPTY;
             }
+            roomMapping = mapping;
         }
-        logger.info("Room id = " + parameter);
-        return parameter;
-   }
+        return mapping;
+    }
 
    public static class HipChatJobProperty extends hudson.model.JobProperty<AbstractProject<?, ?>> {
       private String room;
@@ -216,6 +775,11 @@ public class HipChatNotifier extends Notifier {
          return room;
       }
 
+      @Override
+      public Action getJobAction(AbstractProject<?, ?> job) {
+         return new NotificationHistoryAction(job);
+      }
+
       @Exported
       public boolean getStartNotification() {
          return startNotification;
@@ -226,16 +790,14 @@ public class HipChatNotifier extends Notifier {
            return customMessage;
        }
 
+      /**
+       * Sends the start notification. This runs once the workspace is checked out, so the message can
+       * name the changes the build picked up.
+       */
       @Override
       public boolean prebuild(AbstractBuild<?, ?> build, BuildListener listener) {
          if(startNotification) {
-            Map<Descriptor<Publisher>, Publisher> map = build.getProject().getPublishersList().toMap();
-            for(Publisher publisher : map.values()) {
-               if(publisher instanceof HipChatNotifier) {
-                  logger.info("Invoking Started...");
-                  new ActiveNotifier((HipChatNotifier)publisher).started(build, listener);
-               }
-            }
+            HipChatListener.started(build, listener);
          }
          return super.prebuild(build, listener);
       }
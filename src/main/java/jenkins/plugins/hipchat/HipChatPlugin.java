@@ -0,0 +1,31 @@
+package jenkins.plugins.hipchat;
+
+import hudson.Plugin;
+import hudson.model.Hudson;
+
+/**
+ * Plugin entry point; resends notifications left in the outbox and lets queued ones go out before Jenkins shuts down.
+ */
+public class HipChatPlugin extends Plugin {
+
+   @Override
+   public void postInitialize() throws Exception {
+      Hudson hudson = Hudson.getInstance();
+      HipChatNotifier.DescriptorImpl descriptor = hudson.getDescriptorByType(HipChatNotifier.DescriptorImpl.class);
+      if(descriptor != null) {
+         descriptor.replayOutbox();
+      }
+   }
+
+   @Override
+   public void stop() throws Exception {
+      Hudson hudson = Hudson.getInstance();
+      if(hudson != null) {
+         HipChatNotifier.DescriptorImpl descriptor = hudson.getDescriptorByType(HipChatNotifier.DescriptorImpl.class);
+         if(descriptor != null) {
+            descriptor.shutdownDelivery();
+         }
+      }
+      HipChatHttpClient.shutdown();
+   }
+}
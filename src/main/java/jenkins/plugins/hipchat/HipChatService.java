@@ -1,6 +1,13 @@
 package jenkins.plugins.hipchat;
 
+import java.util.concurrent.Future;
+
 public interface HipChatService {
-   void publish(String message);
-   void publish(String message, String color);
+   PublishResult publish(String message);
+   PublishResult publish(String message, String color);
+
+   /**
+    * Publishes the message and returns a future holding the per-room outcome once every room has been tried.
+    */
+   Future<PublishResult> publishAsync(String message, String color);
 }
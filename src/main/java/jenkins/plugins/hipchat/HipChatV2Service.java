@@ -0,0 +1,126 @@
+package jenkins.plugins.hipchat;
+
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLEncoder;
+
+/**
+ * Posts through the HipChat v2 room notification API, <code>POST /v2/room/{room}/notification</code>,
+ * with a JSON body written straight to the connection and the token sent as a bearer credential rather
+ * than in the URL. Queueing, retries and rate limiting are inherited from
+ * {@link StandardHipChatService}, and posts share the same pooled keep-alive connections.
+ */
+public class HipChatV2Service extends StandardHipChatService {
+
+   public HipChatV2Service(String token, String roomId, String from) {
+      super(token, roomId, from);
+   }
+
+   @Override
+   protected PostMethod createPost(String roomId, String message, String color) {
+      PostMethod post = new PostMethod(getBaseUrl() + "/v2/room/" + encodePathSegment(roomId) + "/notification");
+      post.setRequestHeader("Authorization", "Bearer " + getToken());
+      post.setRequestEntity(new Notification(getFrom(), message, color, shouldNotify(color)));
+      return post;
+   }
+
+   static String encodePathSegment(String value) {
+      try {
+         return URLEncoder.encode(value.trim(), "UTF-8").replace("+", "%20");
+      }
+      catch(UnsupportedEncodingException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   /**
+    * The JSON notification body, encoded as it is written out (chunked) so no intermediate copy of the
+    * message is built.
+    */
+   static class Notification implements RequestEntity {
+      private final String from;
+      private final String message;
+      private final String color;
+      private final boolean notify;
+
+      Notification(String from, String message, String color, boolean notify) {
+         this.from = from;
+         this.message = message;
+         this.color = color;
+         this.notify = notify;
+      }
+
+      public boolean isRepeatable() {
+         return true;
+      }
+
+      public void writeRequest(OutputStream out) throws IOException {
+         Writer writer = new OutputStreamWriter(out, "UTF-8");
+         write(writer);
+         writer.flush();
+      }
+
+      void write(Writer out) throws IOException {
+         out.write("{\"message\":");
+         writeString(out, message);
+         out.write(",\"message_format\":\"html\",\"color\":");
+         writeString(out, color);
+         out.write(",\"notify\":");
+         out.write(notify ? "true" : "false");
+         if(from != null) {
+            out.write(",\"from\":");
+            writeString(out, from);
+         }
+         out.write('}');
+      }
+
+      public long getContentLength() {
+         return -1;
+      }
+
+      public String getContentType() {
+         return "application/json; charset=UTF-8";
+      }
+
+      static void writeString(Writer out, String value) throws IOException {
+         out.write('"');
+         int length = value.length();
+         int literal = 0;
+         for(int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if(c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') {
+               continue;
+            }
+            out.write(value, literal, i - literal);
+            literal = i + 1;
+            switch(c) {
+               case '"':
+                  out.write("\\\"");
+                  break;
+               case '\\':
+                  out.write("\\\\");
+                  break;
+               case '\n':
+                  out.write("\\n");
+                  break;
+               case '\r':
+                  out.write("\\r");
+                  break;
+               case '\t':
+                  out.write("\\t");
+                  break;
+               default:
+                  out.write(String.format("\\u%04x", (int)c));
+            }
+         }
+         out.write(value, literal, length - literal);
+         out.write('"');
+      }
+   }
+}
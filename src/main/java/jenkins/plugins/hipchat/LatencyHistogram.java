@@ -0,0 +1,117 @@
+package jenkins.plugins.hipchat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram in the style of HdrHistogram: values (in microseconds) fall into
+ * log-linear buckets, 32 per power of two, so any percentile is accurate to about 3% from a
+ * microsecond up to a day, in a fixed 8KB of counters. Recording is a couple of atomic adds.
+ */
+final class LatencyHistogram {
+
+   private static final int SUB_BUCKET_BITS = 6;
+   private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+   private static final int HALF = SUB_BUCKETS / 2;
+   private static final long MAX_VALUE = (1L << 37) - 1;
+   static final int BUCKETS = SUB_BUCKETS + (37 - SUB_BUCKET_BITS) * HALF;
+
+   private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+   private final StripedCounter sum = new StripedCounter();
+   private final AtomicLong max = new AtomicLong();
+
+   void recordNanos(long nanos) {
+      record(TimeUnit.NANOSECONDS.toMicros(nanos));
+   }
+
+   void record(long micros) {
+      long value = Math.min(Math.max(0, micros), MAX_VALUE);
+      counts.incrementAndGet(index(value));
+      sum.add(value);
+      long current = max.get();
+      while(value > current && !max.compareAndSet(current, value)) {
+         current = max.get();
+      }
+   }
+
+   /**
+    * A consistent-enough copy of the counts to compute several percentiles from.
+    */
+   Snapshot snapshot() {
+      long[] copy = new long[BUCKETS];
+      long count = 0;
+      for(int i = 0; i < BUCKETS; i++) {
+         copy[i] = counts.get(i);
+         count += copy[i];
+      }
+      return new Snapshot(copy, count, sum.get(), max.get());
+   }
+
+   static int index(long value) {
+      if(value < SUB_BUCKETS) {
+         return (int)value;
+      }
+      int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+      return SUB_BUCKETS + (shift - 1) * HALF + (int)((value >>> shift) - HALF);
+   }
+
+   /**
+    * The largest value that falls into bucket <code>index</code>.
+    */
+   static long highestEquivalent(int index) {
+      if(index < SUB_BUCKETS) {
+         return index;
+      }
+      int shift = (index - SUB_BUCKETS) / HALF + 1;
+      long sub = (index - SUB_BUCKETS) % HALF + HALF;
+      return ((sub + 1) << shift) - 1;
+   }
+
+   static final class Snapshot {
+      private final long[] counts;
+      private final long count;
+      private final long sum;
+      private final long max;
+
+      private Snapshot(long[] counts, long count, long sum, long max) {
+         this.counts = counts;
+         this.count = count;
+         this.sum = sum;
+         this.max = max;
+      }
+
+      long getCount() {
+         return count;
+      }
+
+      /**
+       * Total of all recorded values, in microseconds.
+       */
+      long getSum() {
+         return sum;
+      }
+
+      long getMax() {
+         return max;
+      }
+
+      /**
+       * The value (in microseconds) at or below which <code>quantile</code> (0..1) of the recorded values fall.
+       */
+      long getValueAtQuantile(double quantile) {
+         if(count == 0) {
+            return 0;
+         }
+         long rank = Math.max(1, (long)Math.ceil(quantile * count));
+         long seen = 0;
+         for(int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if(seen >= rank) {
+               return Math.min(highestEquivalent(i), max);
+            }
+         }
+         return max;
+      }
+   }
+}
@@ -0,0 +1,258 @@
+package jenkins.plugins.hipchat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Picks the part of a console log worth quoting in a failure message: the first line matching an error
+ * pattern, or else the last few lines. Logs can be gigabytes, so it never reads from the start: it seeks
+ * back from the end in fixed-size blocks with positional {@link FileChannel} reads, stops once it has
+ * enough lines, and never looks further back than a byte limit. The cost is bounded by the limit, not the
+ * size of the log.
+ * <p>
+ * Lines are cut at {@link #MAX_LINE_CHARS}, and a tail is cut from the top to fit in {@link #MAX_EXCERPT_CHARS},
+ * which leaves most of a HipChat message (at most 10,000 characters, after HTML escaping) for the rest.
+ * <p>
+ * Excerpts are cached per log file, and read again only if the file changed since.
+ */
+public class LogExcerpt {
+
+   private static final Logger logger = Logger.getLogger(LogExcerpt.class.getName());
+
+   public static final int DEFAULT_MAX_KB = 64;
+   static final int BLOCK_SIZE = 8192;
+   static final int MAX_LINE_CHARS = 300;
+   static final int MAX_EXCERPT_CHARS = 2000;
+   private static final String OMITTED = "...";
+   static final int MAX_CACHED = 256;
+
+   private final int lines;
+   private final String errorPattern;
+   private final Pattern compiledPattern;
+   private final int maxBytes;
+   private final Map<String, Cached> cache = new LinkedHashMap<String, Cached>(64, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+         return size() > MAX_CACHED;
+      }
+   };
+
+   /**
+    * @param lines        how many lines to quote from the end of the log, 0 for none
+    * @param errorPattern a regular expression for the line to quote instead, or blank for none
+    * @param maxBytes     how far back from the end of the log to look
+    */
+   public LogExcerpt(int lines, String errorPattern, int maxBytes) {
+      this.lines = Math.max(0, lines);
+      this.errorPattern = errorPattern == null || errorPattern.trim().length() == 0 ? null : errorPattern.trim();
+      this.compiledPattern = compile(this.errorPattern);
+      this.maxBytes = Math.max(BLOCK_SIZE, maxBytes);
+   }
+
+   private static Pattern compile(String regex) {
+      if(regex == null) {
+         return null;
+      }
+      try {
+         return Pattern.compile(regex);
+      }
+      catch(PatternSyntaxException e) {
+         logger.warning("Ignoring invalid HipChat log excerpt pattern: " + e.getMessage());
+         return null;
+      }
+   }
+
+   public boolean isEnabled() {
+      return lines > 0 || compiledPattern != null;
+   }
+
+   public int getLines() {
+      return lines;
+   }
+
+   public String getErrorPattern() {
+      return errorPattern;
+   }
+
+   public int getMaxBytes() {
+      return maxBytes;
+   }
+
+   /**
+    * The excerpt of <code>log</code>, lines separated by <code>\n</code>, or <code>null</code> if there is
+    * nothing to quote or the log can't be read.
+    */
+   public String excerpt(File log, Charset charset) {
+      if(!isEnabled() || log == null) {
+         return null;
+      }
+      String key = log.getAbsolutePath();
+      long length = log.length();
+      long modified = log.lastModified();
+      synchronized(cache) {
+         Cached cached = cache.get(key);
+         if(cached != null && cached.length == length && cached.modified == modified) {
+            return cached.text;
+         }
+      }
+      String text;
+      try {
+         text = read(log, charset == null ? Charset.defaultCharset() : charset);
+      }
+      catch(IOException e) {
+         logger.log(Level.FINE, "Could not read " + log, e);
+         return null;
+      }
+      synchronized(cache) {
+         cache.put(key, new Cached(length, modified, text));
+      }
+      return text;
+   }
+
+   private String read(File log, Charset charset) throws IOException {
+      FileInputStream in = new FileInputStream(log);
+      try {
+         FileChannel channel = in.getChannel();
+         long size = channel.size();
+         if(compiledPattern != null) {
+            String match = firstMatch(channel, size, charset);
+            if(match != null || lines == 0) {
+               return match;
+            }
+         }
+         return tail(channel, size, charset);
+      }
+      finally {
+         in.close();
+      }
+   }
+
+   /**
+    * The first line within the last <code>maxBytes</code> of the log that matches the error pattern.
+    */
+   private String firstMatch(FileChannel channel, long size, Charset charset) throws IOException {
+      long floor = Math.max(0, size - maxBytes);
+      String[] window = split(read(channel, floor, size), floor > 0, charset);
+      for(String line : window) {
+         if(compiledPattern.matcher(line).find()) {
+            return truncate(line);
+         }
+      }
+      return null;
+   }
+
+   /**
+    * The last <code>lines</code> lines of the log, found by scanning back from the end block by block.
+    */
+   private String tail(FileChannel channel, long size, Charset charset) throws IOException {
+      long floor = Math.max(0, size - maxBytes);
+      long start = floor;
+      long position = size;
+      int found = 0;
+      ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+      scan:
+      while(position > floor) {
+         int length = (int)Math.min(BLOCK_SIZE, position - floor);
+         position -= length;
+         block.clear();
+         block.limit(length);
+         readFully(channel, block, position);
+         for(int i = length - 1; i >= 0; i--) {
+            // A newline at the very end only terminates the last line.
+            if(block.get(i) == '\n' && position + i != size - 1 && ++found == lines) {
+               start = position + i + 1;
+               break scan;
+            }
+         }
+      }
+      String[] tail = split(read(channel, start, size), start == floor && floor > 0, charset);
+      if(tail.length == 0) {
+         return null;
+      }
+      // Keep the last lines that fit, with room for a line marking the ones left out.
+      int first = tail.length;
+      int chars = 0;
+      while(first > 0) {
+         int line = truncate(tail[first - 1]).length() + 1;
+         int reserve = first > 1 ? OMITTED.length() + 1 : 0;
+         if(chars + line + reserve > MAX_EXCERPT_CHARS + 1) {
+            break;
+         }
+         chars += line;
+         first--;
+      }
+      StringBuilder text = new StringBuilder(chars + OMITTED.length() + 1);
+      if(first > 0) {
+         text.append(OMITTED);
+      }
+      for(int i = first; i < tail.length; i++) {
+         if(text.length() > 0) {
+            text.append('\n');
+         }
+         text.append(truncate(tail[i]));
+      }
+      return text.toString();
+   }
+
+   private static byte[] read(FileChannel channel, long from, long to) throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocate((int)(to - from));
+      readFully(channel, buffer, from);
+      return buffer.array();
+   }
+
+   private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+      while(buffer.hasRemaining()) {
+         if(channel.read(buffer, position + buffer.position()) < 0) {
+            throw new IOException("Log ended while reading at " + position);
+         }
+      }
+   }
+
+   /**
+    * Splits <code>bytes</code> into lines, leaving out a trailing empty line and, if the bytes start
+    * mid-line, the partial first line.
+    */
+   private static String[] split(byte[] bytes, boolean partialFirstLine, Charset charset) {
+      int offset = 0;
+      if(partialFirstLine) {
+         while(offset < bytes.length && bytes[offset] != '\n') {
+            offset++;
+         }
+         offset++;
+      }
+      if(offset >= bytes.length) {
+         return new String[0];
+      }
+      String text = new String(bytes, offset, bytes.length - offset, charset);
+      if(text.endsWith("\n")) {
+         text = text.substring(0, text.length() - 1);
+      }
+      return text.split("\r?\n", -1);
+   }
+
+   private static String truncate(String line) {
+      return line.length() <= MAX_LINE_CHARS ? line : line.substring(0, MAX_LINE_CHARS) + "...";
+   }
+
+   private static class Cached {
+      private final long length;
+      private final long modified;
+      private final String text;
+
+      Cached(long length, long modified, String text) {
+         this.length = length;
+         this.modified = modified;
+         this.text = text;
+      }
+   }
+}
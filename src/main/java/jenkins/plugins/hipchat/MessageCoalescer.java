@@ -0,0 +1,226 @@
+package jenkins.plugins.hipchat;
+
+import hudson.model.Result;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffers completion messages per room for a short window and sends them as one digest,
+ * so that a storm of downstream builds becomes a handful of posts instead of hundreds.
+ * A digest lists as many of the messages, worst first, as fit in {@link #MAX_DIGEST_CHARS}
+ * and counts the rest.
+ */
+public class MessageCoalescer {
+
+   public static final int DEFAULT_MAX_MESSAGES = 20;
+   /** Well under the 10,000 characters HipChat accepts in one message. */
+   static final int MAX_DIGEST_CHARS = 9000;
+   private static final String BREAK = "<br/>";
+
+   private final long windowMillis;
+   private final int maxMessages;
+   private final boolean bypassFailures;
+   private final Map<String, Batch> batches = new HashMap<String, Batch>();
+   private final ScheduledThreadPoolExecutor timer;
+
+   public MessageCoalescer(long windowMillis, int maxMessages, boolean bypassFailures) {
+      this.windowMillis = windowMillis;
+      this.maxMessages = Math.max(1, maxMessages);
+      this.bypassFailures = bypassFailures;
+      this.timer = new ScheduledThreadPoolExecutor(1, new DeliveryQueue.DaemonThreadFactory("HipChat coalescer"));
+   }
+
+   public boolean isEnabled() {
+      return windowMillis > 0;
+   }
+
+   public long getWindowMillis() {
+      return windowMillis;
+   }
+
+   public int getMaxMessages() {
+      return maxMessages;
+   }
+
+   public boolean isBypassFailures() {
+      return bypassFailures;
+   }
+
+   /**
+    * Publishes the message through <code>service</code>, either right away or as part of a later digest
+    * for every message sent with the same <code>key</code> (the resolved room).
+    */
+   public void publish(String key, HipChatService service, String jobName, Result result, String message, String color) {
+      if(!isEnabled() || timer.isShutdown() || (bypassFailures && result == Result.FAILURE)) {
+         service.publish(message, color);
+         return;
+      }
+      Batch full = null;
+      synchronized(batches) {
+         Batch batch = batches.get(key);
+         if(batch == null) {
+            batch = new Batch(service);
+            batches.put(key, batch);
+            batch.flush = timer.schedule(new Flush(key), windowMillis, TimeUnit.MILLISECONDS);
+         }
+         batch.service = service;
+         batch.entries.add(new Entry(jobName, result, message, color));
+         if(batch.entries.size() >= maxMessages) {
+            batches.remove(key);
+            batch.flush.cancel(false);
+            full = batch;
+         }
+      }
+      if(full != null) {
+         full.send();
+      }
+   }
+
+   /**
+    * Sends every pending digest now and stops buffering.
+    */
+   public void flushAll() {
+      List<Batch> pending;
+      synchronized(batches) {
+         pending = new ArrayList<Batch>(batches.values());
+         batches.clear();
+      }
+      timer.shutdownNow();
+      for(Batch batch : pending) {
+         batch.send();
+      }
+   }
+
+   private class Flush implements Runnable {
+      private final String key;
+
+      Flush(String key) {
+         this.key = key;
+      }
+
+      public void run() {
+         Batch batch;
+         synchronized(batches) {
+            batch = batches.remove(key);
+         }
+         if(batch != null) {
+            batch.send();
+         }
+      }
+   }
+
+   private static class Batch {
+      final List<Entry> entries = new ArrayList<Entry>();
+      HipChatService service;
+      ScheduledFuture<?> flush;
+
+      Batch(HipChatService service) {
+         this.service = service;
+      }
+
+      void send() {
+         if(entries.size() == 1) {
+            Entry entry = entries.get(0);
+            service.publish(entry.message, entry.color);
+         }
+         else {
+            service.publish(digest(entries), worstColor(entries));
+         }
+      }
+   }
+
+   static class Entry {
+      final String jobName;
+      final Result result;
+      final String message;
+      final String color;
+
+      Entry(String jobName, Result result, String message, String color) {
+         this.jobName = jobName;
+         this.result = result;
+         this.message = message;
+         this.color = color;
+      }
+   }
+
+   static String digest(List<Entry> entries) {
+      List<Entry> sorted = new ArrayList<Entry>(entries);
+      Collections.sort(sorted, WORST_FIRST);
+      Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+      for(Entry entry : sorted) {
+         String name = entry.result == null ? "UNKNOWN" : entry.result.toString();
+         Integer count = counts.get(name);
+         counts.put(name, count == null ? 1 : count + 1);
+      }
+      StringBuilder digest = new StringBuilder();
+      digest.append(entries.size()).append(" builds finished: ");
+      boolean first = true;
+      for(Map.Entry<String, Integer> count : counts.entrySet()) {
+         if(!first) {
+            digest.append(", ");
+         }
+         digest.append(count.getValue()).append(' ').append(count.getKey());
+         first = false;
+      }
+      for(int i = 0; i < sorted.size(); i++) {
+         String message = sorted.get(i).message;
+         String more = i + 1 < sorted.size() ? moreText(sorted.size() - i - 1) : "";
+         if(digest.length() + BREAK.length() + message.length() + more.length() > MAX_DIGEST_CHARS) {
+            digest.append(moreText(sorted.size() - i));
+            break;
+         }
+         digest.append(BREAK).append(message);
+      }
+      return digest.toString();
+   }
+
+   private static String moreText(int count) {
+      return BREAK + "... and " + count + " more";
+   }
+
+   static String worstColor(List<Entry> entries) {
+      String worst = null;
+      for(Entry entry : entries) {
+         if(worst == null || colorRank(entry.color) > colorRank(worst)) {
+            worst = entry.color;
+         }
+      }
+      return worst;
+   }
+
+   private static int colorRank(String color) {
+      if("red".equalsIgnoreCase(color)) return 3;
+      if("yellow".equalsIgnoreCase(color)) return 2;
+      if("green".equalsIgnoreCase(color)) return 1;
+      return 0;
+   }
+
+   private static final Comparator<Entry> WORST_FIRST = new Comparator<Entry>() {
+      public int compare(Entry a, Entry b) {
+         int sa = severity(a.result);
+         int sb = severity(b.result);
+         if(sa != sb) {
+            return sb > sa ? 1 : -1;
+         }
+         return a.jobName.compareTo(b.jobName);
+      }
+   };
+
+   private static int severity(Result result) {
+      if(result == Result.FAILURE) return 4;
+      if(result == Result.UNSTABLE) return 3;
+      if(result == Result.ABORTED) return 2;
+      if(result == Result.NOT_BUILT) return 1;
+      if(result == Result.SUCCESS) return 0;
+      return 2;
+   }
+}
@@ -0,0 +1,125 @@
+package jenkins.plugins.hipchat;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Result;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * The parts of a job's notifications that only change with its configuration, put together once: the
+ * link to a build's console up to the build's own URL, and the HTML-escaped project name. Rendering a
+ * message then only appends the per-build pieces. Kept by {@link ProjectConfig}.
+ */
+@SuppressWarnings("rawtypes")
+public final class MessageLayout {
+
+   private static final String[] STATUS = new String[Result.ABORTED.ordinal + 1];
+   private static final String[] COLOR = new String[Result.ABORTED.ordinal + 1];
+
+   static {
+      STATUS[Result.SUCCESS.ordinal] = "Success";
+      STATUS[Result.UNSTABLE.ordinal] = "Unstable";
+      STATUS[Result.FAILURE.ordinal] = "<b>FAILURE</b>";
+      STATUS[Result.NOT_BUILT.ordinal] = "Not built";
+      STATUS[Result.ABORTED.ordinal] = "ABORTED";
+      for(int i = 0; i < COLOR.length; i++) {
+         COLOR[i] = "yellow";
+      }
+      COLOR[Result.SUCCESS.ordinal] = "green";
+      COLOR[Result.FAILURE.ordinal] = "red";
+   }
+
+   private final String linkStart;
+   private final String linkEnd;
+   private final String customMessage;
+
+   public MessageLayout(String jenkinsUrl, String projectName, String customMessage) {
+      this.linkStart = "<a href='" + jenkinsUrl;
+      this.linkEnd = "/console'>" + escape(projectName) + " ";
+      this.customMessage = StringUtils.isBlank(customMessage) ? null : customMessage;
+   }
+
+   /**
+    * Appends <code>&lt;a href='.../console'&gt;project #n&lt;/a&gt; </code> for <code>build</code>.
+    */
+   public void appendLink(StringBuilder out, AbstractBuild build) {
+      out.append(linkStart).append(build.getUrl()).append(linkEnd);
+      escape(out, build.getDisplayName());
+      out.append("</a> ");
+   }
+
+   /**
+    * The job's custom message template, or <code>null</code> if it has none.
+    */
+   public String getCustomMessage() {
+      return customMessage;
+   }
+
+   public static String getStatusMessage(Result result) {
+      if(result == null || result.ordinal < 0 || result.ordinal >= STATUS.length || STATUS[result.ordinal] == null) {
+         return "Unknown";
+      }
+      return STATUS[result.ordinal];
+   }
+
+   public static String getColor(Result result) {
+      if(result == null || result.ordinal < 0 || result.ordinal >= COLOR.length) {
+         return "yellow";
+      }
+      return COLOR[result.ordinal];
+   }
+
+   public static String escape(String text) {
+      if(text == null) {
+         return "";
+      }
+      StringBuilder out = null;
+      int literal = 0;
+      for(int i = 0; i < text.length(); i++) {
+         String entity = entity(text.charAt(i));
+         if(entity != null) {
+            if(out == null) {
+               out = new StringBuilder(text.length() + 16);
+            }
+            out.append(text, literal, i).append(entity);
+            literal = i + 1;
+         }
+      }
+      return out == null ? text : out.append(text, literal, text.length()).toString();
+   }
+
+   /**
+    * Appends <code>text</code> with HTML special characters escaped, in one pass without an intermediate string.
+    */
+   public static void escape(StringBuilder out, String text) {
+      if(text == null) {
+         return;
+      }
+      int literal = 0;
+      for(int i = 0; i < text.length(); i++) {
+         String entity = entity(text.charAt(i));
+         if(entity != null) {
+            out.append(text, literal, i).append(entity);
+            literal = i + 1;
+         }
+      }
+      out.append(text, literal, text.length());
+   }
+
+   private static String entity(char c) {
+      switch(c) {
+         case '&':
+            return "&amp;";
+         case '<':
+            return "&lt;";
+         case '>':
+            return "&gt;";
+         case '"':
+            return "&quot;";
+         case '\'':
+            return "&#39;";
+         default:
+            return null;
+      }
+   }
+}
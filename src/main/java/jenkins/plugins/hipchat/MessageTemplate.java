@@ -0,0 +1,124 @@
+package jenkins.plugins.hipchat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A room or custom message template parsed once into literal and variable tokens, using the same
+ * <code>$VAR</code> / <code>${VAR}</code> syntax as {@link hudson.EnvVars#expand(String)}.
+ * Variables that cannot be resolved are left in place.
+ */
+public final class MessageTemplate {
+
+   private static final int MAX_CACHED = 1024;
+   private static final ConcurrentMap<String, MessageTemplate> cache = new ConcurrentHashMap<String, MessageTemplate>();
+
+   private final String template;
+   private final String[] literals;
+   private final String[] variables;
+   private final String[] references;
+
+   private MessageTemplate(String template, List<String> literals, List<String> variables, List<String> references) {
+      this.template = template;
+      this.literals = literals.toArray(new String[literals.size()]);
+      this.variables = variables.toArray(new String[variables.size()]);
+      this.references = references.toArray(new String[references.size()]);
+   }
+
+   /**
+    * Returns the compiled form of <code>template</code>, reusing an earlier compilation when possible.
+    */
+   public static MessageTemplate compile(String template) {
+      MessageTemplate compiled = cache.get(template);
+      if(compiled == null) {
+         compiled = parse(template);
+         if(cache.size() >= MAX_CACHED) {
+            cache.clear();
+         }
+         cache.put(template, compiled);
+      }
+      return compiled;
+   }
+
+   static MessageTemplate parse(String template) {
+      List<String> literals = new ArrayList<String>();
+      List<String> variables = new ArrayList<String>();
+      List<String> references = new ArrayList<String>();
+      int literalStart = 0;
+      int i = 0;
+      while(i < template.length()) {
+         if(template.charAt(i) != '$' || i + 1 >= template.length()) {
+            i++;
+            continue;
+         }
+         int end;
+         String name;
+         if(template.charAt(i + 1) == '{') {
+            end = i + 2;
+            while(end < template.length() && (isNameChar(template.charAt(end)) || template.charAt(end) == '.')) {
+               end++;
+            }
+            if(end == i + 2 || end >= template.length() || template.charAt(end) != '}') {
+               i++;
+               continue;
+            }
+            name = template.substring(i + 2, end);
+            end++;
+         }
+         else {
+            end = i + 1;
+            while(end < template.length() && isNameChar(template.charAt(end))) {
+               end++;
+            }
+            if(end == i + 1) {
+               i++;
+               continue;
+            }
+            name = template.substring(i + 1, end);
+         }
+         literals.add(template.substring(literalStart, i));
+         variables.add(name);
+         references.add(template.substring(i, end));
+         literalStart = i = end;
+      }
+      literals.add(template.substring(literalStart));
+      return new MessageTemplate(template, literals, variables, references);
+   }
+
+   private static boolean isNameChar(char c) {
+      return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_';
+   }
+
+   public boolean hasVariables() {
+      return variables.length > 0;
+   }
+
+   public String getTemplate() {
+      return template;
+   }
+
+   /**
+    * Expands the template in one pass, asking <code>resolver</code> only for variables it references.
+    */
+   public String expand(VariableResolver resolver) {
+      if(variables.length == 0) {
+         return template;
+      }
+      StringBuilder out = new StringBuilder(template.length() + 16 * variables.length);
+      for(int i = 0; i < variables.length; i++) {
+         out.append(literals[i]);
+         String value = resolver.resolve(variables[i]);
+         out.append(value != null ? value : references[i]);
+      }
+      return out.append(literals[variables.length]).toString();
+   }
+
+   public interface VariableResolver {
+      /**
+       * The value of <code>name</code>, or <code>null</code> if it is not defined.
+       */
+      String resolve(String name);
+   }
+}
@@ -0,0 +1,76 @@
+package jenkins.plugins.hipchat;
+
+import hudson.Extension;
+import hudson.model.Hudson;
+import hudson.model.RootAction;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Serves {@link DeliveryMetrics} at <code>/hipchat-metrics/</code> as JSON, and at
+ * <code>/hipchat-metrics/prometheus</code> in the Prometheus text format.
+ */
+@Extension
+public class MetricsAction implements RootAction {
+
+   public String getIconFileName() {
+      return null;
+   }
+
+   public String getDisplayName() {
+      return "HipChat Metrics";
+   }
+
+   public String getUrlName() {
+      return "hipchat-metrics";
+   }
+
+   public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+      Hudson.getInstance().checkPermission(Hudson.READ);
+      rsp.setContentType("application/json;charset=UTF-8");
+      rsp.setHeader("Cache-Control", "no-cache");
+      PrintWriter out = rsp.getWriter();
+      DeliveryMetrics.writeJson(out, gauges());
+      out.flush();
+   }
+
+   public void doPrometheus(StaplerRequest req, StaplerResponse rsp) throws IOException {
+      Hudson.getInstance().checkPermission(Hudson.READ);
+      rsp.setContentType("text/plain; version=0.0.4;charset=UTF-8");
+      rsp.setHeader("Cache-Control", "no-cache");
+      PrintWriter out = rsp.getWriter();
+      DeliveryMetrics.writePrometheus(out, gauges());
+      out.flush();
+   }
+
+   private Map<String, Long> gauges() {
+      Map<String, Long> gauges = new LinkedHashMap<String, Long>();
+      HipChatNotifier.DescriptorImpl descriptor = Hudson.getInstance().getDescriptorByType(HipChatNotifier.DescriptorImpl.class);
+      if(descriptor != null) {
+         // Only what is already running: a scrape must not start pools or open the outbox.
+         DeliveryQueue queue = descriptor.peekDeliveryQueue();
+         if(queue != null) {
+            gauges.put("queue_depth", (long)queue.size());
+            gauges.put("queue_capacity", (long)queue.getCapacity());
+            gauges.put("deliveries_running", (long)queue.getActiveCount());
+            gauges.put("lane_depth_max", (long)queue.getMaxLaneDepth());
+            gauges.put("lane_skew_percent", (long)queue.getLaneSkewPercent());
+         }
+         EventDispatcher dispatcher = descriptor.peekEventDispatcher();
+         if(dispatcher != null) {
+            gauges.put("event_backlog", (long)dispatcher.size());
+         }
+         Outbox outbox = descriptor.peekOutbox();
+         if(outbox != null) {
+            gauges.put("outbox_pending", (long)outbox.getPendingCount());
+         }
+      }
+      return gauges;
+   }
+}
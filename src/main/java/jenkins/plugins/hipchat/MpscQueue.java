@@ -0,0 +1,58 @@
+package jenkins.plugins.hipchat;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unbounded lock-free queue for many producers and a single consumer: producers swap themselves in at
+ * the tail with one atomic exchange and never wait for each other or for the consumer. Only one thread
+ * at a time may call {@link #poll()}, which callers ensure on their own.
+ * <p>
+ * An element whose producer is between the exchange and the link may briefly be invisible to the consumer;
+ * producers should signal the consumer after {@link #offer(Object)} returns.
+ */
+final class MpscQueue<E> {
+
+   private final AtomicReference<Node<E>> tail;
+   private Node<E> head;
+
+   MpscQueue() {
+      Node<E> stub = new Node<E>(null);
+      head = stub;
+      tail = new AtomicReference<Node<E>>(stub);
+   }
+
+   void offer(E value) {
+      Node<E> node = new Node<E>(value);
+      tail.getAndSet(node).next = node;
+   }
+
+   /**
+    * The oldest element, or <code>null</code> if there is none. Consumer only.
+    */
+   E poll() {
+      Node<E> next = head.next;
+      if(next == null) {
+         return null;
+      }
+      head = next;
+      E value = next.value;
+      next.value = null;
+      return value;
+   }
+
+   /**
+    * Whether there is nothing to poll. Consumer only.
+    */
+   boolean isEmpty() {
+      return head.next == null;
+   }
+
+   private static final class Node<E> {
+      private E value;
+      private volatile Node<E> next;
+
+      Node(E value) {
+         this.value = value;
+      }
+   }
+}
@@ -0,0 +1,208 @@
+package jenkins.plugins.hipchat;
+
+import hudson.model.Result;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps repeated and flapping completion messages out of a room. For each room and job it remembers the
+ * last result and the {@link #fingerprint fingerprint} of the last message in a bounded, least-recently-used
+ * table whose entries expire after a day, and only lets through what changed:
+ * <ul>
+ * <li>a new result (e.g. fixed, or newly failing) is sent right away;</li>
+ * <li>so is the same failing result with a different message, e.g. other failing tests or log excerpt;</li>
+ * <li>the same result and message again is held back, with one "still failing (x7)" reminder per interval;</li>
+ * <li>a job whose result changes a threshold number of times within one interval is flapping: it gets
+ * one notice, then reminders like a repeated result until it keeps one result that many builds in a row.</li>
+ * </ul>
+ */
+public class NotificationFilter {
+
+   public static final int DEFAULT_FLAP_THRESHOLD = 4;
+   static final int MAX_TRACKED = 10000;
+   static final long STATE_TTL_MILLIS = 24 * 60 * 60 * 1000L;
+
+   private final long intervalMillis;
+   private final int flapThreshold;
+   private final Map<String, JobState> states = new LinkedHashMap<String, JobState>(256, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, JobState> eldest) {
+         return size() > MAX_TRACKED;
+      }
+   };
+
+   public NotificationFilter(long intervalMillis, int flapThreshold) {
+      this.intervalMillis = Math.max(0, intervalMillis);
+      this.flapThreshold = Math.max(2, flapThreshold);
+   }
+
+   public boolean isEnabled() {
+      return intervalMillis > 0;
+   }
+
+   public long getIntervalMillis() {
+      return intervalMillis;
+   }
+
+   public int getFlapThreshold() {
+      return flapThreshold;
+   }
+
+   public String check(String room, String job, Result result, long now) {
+      return check(room, job, result, 0, now);
+   }
+
+   /**
+    * Decides whether the completion of <code>job</code> with <code>result</code> should be posted to
+    * <code>room</code>. Returns <code>null</code> to hold the message back, or a note to append to it
+    * (empty if the message goes out as is).
+    *
+    * @param fingerprint the {@link #fingerprint fingerprint} of what the message says beyond the result
+    */
+   public synchronized String check(String room, String job, Result result, long fingerprint, long now) {
+      if(!isEnabled() || result == null) {
+         return "";
+      }
+      String key = room + '\n' + job;
+      JobState state = states.get(key);
+      if(state == null || now - state.touched > STATE_TTL_MILLIS) {
+         expire(now);
+         states.put(key, new JobState(result, fingerprint, now));
+         return "";
+      }
+      return state.next(result, fingerprint, now);
+   }
+
+   /**
+    * Drops the least recently used states that have expired, so they don't linger until the table is full.
+    */
+   private void expire(long now) {
+      Iterator<JobState> eldest = states.values().iterator();
+      while(eldest.hasNext() && now - eldest.next().touched > STATE_TTL_MILLIS) {
+         eldest.remove();
+      }
+   }
+
+   /**
+    * 64-bit FNV-1a hash of <code>text</code> with each run of digits hashed as a single <code>#</code>, so
+    * that build numbers, counts and times don't make otherwise identical messages differ.
+    */
+   public static long fingerprint(String text) {
+      long hash = 0xcbf29ce484222325L;
+      if(text == null) {
+         return hash;
+      }
+      boolean inNumber = false;
+      for(int i = 0; i < text.length(); i++) {
+         char c = text.charAt(i);
+         boolean digit = c >= '0' && c <= '9';
+         if(digit && inNumber) {
+            continue;
+         }
+         inNumber = digit;
+         hash ^= digit ? '#' : c;
+         hash *= 0x100000001b3L;
+      }
+      return hash;
+   }
+
+   synchronized int size() {
+      return states.size();
+   }
+
+   private class JobState {
+      private Result last;
+      private long fingerprint;
+      private int streak = 1;
+      private long lastSent;
+      private long touched;
+      private boolean flapping;
+      private int flaps;
+      /** When the most recent result changes happened, as a ring buffer. */
+      private final long[] changes;
+      private int nextChange;
+
+      JobState(Result result, long fingerprint, long now) {
+         this.last = result;
+         this.fingerprint = fingerprint;
+         this.lastSent = now;
+         this.touched = now;
+         this.changes = new long[flapThreshold];
+         Arrays.fill(changes, Long.MIN_VALUE);
+      }
+
+      String next(Result result, long fingerprint, long now) {
+         touched = now;
+         Result previous = last;
+         boolean reworded = result != Result.SUCCESS && fingerprint != this.fingerprint;
+         last = result;
+         this.fingerprint = fingerprint;
+         if(result != previous) {
+            changes[nextChange] = now;
+            nextChange = (nextChange + 1) % changes.length;
+            streak = 1;
+            flaps++;
+         }
+         else {
+            streak++;
+         }
+         boolean changingFast = changes[nextChange] != Long.MIN_VALUE && now - changes[nextChange] <= intervalMillis;
+         if(flapping || changingFast) {
+            if(!flapping) {
+               flapping = true;
+               flaps = 0;
+               lastSent = now;
+               return " - flapping (" + changes.length + " changes within " + describe(intervalMillis) + ")";
+            }
+            if(!changingFast && streak >= changes.length) {
+               flapping = false;
+               lastSent = now;
+               return " - settled (" + describe(result) + ")";
+            }
+            return remind(now, " - still flapping (x" + flaps + ")");
+         }
+         if(result != previous) {
+            lastSent = now;
+            return result == Result.SUCCESS ? " - fixed" : "";
+         }
+         if(reworded) {
+            streak = 1;
+            lastSent = now;
+            return "";
+         }
+         return remind(now, " - still " + describe(result) + " (x" + streak + ")");
+      }
+
+      private String remind(long now, String note) {
+         if(now - lastSent < intervalMillis) {
+            return null;
+         }
+         lastSent = now;
+         return note;
+      }
+   }
+
+   private static String describe(Result result) {
+      if(result == Result.SUCCESS) {
+         return "passing";
+      }
+      if(result == Result.FAILURE) {
+         return "failing";
+      }
+      if(result == Result.UNSTABLE) {
+         return "unstable";
+      }
+      if(result == Result.ABORTED) {
+         return "aborted";
+      }
+      return "not built";
+   }
+
+   private static String describe(long millis) {
+      long minutes = Math.max(1, millis / 60000);
+      return minutes + (minutes == 1 ? " minute" : " minutes");
+   }
+}
@@ -0,0 +1,380 @@
+package jenkins.plugins.hipchat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * What was sent for one job: the last {@link #DEFAULT_CAPACITY} deliveries, one fixed-size record per room
+ * and message, in a ring-buffer file in the job's directory. Recording a delivery writes its record and
+ * the 8-byte write counter in place, nothing else. The timestamps of all records are kept in memory, so
+ * a query finds its time range by binary search and reads only the records of the page it returns.
+ * <p>
+ * Timestamps never go backwards within a history (a record is stamped no earlier than the one before),
+ * which keeps them sorted for the search.
+ * <p>
+ * Histories are kept by job directory until the job is deleted or renamed ({@link ConfigChangeListener}),
+ * after which the old instance drops what it is still asked to record. The file is opened for each
+ * write rather than held open, so it never keeps Jenkins from moving or deleting the job's directory.
+ */
+public final class NotificationHistory {
+
+   private static final Logger logger = Logger.getLogger(NotificationHistory.class.getName());
+
+   public static final int DEFAULT_CAPACITY = 1000;
+   static final String FILE_NAME = "hipchat-history.bin";
+   static final int RECORD_SIZE = 64;
+   static final int MAX_ROOM_BYTES = 40;
+   private static final int HEADER_SIZE = 16;
+   private static final int MAGIC = 0x48434831;
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+   private static final String[] COLORS = { "yellow", "red", "green", "purple", "gray", "random" };
+
+   private static final ConcurrentMap<String, NotificationHistory> histories = new ConcurrentHashMap<String, NotificationHistory>();
+
+   private final File file;
+   private final int capacity;
+   /** Timestamp of the record in each slot. */
+   private final long[] timestamps;
+   /** How many records were ever written; the next goes into slot <code>written % capacity</code>. */
+   private long written;
+   private boolean retired;
+
+   NotificationHistory(File file, int capacity) {
+      this.file = file;
+      this.capacity = Math.max(1, capacity);
+      this.timestamps = new long[this.capacity];
+      load();
+   }
+
+   /**
+    * The history kept in the directory <code>jobDir</code>.
+    */
+   public static NotificationHistory forJob(File jobDir) {
+      String key = jobDir.getAbsolutePath();
+      NotificationHistory history = histories.get(key);
+      if(history == null) {
+         NotificationHistory created = new NotificationHistory(new File(jobDir, FILE_NAME), DEFAULT_CAPACITY);
+         history = histories.putIfAbsent(key, created);
+         if(history == null) {
+            history = created;
+         }
+      }
+      return history;
+   }
+
+   /**
+    * Stops keeping the history of the job that was in <code>jobDir</code>, as it was deleted or moved.
+    */
+   public static void forget(File jobDir) {
+      NotificationHistory history = histories.remove(jobDir.getAbsolutePath());
+      if(history != null) {
+         history.retire();
+      }
+   }
+
+   private synchronized void retire() {
+      retired = true;
+   }
+
+   /**
+    * Reads the header and the timestamps of an existing file. A file that is missing, of another capacity or
+    * damaged starts the history over.
+    */
+   private void load() {
+      if(!file.exists()) {
+         return;
+      }
+      try {
+         RandomAccessFile raf = new RandomAccessFile(file, "r");
+         try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0);
+            if(header.getInt(0) != MAGIC || header.getInt(4) != capacity || header.getLong(8) < 0) {
+               logger.warning("Starting over the HipChat history in " + file + ", it was written with other settings");
+               return;
+            }
+            long total = header.getLong(8);
+            int count = (int)Math.min(total, capacity);
+            ByteBuffer records = ByteBuffer.allocate(count * RECORD_SIZE);
+            readFully(channel, records, HEADER_SIZE);
+            for(int slot = 0; slot < count; slot++) {
+               timestamps[slot] = records.getLong(slot * RECORD_SIZE);
+            }
+            written = total;
+         }
+         finally {
+            raf.close();
+         }
+      }
+      catch(IOException e) {
+         logger.log(Level.WARNING, "Starting over the HipChat history in " + file, e);
+      }
+   }
+
+   /**
+    * Records the final outcome of posting a message to one room.
+    */
+   public void record(String room, String color, int status, long latencyMillis, long messageHash) {
+      record(System.currentTimeMillis(), room, color, status, latencyMillis, messageHash);
+   }
+
+   synchronized void record(long timestamp, String room, String color, int status, long latencyMillis, long messageHash) {
+      if(retired) {
+         return;
+      }
+      if(written > 0) {
+         timestamp = Math.max(timestamp, timestamps[(int)((written - 1) % capacity)]);
+      }
+      int slot = (int)(written % capacity);
+      ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+      record.putLong(timestamp);
+      record.putLong(messageHash);
+      record.putInt((int)Math.min(Integer.MAX_VALUE, Math.max(0, latencyMillis)));
+      record.putShort((short)status);
+      record.put(colorIndex(color));
+      byte[] roomBytes = truncate(room == null ? "" : room);
+      record.put((byte)roomBytes.length);
+      record.put(roomBytes);
+      record.clear();
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      header.putInt(MAGIC).putInt(capacity).putLong(written + 1).flip();
+      try {
+         RandomAccessFile raf = new RandomAccessFile(file, "rw");
+         try {
+            FileChannel channel = raf.getChannel();
+            writeFully(channel, record, HEADER_SIZE + (long)slot * RECORD_SIZE);
+            writeFully(channel, header, 0);
+         }
+         finally {
+            raf.close();
+         }
+      }
+      catch(IOException e) {
+         logger.log(Level.FINE, "Could not record HipChat delivery in " + file, e);
+         return;
+      }
+      timestamps[slot] = timestamp;
+      written++;
+   }
+
+   /**
+    * How many recorded deliveries fall between <code>from</code> and <code>to</code> (milliseconds since the epoch, inclusive).
+    */
+   public synchronized int count(long from, long to) {
+      return (int)(upperBound(to) - lowerBound(from));
+   }
+
+   /**
+    * Up to <code>limit</code> deliveries between <code>from</code> and <code>to</code> (inclusive), newest
+    * first, skipping the newest <code>offset</code> of them.
+    */
+   public synchronized List<Entry> query(long from, long to, int offset, int limit) {
+      long first = lowerBound(from);
+      long end = upperBound(to) - Math.max(0, offset);
+      long start = Math.max(first, end - Math.max(0, limit));
+      if(start >= end) {
+         return Collections.emptyList();
+      }
+      List<Entry> entries = new ArrayList<Entry>((int)(end - start));
+      try {
+         RandomAccessFile raf = new RandomAccessFile(file, "r");
+         try {
+            FileChannel channel = raf.getChannel();
+            // At most two reads: the range may wrap around the end of the ring.
+            for(long sequence = start; sequence < end; ) {
+               int slot = (int)(sequence % capacity);
+               int run = (int)Math.min(end - sequence, capacity - slot);
+               ByteBuffer records = ByteBuffer.allocate(run * RECORD_SIZE);
+               readFully(channel, records, HEADER_SIZE + (long)slot * RECORD_SIZE);
+               for(int i = 0; i < run; i++) {
+                  entries.add(decode(records, i * RECORD_SIZE));
+               }
+               sequence += run;
+            }
+         }
+         finally {
+            raf.close();
+         }
+      }
+      catch(IOException e) {
+         logger.log(Level.WARNING, "Could not read the HipChat history in " + file, e);
+         return Collections.emptyList();
+      }
+      Collections.reverse(entries);
+      return entries;
+   }
+
+   public synchronized int size() {
+      return (int)Math.min(written, capacity);
+   }
+
+   /**
+    * The first sequence number, among those still kept, stamped at or after <code>from</code>.
+    */
+   private long lowerBound(long from) {
+      long low = Math.max(0, written - capacity);
+      long high = written;
+      while(low < high) {
+         long middle = (low + high) >>> 1;
+         if(timestamps[(int)(middle % capacity)] < from) {
+            low = middle + 1;
+         }
+         else {
+            high = middle;
+         }
+      }
+      return low;
+   }
+
+   /**
+    * The first sequence number, among those still kept, stamped after <code>to</code>.
+    */
+   private long upperBound(long to) {
+      long low = Math.max(0, written - capacity);
+      long high = written;
+      while(low < high) {
+         long middle = (low + high) >>> 1;
+         if(timestamps[(int)(middle % capacity)] <= to) {
+            low = middle + 1;
+         }
+         else {
+            high = middle;
+         }
+      }
+      return low;
+   }
+
+   private static Entry decode(ByteBuffer records, int offset) {
+      long timestamp = records.getLong(offset);
+      long hash = records.getLong(offset + 8);
+      int latency = records.getInt(offset + 16);
+      int status = records.getShort(offset + 20);
+      int color = records.get(offset + 22);
+      int roomLength = Math.min(MAX_ROOM_BYTES, records.get(offset + 23) & 0xff);
+      byte[] room = new byte[roomLength];
+      for(int i = 0; i < roomLength; i++) {
+         room[i] = records.get(offset + 24 + i);
+      }
+      return new Entry(timestamp, new String(room, UTF8), color >= 0 && color < COLORS.length ? COLORS[color] : null, status, latency, hash);
+   }
+
+   private static byte colorIndex(String color) {
+      for(int i = 0; i < COLORS.length; i++) {
+         if(COLORS[i].equalsIgnoreCase(color)) {
+            return (byte)i;
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * The UTF-8 bytes of <code>room</code>, cut at a character boundary to fit a record.
+    */
+   private static byte[] truncate(String room) {
+      byte[] bytes = room.getBytes(UTF8);
+      int length = room.length();
+      while(bytes.length > MAX_ROOM_BYTES) {
+         bytes = room.substring(0, --length).getBytes(UTF8);
+      }
+      return bytes;
+   }
+
+   /**
+    * 64-bit FNV-1a hash of a message, enough to tell whether two deliveries carried the same text.
+    */
+   public static long hash(String message) {
+      return TestSummary.fingerprint(message == null ? "" : message);
+   }
+
+   private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+      while(buffer.hasRemaining()) {
+         if(channel.read(buffer, position + buffer.position()) < 0) {
+            throw new IOException("Unexpected end of file at " + (position + buffer.position()));
+         }
+      }
+   }
+
+   private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+      while(buffer.hasRemaining()) {
+         channel.write(buffer, position + buffer.position());
+      }
+   }
+
+   /**
+    * One recorded delivery.
+    */
+   @ExportedBean
+   public static final class Entry {
+      private final long timestamp;
+      private final String room;
+      private final String color;
+      private final int status;
+      private final int latencyMillis;
+      private final long messageHash;
+
+      Entry(long timestamp, String room, String color, int status, int latencyMillis, long messageHash) {
+         this.timestamp = timestamp;
+         this.room = room;
+         this.color = color;
+         this.status = status;
+         this.latencyMillis = latencyMillis;
+         this.messageHash = messageHash;
+      }
+
+      @Exported
+      public long getTimestamp() {
+         return timestamp;
+      }
+
+      public Date getTime() {
+         return new Date(timestamp);
+      }
+
+      @Exported
+      public String getRoom() {
+         return room;
+      }
+
+      @Exported
+      public String getColor() {
+         return color;
+      }
+
+      /**
+       * HTTP status returned by HipChat, or -1 if no response was received.
+       */
+      @Exported
+      public int getStatus() {
+         return status;
+      }
+
+      @Exported
+      public int getLatencyMillis() {
+         return latencyMillis;
+      }
+
+      /**
+       * {@link NotificationHistory#hash(String) Hash} of the message, in hex.
+       */
+      @Exported
+      public String getMessageHash() {
+         return Long.toHexString(messageHash);
+      }
+   }
+}
@@ -0,0 +1,90 @@
+package jenkins.plugins.hipchat;
+
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.Api;
+import hudson.model.Item;
+
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.Stapler;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Shows a job's {@link NotificationHistory} at <code>job/NAME/hipchat-history/</code>, and serves it through
+ * the remote API, e.g. <code>hipchat-history/api/json?from=1357000000000&amp;offset=50&amp;limit=50</code>.
+ * <code>from</code> and <code>to</code> are milliseconds since the epoch; entries come newest first.
+ */
+@ExportedBean
+@SuppressWarnings("rawtypes")
+public class NotificationHistoryAction implements Action {
+
+   public static final int DEFAULT_LIMIT = 50;
+   public static final int MAX_LIMIT = 500;
+
+   private final AbstractProject job;
+
+   public NotificationHistoryAction(AbstractProject job) {
+      this.job = job;
+   }
+
+   public String getIconFileName() {
+      return "notepad.gif";
+   }
+
+   public String getDisplayName() {
+      return "HipChat History";
+   }
+
+   public String getUrlName() {
+      return "hipchat-history";
+   }
+
+   public AbstractProject getJob() {
+      return job;
+   }
+
+   public Api getApi() {
+      return new Api(this);
+   }
+
+   private NotificationHistory getHistory() {
+      job.checkPermission(Item.READ);
+      return NotificationHistory.forJob(job.getRootDir());
+   }
+
+   /**
+    * How many deliveries match the request's time range.
+    */
+   @Exported
+   public int getTotal() {
+      return getHistory().count(param("from", Long.MIN_VALUE), param("to", Long.MAX_VALUE));
+   }
+
+   /**
+    * The requested page of deliveries.
+    */
+   @Exported
+   public List<NotificationHistory.Entry> getEntries() {
+      int offset = (int)Math.max(0, param("offset", 0));
+      int limit = (int)Math.max(0, Math.min(MAX_LIMIT, param("limit", DEFAULT_LIMIT)));
+      return getHistory().query(param("from", Long.MIN_VALUE), param("to", Long.MAX_VALUE), offset, limit);
+   }
+
+   private static long param(String name, long defaultValue) {
+      StaplerRequest request = Stapler.getCurrentRequest();
+      String value = request == null ? null : request.getParameter(name);
+      if(StringUtils.isBlank(value)) {
+         return defaultValue;
+      }
+      try {
+         return Long.parseLong(value.trim());
+      }
+      catch(NumberFormatException e) {
+         return defaultValue;
+      }
+   }
+}
@@ -0,0 +1,546 @@
+package jenkins.plugins.hipchat;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only, memory-mapped log of notifications that have been accepted but not yet delivered,
+ * so that they survive a Jenkins restart or a HipChat outage.
+ * <p>
+ * The log is split into fixed-size segment files. Each record is
+ * <code>[int length][byte state][payload]</code>; a length of 0 marks the end of a segment's data.
+ * Delivering a record flips its state byte in place. Writes go to the mapped pages and are forced
+ * to disk in batches by a background thread, and a segment is unmapped and deleted once every record
+ * in it has been delivered.
+ * <p>
+ * Each record carries the time it was stored and how many times it has been recovered. A record that
+ * is older than the maximum age, or has already been resent after that many restarts without being
+ * delivered, is dropped on recovery rather than resent forever.
+ * <p>
+ * The API token is not written to disk, only a SHA-256 digest of it; recovered records carry the digest,
+ * and the caller resends them with whichever configured token matches it.
+ */
+public class Outbox {
+
+   private static final Logger logger = Logger.getLogger(Outbox.class.getName());
+
+   public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+   public static final long DEFAULT_FLUSH_MILLIS = 1000;
+   public static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+   public static final int DEFAULT_MAX_REPLAYS = 5;
+
+   private static final byte PENDING = 0;
+   private static final byte DONE = 1;
+   private static final byte FORMAT = 1;
+   private static final int REPLAYS = 9;
+   private static final int HEADER = 5;
+   private static final String PREFIX = "segment-";
+   private static final String SUFFIX = ".log";
+
+   private final File dir;
+   private final int segmentSize;
+   private final long flushMillis;
+   private final long maxAgeMillis;
+   private final int maxReplays;
+   private final ConcurrentMap<Integer, Segment> segments = new ConcurrentHashMap<Integer, Segment>();
+   private final List<Record> recovered;
+   private final ScheduledThreadPoolExecutor flusher;
+   private Segment active;
+   private int nextSeq = 1;
+   private volatile boolean closed;
+
+   public Outbox(File dir, int segmentSize, long flushMillis) throws IOException {
+      this(dir, segmentSize, flushMillis, DEFAULT_MAX_AGE_MILLIS, DEFAULT_MAX_REPLAYS);
+   }
+
+   /**
+    * @param maxAgeMillis how old a record may be and still be resent after a restart
+    * @param maxReplays how many restarts a record may be resent after before it is dropped
+    */
+   public Outbox(File dir, int segmentSize, long flushMillis, long maxAgeMillis, int maxReplays) throws IOException {
+      this.dir = dir;
+      this.segmentSize = Math.max(64 * 1024, segmentSize);
+      this.flushMillis = flushMillis;
+      this.maxAgeMillis = maxAgeMillis;
+      this.maxReplays = Math.max(1, Math.min(Byte.MAX_VALUE, maxReplays));
+      if(!dir.isDirectory() && !dir.mkdirs()) {
+         throw new IOException("Could not create " + dir);
+      }
+      this.recovered = Collections.unmodifiableList(recover());
+      this.flusher = new ScheduledThreadPoolExecutor(1, new DeliveryQueue.DaemonThreadFactory("HipChat outbox flush"));
+      flusher.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            flush();
+         }
+      }, flushMillis, Math.max(1, flushMillis), TimeUnit.MILLISECONDS);
+   }
+
+   public long getFlushInterval() {
+      return flushMillis;
+   }
+
+   /**
+    * Records that were still pending when the outbox was opened, oldest first, without the expired ones.
+    */
+   public List<Record> getRecovered() {
+      return recovered;
+   }
+
+   /**
+    * Stores a notification and returns its id, or -1 if it could not be stored (it should still be sent).
+    */
+   public long append(Record record) {
+      byte[] payload;
+      try {
+         payload = record.encode();
+      }
+      catch(UnsupportedEncodingException e) {
+         throw new AssertionError(e);
+      }
+      int size = HEADER + payload.length;
+      if(size + 4 > segmentSize) {
+         logger.warning("HipChat message too large for the outbox (" + payload.length + " bytes), sending without it");
+         return -1;
+      }
+      synchronized(this) {
+         if(closed) {
+            return -1;
+         }
+         try {
+            if(active == null || active.position + size + 4 > segmentSize) {
+               roll();
+            }
+         }
+         catch(IOException e) {
+            logger.log(Level.WARNING, "Could not open a new HipChat outbox segment", e);
+            return -1;
+         }
+         Segment segment = active;
+         int offset = segment.position;
+         ByteBuffer buffer = segment.buffer;
+         ByteBuffer body = buffer.duplicate();
+         body.position(offset + HEADER);
+         body.put(payload);
+         buffer.put(offset + 4, PENDING);
+         buffer.putInt(offset, payload.length);
+         segment.position += size;
+         segment.pending++;
+         segment.dirty = true;
+         return id(segment.seq, offset);
+      }
+   }
+
+   /**
+    * Marks a record as delivered; its segment is deleted once nothing in it is pending.
+    */
+   public void ack(long id) {
+      if(id < 0) {
+         return;
+      }
+      Segment segment = segments.get((int)(id >>> 32));
+      if(segment == null) {
+         return;
+      }
+      int offset = (int)id;
+      synchronized(this) {
+         if(closed || segment.released || segment.buffer.get(offset + 4) == DONE) {
+            return;
+         }
+         segment.buffer.put(offset + 4, DONE);
+         segment.dirty = true;
+         segment.pending--;
+         if(segment.pending <= 0 && segment != active) {
+            delete(segment);
+         }
+      }
+   }
+
+   public synchronized int getPendingCount() {
+      int pending = 0;
+      for(Segment segment : segments.values()) {
+         pending += segment.pending;
+      }
+      return pending;
+   }
+
+   /**
+    * Forces dirty segments to disk.
+    */
+   public void flush() {
+      List<Segment> dirty = new ArrayList<Segment>();
+      synchronized(this) {
+         for(Segment segment : segments.values()) {
+            if(segment.dirty) {
+               segment.dirty = false;
+               dirty.add(segment);
+            }
+         }
+      }
+      for(Segment segment : dirty) {
+         segment.force();
+      }
+   }
+
+   public void close() {
+      flusher.shutdownNow();
+      flush();
+      synchronized(this) {
+         closed = true;
+         for(Segment segment : segments.values()) {
+            segment.close();
+         }
+         segments.clear();
+         active = null;
+      }
+   }
+
+   private void roll() throws IOException {
+      Segment previous = active;
+      int seq = nextSeq++;
+      active = Segment.open(new File(dir, PREFIX + seq + SUFFIX), seq, segmentSize);
+      segments.put(seq, active);
+      if(previous != null && previous.pending <= 0) {
+         delete(previous);
+      }
+   }
+
+   private void delete(Segment segment) {
+      segments.remove(segment.seq);
+      segment.close();
+      if(!segment.file.delete()) {
+         logger.fine("Could not delete " + segment.file + " yet, will retry on next start");
+      }
+   }
+
+   private List<Record> recover() throws IOException {
+      File[] files = dir.listFiles(new FilenameFilter() {
+         public boolean accept(File dir, String name) {
+            return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+         }
+      });
+      List<Record> pending = new ArrayList<Record>();
+      if(files == null) {
+         return pending;
+      }
+      long now = System.currentTimeMillis();
+      int expired = 0;
+      int[] seqs = new int[files.length];
+      for(int i = 0; i < files.length; i++) {
+         String name = files[i].getName();
+         try {
+            seqs[i] = Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+         }
+         catch(NumberFormatException e) {
+            seqs[i] = -1;
+         }
+      }
+      Arrays.sort(seqs);
+      for(int seq : seqs) {
+         if(seq < 0) {
+            continue;
+         }
+         nextSeq = seq + 1;
+         File file = new File(dir, PREFIX + seq + SUFFIX);
+         Segment segment = Segment.open(file, seq, (int)Math.max(segmentSize, file.length()));
+         ByteBuffer buffer = segment.buffer;
+         int offset = 0;
+         while(offset + HEADER <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if(length <= 0 || offset + HEADER + length > buffer.capacity()) {
+               break;
+            }
+            if(buffer.get(offset + 4) == PENDING) {
+               byte[] payload = new byte[length];
+               ByteBuffer body = buffer.duplicate();
+               body.position(offset + HEADER);
+               body.get(payload);
+               try {
+                  Record record = Record.decode(payload, id(seq, offset));
+                  if(now - record.getCreated() > maxAgeMillis || record.getReplays() >= maxReplays) {
+                     buffer.put(offset + 4, DONE);
+                     expired++;
+                  }
+                  else {
+                     buffer.put(offset + HEADER + REPLAYS, (byte)(record.getReplays() + 1));
+                     pending.add(record);
+                     segment.pending++;
+                  }
+                  segment.dirty = true;
+               }
+               catch(IOException e) {
+                  logger.log(Level.WARNING, "Skipping unreadable HipChat outbox record in " + file, e);
+               }
+            }
+            offset += HEADER + length;
+         }
+         segment.position = offset;
+         segments.put(seq, segment);
+         if(segment.pending == 0) {
+            delete(segment);
+         }
+      }
+      if(expired > 0) {
+         DeliveryMetrics.EXPIRED.add(expired);
+         logger.warning("Dropped " + expired + " HipChat message(s) from " + dir + " that were older than " + maxAgeMillis
+               + " ms or had been resent " + maxReplays + " time(s) already");
+      }
+      if(!pending.isEmpty()) {
+         logger.info("Recovered " + pending.size() + " undelivered HipChat message(s) from " + dir);
+      }
+      return pending;
+   }
+
+   private static long id(int seq, int offset) {
+      return ((long)seq << 32) | (offset & 0xffffffffL);
+   }
+
+   private static class Segment {
+      final File file;
+      final int seq;
+      final RandomAccessFile raf;
+      final MappedByteBuffer buffer;
+      int position;
+      int pending;
+      boolean dirty;
+      boolean released;
+
+      private Segment(File file, int seq, RandomAccessFile raf, MappedByteBuffer buffer) {
+         this.file = file;
+         this.seq = seq;
+         this.raf = raf;
+         this.buffer = buffer;
+      }
+
+      static Segment open(File file, int seq, int size) throws IOException {
+         RandomAccessFile raf = new RandomAccessFile(file, "rw");
+         try {
+            if(raf.length() < size) {
+               raf.setLength(size);
+            }
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            return new Segment(file, seq, raf, buffer);
+         }
+         catch(IOException e) {
+            raf.close();
+            throw e;
+         }
+      }
+
+      synchronized void force() {
+         if(!released) {
+            buffer.force();
+         }
+      }
+
+      /**
+       * Closes the file and unmaps the buffer right away rather than when it is garbage collected, so the
+       * file can be deleted and its address space is given back. The buffer must not be touched afterwards.
+       */
+      synchronized void close() {
+         if(released) {
+            return;
+         }
+         released = true;
+         try {
+            raf.close();
+         }
+         catch(IOException e) {
+            logger.log(Level.FINE, "Failed to close " + file, e);
+         }
+         unmap(buffer);
+      }
+   }
+
+   /**
+    * Releases a mapped buffer through the JDK's cleaner: <code>Unsafe.invokeCleaner</code> on Java 9 and
+    * later, the buffer's own <code>cleaner()</code> before that. If neither is available the mapping stays
+    * until the buffer is garbage collected.
+    */
+   private static void unmap(MappedByteBuffer buffer) {
+      try {
+         Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+         Method invokeCleaner;
+         try {
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+         }
+         catch(NoSuchMethodException e) {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if(cleaner != null) {
+               cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+            return;
+         }
+         Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+         theUnsafe.setAccessible(true);
+         invokeCleaner.invoke(theUnsafe.get(null), buffer);
+      }
+      catch(Exception e) {
+         logger.log(Level.FINE, "Could not unmap a HipChat outbox segment, leaving it to the garbage collector", e);
+      }
+   }
+
+   /**
+    * One stored notification, addressed to a single room.
+    */
+   public static class Record {
+      private final long id;
+      private final String token;
+      private final String tokenDigest;
+      private final String room;
+      private final String from;
+      private final String message;
+      private final String color;
+      private final long created;
+      private final int replays;
+
+      public Record(String token, String room, String from, String message, String color) {
+         this(-1, token, digest(token), room, from, message, color, System.currentTimeMillis(), 0);
+      }
+
+      private Record(long id, String token, String tokenDigest, String room, String from, String message, String color, long created, int replays) {
+         this.id = id;
+         this.created = created;
+         this.replays = replays;
+         this.token = token;
+         this.tokenDigest = tokenDigest;
+         this.room = room;
+         this.from = from;
+         this.message = message;
+         this.color = color;
+      }
+
+      public long getId() {
+         return id;
+      }
+
+      /**
+       * The API token, or <code>null</code> for a recovered record, which only has its {@link #getTokenDigest() digest}.
+       */
+      public String getToken() {
+         return token;
+      }
+
+      /**
+       * The {@link #digest(String) digest} of the API token, which is what the outbox stores in its place.
+       */
+      public String getTokenDigest() {
+         return tokenDigest;
+      }
+
+      public String getRoom() {
+         return room;
+      }
+
+      public String getFrom() {
+         return from;
+      }
+
+      public String getMessage() {
+         return message;
+      }
+
+      public String getColor() {
+         return color;
+      }
+
+      /**
+       * When the record was stored, in milliseconds since the epoch.
+       */
+      public long getCreated() {
+         return created;
+      }
+
+      /**
+       * How many times the record had been recovered after a restart before this time.
+       */
+      public int getReplays() {
+         return replays;
+      }
+
+      byte[] encode() throws UnsupportedEncodingException {
+         byte[][] fields = { bytes(tokenDigest), bytes(room), bytes(from), bytes(message), bytes(color) };
+         int size = REPLAYS + 1;
+         for(byte[] field : fields) {
+            size += 4 + field.length;
+         }
+         ByteBuffer buffer = ByteBuffer.allocate(size);
+         buffer.put(FORMAT);
+         buffer.putLong(created);
+         buffer.put((byte)replays);
+         for(byte[] field : fields) {
+            buffer.putInt(field.length);
+            buffer.put(field);
+         }
+         return buffer.array();
+      }
+
+      static Record decode(byte[] payload, long id) throws IOException {
+         ByteBuffer buffer = ByteBuffer.wrap(payload);
+         try {
+            if(buffer.get() != FORMAT) {
+               throw new IOException("Unknown outbox record format");
+            }
+            long created = buffer.getLong();
+            int replays = buffer.get();
+            return new Record(id, null, string(buffer), string(buffer), string(buffer), string(buffer), string(buffer), created, replays);
+         }
+         catch(RuntimeException e) {
+            throw new IOException("Corrupt outbox record: " + e);
+         }
+      }
+
+      /**
+       * Hex SHA-256 of <code>token</code>, or an empty string for none.
+       */
+      public static String digest(String token) {
+         if(token == null || token.length() == 0) {
+            return "";
+         }
+         try {
+            StringBuilder hex = new StringBuilder(64);
+            for(byte b : MessageDigest.getInstance("SHA-256").digest(token.getBytes("UTF-8"))) {
+               hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+         }
+         catch(NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+         }
+         catch(UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+         }
+      }
+
+      private static byte[] bytes(String value) throws UnsupportedEncodingException {
+         return value == null ? new byte[0] : value.getBytes("UTF-8");
+      }
+
+      private static String string(ByteBuffer buffer) throws UnsupportedEncodingException {
+         byte[] bytes = new byte[buffer.getInt()];
+         buffer.get(bytes);
+         return new String(bytes, "UTF-8");
+      }
+   }
+}
@@ -0,0 +1,32 @@
+package jenkins.plugins.hipchat;
+
+/**
+ * What the {@link DeliveryQueue} does with a message when it is full.
+ */
+public enum OverflowPolicy {
+   DROP_OLDEST("Drop oldest message"),
+   DROP_NEWEST("Drop newest message"),
+   BLOCK("Block the build thread (with timeout)");
+
+   private final String displayName;
+
+   OverflowPolicy(String displayName) {
+      this.displayName = displayName;
+   }
+
+   public String getDisplayName() {
+      return displayName;
+   }
+
+   public static OverflowPolicy parse(String value, OverflowPolicy defaultValue) {
+      if(value == null) {
+         return defaultValue;
+      }
+      try {
+         return valueOf(value.trim());
+      }
+      catch(IllegalArgumentException e) {
+         return defaultValue;
+      }
+   }
+}
@@ -0,0 +1,142 @@
+package jenkins.plugins.hipchat;
+
+import hudson.model.AbstractProject;
+import hudson.model.Descriptor;
+import hudson.tasks.Publisher;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * What a project's HipChat configuration resolves to: its notifier, job property and the services for the
+ * rooms it posts to. Cached per project so build events do not scan publishers or allocate services, and
+ * dropped by {@link ConfigChangeListener} when the job or the global configuration is saved.
+ */
+public final class ProjectConfig {
+
+   private static final int MAX_SERVICES_PER_PROJECT = 32;
+   private static final ConcurrentMap<String, ProjectConfig> cache = new ConcurrentHashMap<String, ProjectConfig>();
+   private static final FineGrainedNotifier DISABLED = new DisabledNotifier();
+
+   private final HipChatNotifier notifier;
+   private final HipChatNotifier.HipChatJobProperty property;
+   private final String projectName;
+   private final NotificationHistory history;
+   private final FineGrainedNotifier fineGrainedNotifier;
+   private volatile MessageLayout layout;
+   private final ConcurrentMap<String, HipChatService> services = new ConcurrentHashMap<String, HipChatService>();
+
+   ProjectConfig(HipChatNotifier notifier, HipChatNotifier.HipChatJobProperty property, String projectName, NotificationHistory history) {
+      this.notifier = notifier;
+      this.property = property;
+      this.projectName = projectName;
+      this.history = history;
+      this.fineGrainedNotifier = notifier == null ? DISABLED : new ActiveNotifier(notifier);
+   }
+
+   @SuppressWarnings({ "unchecked", "rawtypes" })
+   public static ProjectConfig get(AbstractProject project) {
+      String key = project.getFullName();
+      ProjectConfig config = cache.get(key);
+      if(config == null) {
+         HipChatNotifier notifier = null;
+         Map<Descriptor<Publisher>, Publisher> map = project.getPublishersList().toMap();
+         for(Publisher publisher : map.values()) {
+            if(publisher instanceof HipChatNotifier) {
+               notifier = (HipChatNotifier)publisher;
+               break;
+            }
+         }
+         config = remember(key, new ProjectConfig(notifier, (HipChatNotifier.HipChatJobProperty)project.getProperty(HipChatNotifier.HipChatJobProperty.class),
+               project.getDisplayName(), notifier == null ? null : NotificationHistory.forJob(project.getRootDir())));
+      }
+      return config;
+   }
+
+   /**
+    * Caches <code>config</code> for the project <code>fullName</code> unless another thread got there first,
+    * and returns whichever is cached.
+    */
+   static ProjectConfig remember(String fullName, ProjectConfig config) {
+      ProjectConfig existing = cache.putIfAbsent(fullName, config);
+      return existing == null ? config : existing;
+   }
+
+   /**
+    * The cached configuration of <code>fullName</code>, or <code>null</code>; never builds one.
+    */
+   static ProjectConfig peek(String fullName) {
+      return cache.get(fullName);
+   }
+
+   public static void invalidate(String fullName) {
+      cache.remove(fullName);
+   }
+
+   public static void clear() {
+      cache.clear();
+   }
+
+   /**
+    * The project's {@link HipChatNotifier}, or <code>null</code> if it does not notify HipChat.
+    */
+   public HipChatNotifier getNotifier() {
+      return notifier;
+   }
+
+   public HipChatNotifier.HipChatJobProperty getProperty() {
+      return property;
+   }
+
+   public FineGrainedNotifier getFineGrainedNotifier() {
+      return fineGrainedNotifier;
+   }
+
+   /**
+    * The room configured on the job, before variables are expanded.
+    */
+   public String getRoom() {
+      return property == null ? null : property.getRoom();
+   }
+
+   public String getCustomMessage() {
+      return property == null ? null : property.getCustomMessage();
+   }
+
+   /**
+    * How messages from this project are laid out for <code>notifier</code>; built once for the project's own notifier.
+    */
+   public MessageLayout getLayout(HipChatNotifier notifier) {
+      if(notifier != this.notifier) {
+         return new MessageLayout(notifier.getJenkinsUrl(), projectName, getCustomMessage());
+      }
+      MessageLayout current = layout;
+      if(current == null) {
+         current = new MessageLayout(notifier.getJenkinsUrl(), projectName, getCustomMessage());
+         layout = current;
+      }
+      return current;
+   }
+
+   /**
+    * The service posting to <code>room</code> (a resolved room, possibly comma separated).
+    */
+   public HipChatService getService(String room) {
+      String key = room == null ? "" : room;
+      HipChatService service = services.get(key);
+      if(service == null) {
+         service = notifier.newHipChatService(room);
+         if(service instanceof QueuedHipChatService) {
+            ((QueuedHipChatService)service).setHistory(history);
+         }
+         if(services.size() < MAX_SERVICES_PER_PROJECT) {
+            HipChatService existing = services.putIfAbsent(key, service);
+            if(existing != null) {
+               service = existing;
+            }
+         }
+      }
+      return service;
+   }
+}
@@ -0,0 +1,78 @@
+package jenkins.plugins.hipchat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Per-room outcome of a {@link HipChatService#publish(String, String)} call.
+ * Services that hand messages off for background delivery return a {@link State#QUEUED} result
+ * with no room outcomes; use {@link HipChatService#publishAsync(String, String)} to wait for them.
+ */
+public class PublishResult {
+
+   public enum State {
+      COMPLETED, QUEUED, REJECTED
+   }
+
+   private static final PublishResult QUEUED = new PublishResult(State.QUEUED, Collections.<RoomResult>emptyList());
+   private static final PublishResult REJECTED = new PublishResult(State.REJECTED, Collections.<RoomResult>emptyList());
+
+   private final State state;
+   private final List<RoomResult> rooms;
+
+   private PublishResult(State state, List<RoomResult> rooms) {
+      this.state = state;
+      this.rooms = rooms;
+   }
+
+   public static PublishResult completed(List<RoomResult> rooms) {
+      return new PublishResult(State.COMPLETED, Collections.unmodifiableList(new ArrayList<RoomResult>(rooms)));
+   }
+
+   public static PublishResult queued() {
+      return QUEUED;
+   }
+
+   public static PublishResult rejected() {
+      return REJECTED;
+   }
+
+   public State getState() {
+      return state;
+   }
+
+   public List<RoomResult> getRooms() {
+      return rooms;
+   }
+
+   public List<RoomResult> getFailures() {
+      List<RoomResult> failures = new ArrayList<RoomResult>();
+      for(RoomResult room : rooms) {
+         if(!room.isSuccess()) {
+            failures.add(room);
+         }
+      }
+      return failures;
+   }
+
+   /**
+    * True when the message was delivered to every room.
+    */
+   public boolean isSuccess() {
+      if(state != State.COMPLETED) {
+         return false;
+      }
+      for(RoomResult room : rooms) {
+         if(!room.isSuccess()) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   @Override
+   public String toString() {
+      return state == State.COMPLETED ? rooms.toString() : state.toString();
+   }
+}
@@ -0,0 +1,253 @@
+package jenkins.plugins.hipchat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+/**
+ * Hands messages to a {@link DeliveryQueue} and returns immediately; the wrapped service
+ * does the actual (blocking) posting on one of the queue's worker threads.
+ * <p>
+ * With an {@link Outbox}, each message is stored (one record per room) before it is queued,
+ * and the record is only marked done once HipChat has accepted it, or rejected it for good.
+ * <p>
+ * With a {@link BatchSender}, messages are gathered into batches for a relay instead, and each batch
+ * is queued as one delivery.
+ * <p>
+ * A message is queued as one delivery per room, keyed by the room's ID, so messages to a room go out in
+ * the order they were published even with several workers, whether the room is posted to alone or along
+ * with others. A retry waits on a timer, then goes back on its room's lane behind what was queued meanwhile.
+ * <p>
+ * With a {@link NotificationHistory}, the final outcome for each room is recorded there too.
+ */
+public class QueuedHipChatService implements HipChatService {
+
+   private static final Logger logger = Logger.getLogger(QueuedHipChatService.class.getName());
+
+   private final StandardHipChatService delegate;
+   private final DeliveryQueue queue;
+   private final Outbox outbox;
+   private final BatchSender batchSender;
+   private volatile NotificationHistory history;
+
+   public QueuedHipChatService(StandardHipChatService delegate, DeliveryQueue queue) {
+      this(delegate, queue, null);
+   }
+
+   public QueuedHipChatService(StandardHipChatService delegate, DeliveryQueue queue, Outbox outbox) {
+      this(delegate, queue, outbox, null);
+   }
+
+   public QueuedHipChatService(StandardHipChatService delegate, DeliveryQueue queue, Outbox outbox, BatchSender batchSender) {
+      super();
+      this.delegate = delegate;
+      this.queue = queue;
+      this.outbox = outbox;
+      this.batchSender = batchSender;
+   }
+
+   public void setHistory(NotificationHistory history) {
+      this.history = history;
+   }
+
+   public PublishResult publish(String message) {
+      return publish(message, "yellow");
+   }
+
+   public PublishResult publish(String message, String color) {
+      if(batchSender != null) {
+         batchSender.submit(delegate, message, color, callback(message, color, store(message, color)));
+         return PublishResult.queued();
+      }
+      return enqueue(message, color, delegate.getRoomIds(), store(message, color)) == null ? PublishResult.rejected() : PublishResult.queued();
+   }
+
+   public Future<PublishResult> publishAsync(String message, String color) {
+      if(batchSender != null) {
+         return batchSender.submit(delegate, message, color, callback(message, color, store(message, color)));
+      }
+      Future<PublishResult> delivery = enqueue(message, color, delegate.getRoomIds(), store(message, color));
+      return delivery == null ? done(PublishResult.rejected()) : delivery;
+   }
+
+   /**
+    * Queues a message recovered from the outbox, without storing it again. The service must post to the record's room only.
+    */
+   boolean resend(Outbox.Record record) {
+      Map<String, Long> ids = new HashMap<String, Long>();
+      ids.put(record.getRoom(), record.getId());
+      if(batchSender != null) {
+         batchSender.submit(delegate, record.getMessage(), record.getColor(), callback(record.getMessage(), record.getColor(), ids));
+         return true;
+      }
+      return enqueue(record.getMessage(), record.getColor(), new String[] { record.getRoom() }, ids) != null;
+   }
+
+   private Map<String, Long> store(String message, String color) {
+      if(outbox == null) {
+         return null;
+      }
+      Map<String, Long> ids = new HashMap<String, Long>();
+      for(String room : delegate.getRoomIds()) {
+         ids.put(room, outbox.append(new Outbox.Record(delegate.getToken(), room, delegate.getFrom(), message, color)));
+      }
+      return ids;
+   }
+
+   /**
+    * As each room gets a final result, marks its outbox record in <code>ids</code> (room to record) done
+    * and adds it to the history.
+    */
+   private DeliveryCallback callback(String message, final String color, final Map<String, Long> ids) {
+      final NotificationHistory history = this.history;
+      if(ids == null && history == null) {
+         return null;
+      }
+      final long hash = history == null ? 0 : NotificationHistory.hash(message);
+      return new DeliveryCallback() {
+         public void completed(RoomResult result) {
+            Long id = ids == null ? null : ids.get(result.getRoomId());
+            if(id != null && isFinal(result)) {
+               outbox.ack(id);
+            }
+            if(history != null) {
+               history.record(result.getRoomId(), color, result.getStatus(), result.getLatencyMillis(), hash);
+            }
+         }
+      };
+   }
+
+   private FutureTask<RoomResult> delivery(final String room, final String message, final String color, final DeliveryCallback callback) {
+      return new FutureTask<RoomResult>(new Callable<RoomResult>() {
+         public RoomResult call() {
+            return delegate.publishToRoom(room, message, color, callback);
+         }
+      });
+   }
+
+   /**
+    * A result that will not get better by trying again later: delivered, or refused by HipChat (4xx).
+    * Anything else stays in the outbox to be resent after a restart.
+    */
+   private static boolean isFinal(RoomResult result) {
+      return result.isSuccess() || (result.getStatus() >= 400 && result.getStatus() < 500 && result.getStatus() != 429);
+   }
+
+   /**
+    * Queues one delivery per room on the room's lane. Returns <code>null</code> if the queue took none of them.
+    */
+   private Future<PublishResult> enqueue(String message, String color, String[] rooms, Map<String, Long> ids) {
+      DeliveryCallback callback = callback(message, color, ids);
+      List<Future<RoomResult>> deliveries = new ArrayList<Future<RoomResult>>(rooms.length);
+      int rejected = 0;
+      for(String room : rooms) {
+         FutureTask<RoomResult> delivery = delivery(room, message, color, callback);
+         if(queue.submit(delivery, room.trim())) {
+            deliveries.add(delivery);
+         }
+         else {
+            rejected++;
+            deliveries.add(done(new RoomResult(room, -1, 0, new RejectedExecutionException("HipChat delivery queue is full"))));
+         }
+      }
+      if(rejected > 0) {
+         logger.warning("HipChat delivery queue rejected message for " + rejected + " of " + rooms.length + " room(s) ("
+               + queue.getOverflowPolicy() + "): " + message);
+         if(rejected == rooms.length) {
+            return null;
+         }
+      }
+      return new AllRooms(rooms, deliveries);
+   }
+
+   StandardHipChatService getDelegate() {
+      return delegate;
+   }
+
+   /**
+    * The outcome of a message queued as one delivery per room; done once every room's delivery is. A room
+    * whose delivery was dropped from the queue is reported as failed.
+    */
+   private static final class AllRooms implements Future<PublishResult> {
+      private final String[] rooms;
+      private final List<Future<RoomResult>> deliveries;
+
+      AllRooms(String[] rooms, List<Future<RoomResult>> deliveries) {
+         this.rooms = rooms;
+         this.deliveries = deliveries;
+      }
+
+      public boolean cancel(boolean mayInterruptIfRunning) {
+         boolean cancelled = false;
+         for(Future<RoomResult> delivery : deliveries) {
+            cancelled |= delivery.cancel(mayInterruptIfRunning);
+         }
+         return cancelled;
+      }
+
+      public boolean isCancelled() {
+         for(Future<RoomResult> delivery : deliveries) {
+            if(!delivery.isCancelled()) {
+               return false;
+            }
+         }
+         return true;
+      }
+
+      public boolean isDone() {
+         for(Future<RoomResult> delivery : deliveries) {
+            if(!delivery.isDone()) {
+               return false;
+            }
+         }
+         return true;
+      }
+
+      public PublishResult get() throws InterruptedException, ExecutionException {
+         try {
+            return get(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+         }
+         catch(TimeoutException e) {
+            throw new IllegalStateException(e);
+         }
+      }
+
+      public PublishResult get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+         long deadline = System.nanoTime() + unit.toNanos(timeout);
+         List<RoomResult> results = new ArrayList<RoomResult>(rooms.length);
+         for(int i = 0; i < rooms.length; i++) {
+            try {
+               long remaining = timeout == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.nanoTime();
+               results.add(deliveries.get(i).get(Math.max(0, remaining), TimeUnit.NANOSECONDS));
+            }
+            catch(CancellationException e) {
+               results.add(new RoomResult(rooms[i], -1, 0, e));
+            }
+         }
+         return PublishResult.completed(results);
+      }
+   }
+
+   /**
+    * Returns an already completed future holding <code>value</code>.
+    */
+   static <T> Future<T> done(final T value) {
+      FutureTask<T> future = new FutureTask<T>(new Callable<T>() {
+         public T call() {
+            return value;
+         }
+      });
+      future.run();
+      return future;
+   }
+}
@@ -0,0 +1,188 @@
+package jenkins.plugins.hipchat;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.util.DateParseException;
+import org.apache.commons.httpclient.util.DateUtil;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps posts under the HipChat API quota with one {@link TokenBucket} per auth token, and times retries
+ * (with exponential backoff and jitter) on its own threads so callers never sleep. When a retry is due,
+ * the timer threads hand it back to the delivery queue rather than posting themselves.
+ * <p>
+ * A post over the limit reserves the next free slot and is delayed until then; it is never dropped for
+ * the limit, and waiting for a slot does not count toward the maximum number of attempts.
+ */
+public final class RateLimiter {
+
+   private static final Logger logger = Logger.getLogger(RateLimiter.class.getName());
+
+   public static final int DEFAULT_REQUESTS = 100;
+   public static final int DEFAULT_PERIOD_SECONDS = 300;
+   public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+   private static final long BASE_BACKOFF_MILLIS = 1000;
+   private static final long MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+
+   private static final ConcurrentMap<String, TokenBucket> buckets = new ConcurrentHashMap<String, TokenBucket>();
+   private static final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(2, new DeliveryQueue.DaemonThreadFactory("HipChat retry"));
+   private static final Random random = new Random();
+
+   private static volatile int requests = DEFAULT_REQUESTS;
+   private static volatile int periodSeconds = DEFAULT_PERIOD_SECONDS;
+   private static volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+   private RateLimiter() {}
+
+   public static void configure(int requestsPerPeriod, int period, int attempts) {
+      if(requestsPerPeriod != requests || period != periodSeconds) {
+         buckets.clear();
+      }
+      requests = Math.max(1, requestsPerPeriod);
+      periodSeconds = Math.max(1, period);
+      maxAttempts = Math.max(1, attempts);
+   }
+
+   public static int getMaxAttempts() {
+      return maxAttempts;
+   }
+
+   /**
+    * Reserves a slot for a post with <code>token</code>; returns 0 if it may go now, otherwise the
+    * milliseconds until its slot, at which time it may post without reserving again.
+    */
+   public static long reserve(String token) {
+      long nanos = bucket(token).reserve();
+      return nanos <= 0 ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos));
+   }
+
+   /**
+    * Reads the <code>X-RateLimit-*</code> headers of a response to keep the bucket in line with the server.
+    */
+   public static void update(String token, HttpMethod response) {
+      int remaining = intHeader(response, "X-RateLimit-Remaining", -1);
+      if(remaining < 0) {
+         return;
+      }
+      long reset = intHeader(response, "X-RateLimit-Reset", -1);
+      long untilReset = reset > 0 ? Math.max(0, reset * 1000 - System.currentTimeMillis()) : 0;
+      bucket(token).update(remaining, TimeUnit.MILLISECONDS.toNanos(untilReset), System.nanoTime());
+   }
+
+   /**
+    * Stops handing out tokens for <code>token</code> for the given time, e.g. after a 429.
+    */
+   public static void pause(String token, long millis) {
+      bucket(token).pause(TimeUnit.MILLISECONDS.toNanos(millis), System.nanoTime());
+   }
+
+   public static boolean isRetryable(int status) {
+      return status == 429 || status == 500 || status == 502 || status == 503 || status == 504;
+   }
+
+   /**
+    * Delay before retry number <code>attempt</code> (1-based): the server's <code>Retry-After</code> if given,
+    * otherwise exponential backoff with full jitter.
+    */
+   public static long retryDelayMillis(HttpMethod response, int attempt) {
+      long retryAfter = response == null ? -1 : retryAfterMillis(response);
+      long jitter = jitterMillis(attempt);
+      return retryAfter >= 0 ? retryAfter + jitter / 10 : Math.max(BASE_BACKOFF_MILLIS / 10, jitter);
+   }
+
+   /**
+    * Delay for a post of attempt number <code>attempt</code> whose slot is <code>waitMillis</code> away: the
+    * wait plus the same jitter as after a <code>Retry-After</code>, so that posts do not line up exactly on
+    * the refill times.
+    */
+   public static long waitDelayMillis(long waitMillis, int attempt) {
+      return waitMillis + jitterMillis(attempt) / 10;
+   }
+
+   /**
+    * A random delay up to the exponential backoff ceiling for <code>attempt</code>.
+    */
+   private static long jitterMillis(int attempt) {
+      long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.max(0, Math.min(attempt - 1, 20)));
+      synchronized(random) {
+         return (long)(random.nextDouble() * ceiling);
+      }
+   }
+
+   /**
+    * Runs <code>retry</code> after <code>delayMillis</code> on a timer thread, which it must leave quickly.
+    */
+   public static void schedule(Runnable retry, long delayMillis) {
+      scheduler.schedule(new Guarded(retry), delayMillis, TimeUnit.MILLISECONDS);
+   }
+
+   static long retryAfterMillis(HttpMethod response) {
+      Header header = response.getResponseHeader("Retry-After");
+      if(header == null || header.getValue() == null) {
+         return -1;
+      }
+      String value = header.getValue().trim();
+      try {
+         return Math.max(0, Long.parseLong(value) * 1000);
+      }
+      catch(NumberFormatException e) {
+         try {
+            return Math.max(0, DateUtil.parseDate(value).getTime() - System.currentTimeMillis());
+         }
+         catch(DateParseException e2) {
+            return -1;
+         }
+      }
+   }
+
+   private static int intHeader(HttpMethod response, String name, int defaultValue) {
+      Header header = response.getResponseHeader(name);
+      if(header == null || header.getValue() == null) {
+         return defaultValue;
+      }
+      try {
+         return Integer.parseInt(header.getValue().trim());
+      }
+      catch(NumberFormatException e) {
+         return defaultValue;
+      }
+   }
+
+   private static TokenBucket bucket(String token) {
+      String key = token == null ? "" : token;
+      TokenBucket bucket = buckets.get(key);
+      if(bucket == null) {
+         TokenBucket created = new TokenBucket(requests, periodSeconds, TimeUnit.SECONDS);
+         bucket = buckets.putIfAbsent(key, created);
+         if(bucket == null) {
+            bucket = created;
+         }
+      }
+      return bucket;
+   }
+
+   private static class Guarded implements Runnable {
+      private final Runnable task;
+
+      Guarded(Runnable task) {
+         this.task = task;
+      }
+
+      public void run() {
+         try {
+            task.run();
+         }
+         catch(RuntimeException e) {
+            logger.log(Level.WARNING, "HipChat retry failed", e);
+         }
+      }
+   }
+}
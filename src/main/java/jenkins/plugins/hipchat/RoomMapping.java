@@ -0,0 +1,232 @@
+package jenkins.plugins.hipchat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Immutable, precompiled "rooms by parameter" table. Plain keys are looked up in a hash map; keys
+ * containing <code>*</code> or <code>?</code> (wildcards) or starting with <code>re:</code> (a regular
+ * expression) are compiled together into a single pattern, tried in the order they were declared
+ * when no plain key matches. Numbered backreferences in a regular expression are renumbered to the
+ * groups they refer to in the combined pattern.
+ */
+public final class RoomMapping {
+
+   public static final RoomMapping EMPTY = new RoomMapping(new LinkedHashMap<String, String>());
+
+   private static final String REGEX_PREFIX = "re:";
+
+   private final Map<String, String> entries;
+   private final Map<String, String> exact;
+   private final Pattern patterns;
+   private final int[] groups;
+   private final String[] patternRooms;
+
+   private RoomMapping(LinkedHashMap<String, String> entries) {
+      this.entries = Collections.unmodifiableMap(entries);
+      this.exact = new HashMap<String, String>();
+      List<String> rooms = new ArrayList<String>();
+      List<Integer> groupIndexes = new ArrayList<Integer>();
+      StringBuilder regex = new StringBuilder();
+      int group = 1;
+      for(Map.Entry<String, String> entry : entries.entrySet()) {
+         String key = entry.getKey();
+         String pattern = toRegex(key);
+         if(pattern == null) {
+            if(!exact.containsKey(key)) {
+               exact.put(key, entry.getValue());
+            }
+            continue;
+         }
+         int inner;
+         try {
+            inner = Pattern.compile(pattern).matcher("").groupCount();
+         }
+         catch(PatternSyntaxException e) {
+            throw new IllegalArgumentException("Invalid room mapping pattern '" + key + "': " + e.getDescription());
+         }
+         if(regex.length() > 0) {
+            regex.append('|');
+         }
+         regex.append('(').append(renumber(pattern, group)).append(')');
+         groupIndexes.add(group);
+         rooms.add(entry.getValue());
+         group += 1 + inner;
+      }
+      this.patterns = regex.length() == 0 ? null : Pattern.compile(regex.toString());
+      this.groups = new int[groupIndexes.size()];
+      for(int i = 0; i < groups.length; i++) {
+         groups[i] = groupIndexes.get(i);
+      }
+      this.patternRooms = rooms.toArray(new String[rooms.size()]);
+   }
+
+   /**
+    * Parses one <code>key=value</code> mapping per line; blank lines are ignored.
+    */
+   public static RoomMapping parse(String text) {
+      if(text == null) {
+         return EMPTY;
+      }
+      LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>();
+      for(String line : text.split("\n")) {
+         String mapping = line.trim();
+         if(mapping.length() == 0) {
+            continue;
+         }
+         int equals = mapping.indexOf('=');
+         if(equals <= 0) {
+            throw new IllegalArgumentException("Room mapping '" + mapping + "' is not in key=value format");
+         }
+         entries.put(mapping.substring(0, equals).trim(), mapping.substring(equals + 1).trim());
+      }
+      return new RoomMapping(entries);
+   }
+
+   public static RoomMapping fromMap(Map<String, String> map) {
+      if(map == null || map.isEmpty()) {
+         return EMPTY;
+      }
+      return new RoomMapping(new LinkedHashMap<String, String>(map));
+   }
+
+   /**
+    * The room mapped to <code>parameter</code>, or <code>parameter</code> itself if nothing matches.
+    */
+   public String resolve(String parameter) {
+      if(parameter == null) {
+         return null;
+      }
+      String room = exact.get(parameter);
+      if(room != null) {
+         return room;
+      }
+      if(patterns != null) {
+         Matcher matcher = patterns.matcher(parameter);
+         if(matcher.matches()) {
+            for(int i = 0; i < groups.length; i++) {
+               if(matcher.start(groups[i]) >= 0) {
+                  return patternRooms[i];
+               }
+            }
+         }
+      }
+      return parameter;
+   }
+
+   /**
+    * The mappings in declaration order, as originally written.
+    */
+   public Map<String, String> toMap() {
+      return entries;
+   }
+
+   public boolean isEmpty() {
+      return entries.isEmpty();
+   }
+
+   /**
+    * Rewrites the backreferences in <code>pattern</code> for when it is wrapped as group <code>group</code>
+    * of a larger pattern, so <code>\1</code> becomes <code>(?:\4)</code> if <code>group</code> is 3. A
+    * reference takes as many digits as name a group opened before it, like {@link Pattern} reads it.
+    */
+   static String renumber(String pattern, int group) {
+      StringBuilder result = new StringBuilder(pattern.length() + 8);
+      int opened = 0;
+      boolean inClass = false;
+      int i = 0;
+      while(i < pattern.length()) {
+         char c = pattern.charAt(i);
+         if(c == '\\' && i + 1 < pattern.length()) {
+            char next = pattern.charAt(i + 1);
+            if(next == 'Q') {
+               int end = pattern.indexOf("\\E", i + 2);
+               end = end < 0 ? pattern.length() : end + 2;
+               result.append(pattern, i, end);
+               i = end;
+               continue;
+            }
+            if(!inClass && next >= '1' && next <= '9') {
+               int reference = next - '0';
+               int end = i + 2;
+               while(end < pattern.length() && Character.isDigit(pattern.charAt(end))) {
+                  int longer = reference * 10 + pattern.charAt(end) - '0';
+                  if(longer > opened) {
+                     break;
+                  }
+                  reference = longer;
+                  end++;
+               }
+               result.append("(?:\\").append(group + reference).append(')');
+               i = end;
+               continue;
+            }
+            result.append(c).append(next);
+            i += 2;
+            continue;
+         }
+         if(inClass) {
+            inClass = c != ']';
+         }
+         else if(c == '[') {
+            inClass = true;
+            result.append(c);
+            i++;
+            if(i < pattern.length() && pattern.charAt(i) == '^') {
+               result.append('^');
+               i++;
+            }
+            if(i < pattern.length() && pattern.charAt(i) == ']') {
+               result.append(']');
+               i++;
+            }
+            continue;
+         }
+         else if(c == '(' && isCapturing(pattern, i)) {
+            opened++;
+         }
+         result.append(c);
+         i++;
+      }
+      return result.toString();
+   }
+
+   private static boolean isCapturing(String pattern, int open) {
+      if(!pattern.startsWith("?", open + 1)) {
+         return true;
+      }
+      return pattern.startsWith("?<", open + 1) && open + 3 < pattern.length() && Character.isLetter(pattern.charAt(open + 3));
+   }
+
+   private static String toRegex(String key) {
+      if(key.startsWith(REGEX_PREFIX)) {
+         return key.substring(REGEX_PREFIX.length());
+      }
+      if(key.indexOf('*') < 0 && key.indexOf('?') < 0) {
+         return null;
+      }
+      StringBuilder regex = new StringBuilder();
+      int literal = 0;
+      for(int i = 0; i < key.length(); i++) {
+         char c = key.charAt(i);
+         if(c == '*' || c == '?') {
+            if(i > literal) {
+               regex.append(Pattern.quote(key.substring(literal, i)));
+            }
+            regex.append(c == '*' ? ".*" : ".");
+            literal = i + 1;
+         }
+      }
+      if(literal < key.length()) {
+         regex.append(Pattern.quote(key.substring(literal)));
+      }
+      return regex.toString();
+   }
+}
@@ -0,0 +1,72 @@
+package jenkins.plugins.hipchat;
+
+/**
+ * Outcome of posting one message to one HipChat room.
+ */
+public class RoomResult {
+
+   private final String roomId;
+   private final int status;
+   private final long latencyMillis;
+   private final Throwable error;
+   private final boolean retrying;
+
+   public RoomResult(String roomId, int status, long latencyMillis, Throwable error) {
+      this(roomId, status, latencyMillis, error, false);
+   }
+
+   private RoomResult(String roomId, int status, long latencyMillis, Throwable error, boolean retrying) {
+      this.roomId = roomId;
+      this.status = status;
+      this.latencyMillis = latencyMillis;
+      this.error = error;
+      this.retrying = retrying;
+   }
+
+   /**
+    * An attempt that did not get through (rate limited, 429, 5xx or I/O error) and has been scheduled to be tried again.
+    */
+   public static RoomResult retrying(String roomId, int status, long latencyMillis, Throwable error) {
+      return new RoomResult(roomId, status, latencyMillis, error, true);
+   }
+
+   public String getRoomId() {
+      return roomId;
+   }
+
+   /**
+    * HTTP status returned by HipChat, or -1 if no response was received.
+    */
+   public int getStatus() {
+      return status;
+   }
+
+   public long getLatencyMillis() {
+      return latencyMillis;
+   }
+
+   public Throwable getError() {
+      return error;
+   }
+
+   public boolean isRetrying() {
+      return retrying;
+   }
+
+   public boolean isSuccess() {
+      return error == null && status >= 200 && status < 300;
+   }
+
+   @Override
+   public String toString() {
+      StringBuilder s = new StringBuilder(roomId).append(": ");
+      if(status >= 0) {
+         s.append("HTTP ").append(status);
+      }
+      if(error != null) {
+         s.append(status >= 0 ? ", " : "").append(error);
+      }
+      s.append(" in ").append(latencyMillis).append("ms");
+      return retrying ? s.append(" (retrying)").toString() : s.toString();
+   }
+}
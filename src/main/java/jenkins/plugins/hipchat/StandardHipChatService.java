@@ -3,6 +3,12 @@ package jenkins.plugins.hipchat;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.methods.PostMethod;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -10,10 +16,12 @@ public class StandardHipChatService implements HipChatService {
 
    private static final Logger logger = Logger.getLogger(StandardHipChatService.class.getName());
 
+   private String scheme = "https";
    private String host = "api.hipchat.com";
    private String token;
    private String[] roomIds;
    private String from;
+   private DeliveryQueue retryQueue;
 
    public StandardHipChatService(String token, String roomId, String from) {
       super();
@@ -22,40 +30,240 @@ public class StandardHipChatService implements HipChatService {
       this.from = from;
    }
 
-   public void publish(String message) {
-      publish(message, "yellow");
+   public PublishResult publish(String message) {
+      return publish(message, "yellow");
    }
 
-   public void publish(String message, String color) {
+   public PublishResult publish(String message, String color) {
+      return publish(message, color, null);
+   }
+
+   /**
+    * Publishes the message to each room in turn on the calling thread, telling <code>callback</code> (if not
+    * null) the final outcome for each room, which for rooms that are retried comes later from another thread.
+    * To post to several rooms at once, queue one delivery per room through {@link QueuedHipChatService}.
+    */
+   public PublishResult publish(String message, String color, DeliveryCallback callback) {
+      List<RoomResult> results = new ArrayList<RoomResult>(roomIds.length);
       for(String roomId : roomIds) {
-         logger.info("Posting: " + from + " to " + roomId + ": " + message + " " + color);
-         HttpClient client = new HttpClient();
-         String url = "https://" + host + "/v1/rooms/message?auth_token=" + token;
-         PostMethod post = new PostMethod(url);
+         results.add(publish(roomId, message, color, 1, callback));
+      }
+      PublishResult result = PublishResult.completed(results);
+      for(RoomResult room : result.getFailures()) {
+         if(!room.isRetrying()) {
+            logger.warning("Failed to post to HipChat room " + room);
+         }
+      }
+      return result;
+   }
 
-         try {
-            post.addParameter("from", from);
-            post.addParameter("room_id", roomId);
-            post.addParameter("message", message);
-            post.addParameter("color", color);
-            post.addParameter("notify", shouldNotify(color));
-            post.getParams().setContentCharset("UTF-8");
-            client.executeMethod(post);
+   /**
+    * Publishes the message to <code>roomId</code> alone, which should be one of this service's rooms; like
+    * {@link #publish(String, String, DeliveryCallback)} otherwise.
+    */
+   public RoomResult publishToRoom(String roomId, String message, String color, DeliveryCallback callback) {
+      RoomResult result = publish(roomId, message, color, 1, callback);
+      if(!result.isSuccess() && !result.isRetrying()) {
+         logger.warning("Failed to post to HipChat room " + result);
+      }
+      return result;
+   }
+
+   /**
+    * Posts synchronously on the calling thread; the returned future is already done.
+    */
+   public Future<PublishResult> publishAsync(String message, String color) {
+      return QueuedHipChatService.done(publish(message, color));
+   }
+
+   private RoomResult publish(String roomId, String message, String color, int attempt, DeliveryCallback callback) {
+      return publish(roomId, message, color, attempt, false, callback);
+   }
+
+   /**
+    * @param reserved whether the post already holds a rate limit slot, reserved when it was held back
+    */
+   private RoomResult publish(String roomId, String message, String color, int attempt, boolean reserved, DeliveryCallback callback) {
+      RoomResult result = post(roomId, message, color, attempt, reserved, callback);
+      if(!result.isRetrying()) {
+         if(result.isSuccess()) {
+            DeliveryMetrics.DELIVERED.increment();
          }
-         catch(Exception e) {
-            logger.log(Level.WARNING, "Error posting to HipChat", e);
+         else {
+            DeliveryMetrics.FAILURES.increment();
          }
-         finally {
-            post.releaseConnection();
+         if(callback != null) {
+            callback.completed(result);
          }
       }
+      return result;
    }
 
-   private String shouldNotify(String color) {
-      return color.equalsIgnoreCase("green") ? "0" : "1";
+   private RoomResult post(String roomId, String message, String color, int attempt, boolean reserved, DeliveryCallback callback) {
+      long wait = reserved ? 0 : RateLimiter.reserve(token);
+      if(wait > 0) {
+         // Not an attempt: the post keeps its slot and goes out when the slot comes up, however late.
+         long delay = RateLimiter.waitDelayMillis(wait, attempt);
+         logger.fine("Rate limit reached, delaying post to " + roomId + " by " + delay + "ms");
+         retryLater(roomId, message, color, attempt, true, delay, callback);
+         return RoomResult.retrying(roomId, -1, 0, null);
+      }
+      CircuitBreaker breaker = CircuitBreaker.forEndpoint(getBaseUrl(), token);
+      long closedIn = breaker.tryAcquire();
+      if(closedIn > 0) {
+         DeliveryMetrics.SHED.increment();
+         if(attempt < RateLimiter.getMaxAttempts()) {
+            logger.fine("HipChat is failing, delaying post to " + roomId + " by " + closedIn + "ms (attempt " + attempt + ")");
+            retryLater(roomId, message, color, attempt + 1, false, closedIn, callback);
+            return RoomResult.retrying(roomId, -1, 0, null);
+         }
+         return new RoomResult(roomId, -1, 0, new CircuitBreaker.OpenException(breaker.getEndpoint()));
+      }
+      logger.fine("Posting: " + from + " to " + roomId + ": " + message + " " + color);
+      HttpClient client = HipChatHttpClient.get();
+      PostMethod post = createPost(roomId, message, color);
+      long start = System.nanoTime();
+
+      try {
+         int status = client.executeMethod(post);
+         long nanos = System.nanoTime() - start;
+         long latency = TimeUnit.NANOSECONDS.toMillis(nanos);
+         DeliveryMetrics.recordHttp(roomId, status, nanos);
+         recordOutcome(breaker, status);
+         RateLimiter.update(token, post);
+         if(RateLimiter.isRetryable(status) && attempt < RateLimiter.getMaxAttempts()) {
+            long delay = RateLimiter.retryDelayMillis(post, attempt);
+            if(status == 429) {
+               RateLimiter.pause(token, delay);
+            }
+            logger.warning("HipChat answered " + status + " for " + roomId + ", retrying in " + delay + "ms (attempt " + attempt + ")");
+            retryLater(roomId, message, color, attempt + 1, false, delay, callback);
+            return RoomResult.retrying(roomId, status, latency, null);
+         }
+         return new RoomResult(roomId, status, latency, null);
+      }
+      catch(Exception e) {
+         long nanos = System.nanoTime() - start;
+         long latency = TimeUnit.NANOSECONDS.toMillis(nanos);
+         DeliveryMetrics.recordHttp(roomId, -1, nanos);
+         breaker.recordFailure(e.toString());
+         if(e instanceof IOException && attempt < RateLimiter.getMaxAttempts()) {
+            long delay = RateLimiter.retryDelayMillis(null, attempt);
+            logger.log(Level.WARNING, "Error posting to HipChat, retrying in " + delay + "ms (attempt " + attempt + ")", e);
+            retryLater(roomId, message, color, attempt + 1, false, delay, callback);
+            return RoomResult.retrying(roomId, -1, latency, e);
+         }
+         logger.log(Level.WARNING, "Error posting to HipChat", e);
+         return new RoomResult(roomId, -1, latency, e);
+      }
+      finally {
+         post.releaseConnection();
+      }
    }
 
+   /**
+    * Tells the breaker whether the server answered; a 5xx counts as a failure, anything else as success.
+    */
+   static void recordOutcome(CircuitBreaker breaker, int status) {
+      if(status >= 500) {
+         breaker.recordFailure("HTTP " + status);
+      }
+      else {
+         breaker.recordSuccess();
+      }
+   }
+
+   /**
+    * Tries the post again after <code>delayMillis</code>. With a {@link #setRetryQueue retry queue}, the timer
+    * only hands the post back to the queue, on the room's lane, so it runs on a delivery worker within the
+    * queue's limits and in order with the room's other messages.
+    */
+   private void retryLater(final String roomId, final String message, final String color, final int attempt, final boolean reserved,
+         long delayMillis, final DeliveryCallback callback) {
+      DeliveryMetrics.RETRIES.increment();
+      final Runnable retry = new Runnable() {
+         public void run() {
+            RoomResult result = publish(roomId, message, color, attempt, reserved, callback);
+            if(!result.isSuccess() && !result.isRetrying()) {
+               logger.warning("Giving up posting to HipChat room " + result);
+            }
+         }
+      };
+      RateLimiter.schedule(new Runnable() {
+         public void run() {
+            DeliveryQueue queue = retryQueue;
+            if(queue == null) {
+               retry.run();
+            }
+            else if(!queue.submit(retry, roomId.trim())) {
+               RoomResult result = new RoomResult(roomId, -1, 0, new RejectedExecutionException("HipChat delivery queue is full"));
+               logger.warning("HipChat delivery queue rejected retry (" + queue.getOverflowPolicy() + "), giving up posting to room " + result);
+               DeliveryMetrics.FAILURES.increment();
+               if(callback != null) {
+                  callback.completed(result);
+               }
+            }
+         }
+      }, delayMillis);
+   }
+
+   /**
+    * Builds the request that posts <code>message</code> to one room.
+    */
+   protected PostMethod createPost(String roomId, String message, String color) {
+      PostMethod post = new PostMethod(getBaseUrl() + "/v1/rooms/message?auth_token=" + token);
+      post.addParameter("from", from);
+      post.addParameter("room_id", roomId);
+      post.addParameter("message", message);
+      post.addParameter("color", color);
+      post.addParameter("notify", shouldNotify(color) ? "1" : "0");
+      post.getParams().setContentCharset("UTF-8");
+      return post;
+   }
+
+   /**
+    * Whether a message of this color should notify room members; successes are posted quietly.
+    */
+   protected boolean shouldNotify(String color) {
+      return !color.equalsIgnoreCase("green");
+   }
+
+   /**
+    * <code>scheme://host[:port]</code> of the API server, without a trailing slash.
+    */
+   protected String getBaseUrl() {
+      return scheme + "://" + host;
+   }
+
+   /**
+    * Runs retries on <code>retryQueue</code> instead of the retry timer's threads.
+    */
+   public void setRetryQueue(DeliveryQueue retryQueue) {
+      this.retryQueue = retryQueue;
+   }
+
+   public String getToken() {
+      return token;
+   }
+
+   public String[] getRoomIds() {
+      return roomIds.clone();
+   }
+
+   public String getFrom() {
+      return from;
+   }
+
+   /**
+    * Posts to <code>host</code> instead of the HipChat API. Accepts <code>host[:port]</code>, which keeps
+    * https, or <code>scheme://host[:port]</code>, e.g. <code>http://127.0.0.1:8080</code> for a local fake.
+    */
    void setHost(String host) {
-      this.host = host;
+      int separator = host.indexOf("://");
+      if(separator > 0) {
+         this.scheme = host.substring(0, separator);
+         host = host.substring(separator + 3);
+      }
+      this.host = host.endsWith("/") ? host.substring(0, host.length() - 1) : host;
    }
 }
@@ -0,0 +1,37 @@
+package jenkins.plugins.hipchat;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that spreads increments over a few padded cells picked by thread, so threads counting at the
+ * same time rarely contend on one cache line. Reading sums the cells.
+ */
+final class StripedCounter {
+
+   private static final int STRIPES = 16;
+   private static final int PADDING = 8;
+
+   private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+   void increment() {
+      add(1);
+   }
+
+   void add(long delta) {
+      cells.getAndAdd(index(), delta);
+   }
+
+   long get() {
+      long sum = 0;
+      for(int i = 0; i < STRIPES; i++) {
+         sum += cells.get(i * PADDING);
+      }
+      return sum;
+   }
+
+   private static int index() {
+      long id = Thread.currentThread().getId();
+      int hash = (int)(id ^ (id >>> 32)) * 0x9E3779B9;
+      return ((hash >>> 16) & (STRIPES - 1)) * PADDING;
+   }
+}
@@ -0,0 +1,263 @@
+package jenkins.plugins.hipchat;
+
+import hudson.model.AbstractBuild;
+import hudson.tasks.junit.CaseResult;
+import hudson.tasks.test.AbstractTestResultAction;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * What a build's test report looked like, in a few bytes: the counts, and a 64-bit fingerprint of each
+ * failing test's name, sorted. It is saved next to the build when the build completes, whether or not a
+ * message is sent then, and the latest one per job is kept in memory, so the next build can tell which
+ * failures are new without loading the previous build's whole test report.
+ * <p>
+ * At most {@link #MAX_FINGERPRINTS} failures are fingerprinted; with more, the number of new failures
+ * is not reported against that build.
+ */
+@SuppressWarnings("rawtypes")
+public final class TestSummary {
+
+   private static final Logger logger = Logger.getLogger(TestSummary.class.getName());
+
+   static final String FILE_NAME = "hipchat-tests.bin";
+   static final int MAX_FINGERPRINTS = 2000;
+   static final int MAX_CACHED_JOBS = 1000;
+   private static final int MAGIC = 0x48435431;
+
+   /** The latest summary per job, by full name. */
+   private static final Map<String, TestSummary> latest = new LinkedHashMap<String, TestSummary>(64, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, TestSummary> eldest) {
+         return size() > MAX_CACHED_JOBS;
+      }
+   };
+
+   private final int number;
+   private final int failCount;
+   private final int totalCount;
+   private final long[] failing;
+   private final boolean complete;
+
+   TestSummary(int number, int failCount, int totalCount, long[] failing, boolean complete) {
+      this.number = number;
+      this.failCount = failCount;
+      this.totalCount = totalCount;
+      this.failing = failing;
+      this.complete = complete;
+   }
+
+   /**
+    * Summarizes the test report of <code>build</code>, saves the summary next to it and remembers it as its
+    * job's latest. Returns <code>null</code> if the build has no test report.
+    */
+   public static TestSummary record(AbstractBuild build) {
+      AbstractTestResultAction action = build.getTestResultAction();
+      if(action == null) {
+         return null;
+      }
+      TestSummary summary = of(build.getNumber(), action.getFailCount(), action.getTotalCount(), failingNames(action));
+      try {
+         summary.save(new File(build.getRootDir(), FILE_NAME));
+      }
+      catch(IOException e) {
+         logger.log(Level.FINE, "Could not save the test summary of " + build.getFullDisplayName(), e);
+      }
+      synchronized(latest) {
+         latest.put(build.getProject().getFullName(), summary);
+      }
+      return summary;
+   }
+
+   private static String[] failingNames(AbstractTestResultAction action) {
+      if(action.getFailCount() == 0) {
+         return new String[0];
+      }
+      List<CaseResult> failed = action.getFailedTests();
+      if(failed == null) {
+         return null;
+      }
+      String[] names = new String[failed.size()];
+      for(int i = 0; i < names.length; i++) {
+         names[i] = failed.get(i).getFullName();
+      }
+      return names;
+   }
+
+   /**
+    * The summary {@link #record recorded} for <code>build</code>, from memory or its saved file, or <code>null</code> if there is none.
+    */
+   public static TestSummary recorded(AbstractBuild build) {
+      synchronized(latest) {
+         TestSummary cached = latest.get(build.getProject().getFullName());
+         if(cached != null && cached.number == build.getNumber()) {
+            return cached;
+         }
+      }
+      File file = new File(build.getRootDir(), FILE_NAME);
+      if(!file.exists()) {
+         return null;
+      }
+      try {
+         return load(file);
+      }
+      catch(IOException e) {
+         logger.log(Level.FINE, "Could not read the test summary of " + build.getFullDisplayName(), e);
+         return null;
+      }
+   }
+
+   /**
+    * The summary of the build before <code>build</code>, or <code>null</code> if there is none.
+    */
+   public static TestSummary previous(AbstractBuild build) {
+      AbstractBuild previous = (AbstractBuild)build.getPreviousBuild();
+      return previous == null ? null : recorded(previous);
+   }
+
+   /**
+    * @param failingNames the full names of the failing tests, or <code>null</code> if they are not known
+    */
+   static TestSummary of(int number, int failCount, int totalCount, String[] failingNames) {
+      if(failingNames == null) {
+         return new TestSummary(number, failCount, totalCount, new long[0], false);
+      }
+      int count = Math.min(failingNames.length, MAX_FINGERPRINTS);
+      long[] failing = new long[count];
+      for(int i = 0; i < count; i++) {
+         failing[i] = fingerprint(failingNames[i]);
+      }
+      Arrays.sort(failing);
+      return new TestSummary(number, failCount, totalCount, failing, failingNames.length <= MAX_FINGERPRINTS);
+   }
+
+   /**
+    * 64-bit FNV-1a hash of the test's name; collisions are unlikely enough to ignore for a count in a chat message.
+    */
+   static long fingerprint(String name) {
+      long hash = 0xcbf29ce484222325L;
+      for(int i = 0; i < name.length(); i++) {
+         hash ^= name.charAt(i);
+         hash *= 0x100000001b3L;
+      }
+      return hash;
+   }
+
+   /**
+    * How many of this build's failures did not fail in <code>previous</code>, or -1 if that can't be told.
+    */
+   public int countNewFailures(TestSummary previous) {
+      if(previous == null || !complete || !previous.complete) {
+         return -1;
+      }
+      int count = 0;
+      for(long test : failing) {
+         if(Arrays.binarySearch(previous.failing, test) < 0) {
+            count++;
+         }
+      }
+      return count;
+   }
+
+   /**
+    * For example <code>12 failed / 4,310 tests (+3 new failures)</code>.
+    */
+   public String describe(TestSummary previous) {
+      if(failCount == 0) {
+         return String.format(Locale.ENGLISH, "all %,d tests passed", totalCount);
+      }
+      StringBuilder text = new StringBuilder(String.format(Locale.ENGLISH, "%,d failed / %,d tests", failCount, totalCount));
+      int added = countNewFailures(previous);
+      if(added > 0) {
+         text.append(String.format(Locale.ENGLISH, " (+%,d new failure%s)", added, added == 1 ? "" : "s"));
+      }
+      return text.toString();
+   }
+
+   /**
+    * A hash of which tests failed, the same for two builds with the same failing tests.
+    */
+   public long getFailingFingerprint() {
+      long hash = complete ? 1 : 0;
+      for(long test : failing) {
+         hash = 31 * hash + test;
+      }
+      return hash;
+   }
+
+   public int getNumber() {
+      return number;
+   }
+
+   public int getFailCount() {
+      return failCount;
+   }
+
+   public int getTotalCount() {
+      return totalCount;
+   }
+
+   void save(File file) throws IOException {
+      File temp = new File(file.getPath() + ".tmp");
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+      try {
+         out.writeInt(MAGIC);
+         out.writeInt(number);
+         out.writeInt(failCount);
+         out.writeInt(totalCount);
+         out.writeBoolean(complete);
+         out.writeInt(failing.length);
+         for(long test : failing) {
+            out.writeLong(test);
+         }
+      }
+      finally {
+         out.close();
+      }
+      if(!temp.renameTo(file)) {
+         file.delete();
+         if(!temp.renameTo(file)) {
+            throw new IOException("Could not rename " + temp + " to " + file);
+         }
+      }
+   }
+
+   static TestSummary load(File file) throws IOException {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+         if(in.readInt() != MAGIC) {
+            throw new IOException("Not a test summary: " + file);
+         }
+         int number = in.readInt();
+         int failCount = in.readInt();
+         int totalCount = in.readInt();
+         boolean complete = in.readBoolean();
+         int count = in.readInt();
+         if(count < 0 || count > MAX_FINGERPRINTS) {
+            throw new IOException("Corrupt test summary: " + file);
+         }
+         long[] failing = new long[count];
+         for(int i = 0; i < count; i++) {
+            failing[i] = in.readLong();
+         }
+         return new TestSummary(number, failCount, totalCount, failing, complete);
+      }
+      finally {
+         in.close();
+      }
+   }
+}
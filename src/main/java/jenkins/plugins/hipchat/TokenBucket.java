@@ -0,0 +1,85 @@
+package jenkins.plugins.hipchat;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket holding up to <code>capacity</code> requests, refilled evenly over <code>period</code>.
+ * Callers never wait inside the bucket; they reserve a slot and are told how long to wait for it. When the
+ * bucket is empty the tokens go into debt, so each caller gets a later slot than the one before it.
+ */
+class TokenBucket {
+
+   private final double capacity;
+   private final double refillPerNano;
+   private double tokens;
+   private long lastRefill;
+   private long pausedUntil;
+
+   TokenBucket(int capacity, long period, TimeUnit unit) {
+      this(capacity, period, unit, System.nanoTime());
+   }
+
+   TokenBucket(int capacity, long period, TimeUnit unit, long now) {
+      this.capacity = Math.max(1, capacity);
+      this.refillPerNano = this.capacity / Math.max(1, unit.toNanos(period));
+      this.tokens = this.capacity;
+      this.lastRefill = now;
+      this.pausedUntil = now;
+   }
+
+   /**
+    * Takes a token, going into debt if there is none, and returns 0 if one was available, otherwise the
+    * nanoseconds until the debt is paid off, which is when the caller's slot comes up.
+    */
+   long reserve() {
+      return reserve(System.nanoTime());
+   }
+
+   synchronized long reserve(long now) {
+      refill(now);
+      tokens -= 1;
+      // While paused, refilling only starts when the pause ends.
+      long wait = Math.max(0, lastRefill - now);
+      if(tokens < 0) {
+         wait += (long)Math.ceil(-tokens / refillPerNano);
+      }
+      return wait;
+   }
+
+   /**
+    * Hands out no tokens for the next <code>nanos</code> nanoseconds, e.g. after the server answered 429.
+    */
+   synchronized void pause(long nanos, long now) {
+      if(now + nanos - pausedUntil > 0) {
+         pausedUntil = now + nanos;
+      }
+      tokens = Math.min(0, tokens);
+      lastRefill = pausedUntil;
+   }
+
+   /**
+    * Adjusts the bucket to the server's own view of the remaining quota.
+    */
+   synchronized void update(int remaining, long nanosUntilReset, long now) {
+      refill(now);
+      if(remaining <= 0 && nanosUntilReset > 0) {
+         pause(nanosUntilReset, now);
+      }
+      else if(remaining < tokens) {
+         tokens = remaining;
+      }
+   }
+
+   synchronized double available(long now) {
+      refill(now);
+      return tokens;
+   }
+
+   private void refill(long now) {
+      long elapsed = now - lastRefill;
+      if(elapsed > 0) {
+         tokens = Math.min(capacity, tokens + elapsed * refillPerNano);
+         lastRefill = now;
+      }
+   }
+}
@@ -0,0 +1,71 @@
+package jenkins.plugins.hipchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BatchSenderTest {
+    private FakeHipChatServer server;
+    private DeliveryQueue queue;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeHipChatServer();
+        queue = new DeliveryQueue(100, 1, OverflowPolicy.DROP_NEWEST, 0);
+    }
+
+    @After
+    public void tearDown() {
+        queue.drain(1000);
+        server.stop();
+    }
+
+    @Test
+    public void parsesOneStatusPerMessage() {
+        assertArrayEquals(new int[] { 204, 404, 429 }, BatchSender.parseResults("{\"results\": [204, 404,429]}", 3, 200));
+        assertNull(BatchSender.parseResults("{\"results\":[204]}", 2, 200));
+        assertNull(BatchSender.parseResults("{\"status\":\"ok\"}", 1, 200));
+        assertNull(BatchSender.parseResults(null, 1, 200));
+    }
+
+    @Test
+    public void fullBatchGoesOutAsOnePost() throws Exception {
+        BatchSender sender = new BatchSender(server.getRelayUrl(), 4, 60000, queue);
+        StandardHipChatService service = server.newService("secret", "ops,dev");
+        Future<PublishResult> first = sender.submit(service, "one", "red", null);
+        Future<PublishResult> second = sender.submit(service, "two", "green", null);
+        assertTrue(first.get(5, TimeUnit.SECONDS).isSuccess());
+        assertTrue(second.get(5, TimeUnit.SECONDS).isSuccess());
+        assertEquals(1, server.getRelayPostCount());
+        List<FakeHipChatServer.Request> delivered = server.getDelivered();
+        assertEquals(4, delivered.size());
+        assertEquals("ops", delivered.get(0).getRoom());
+        assertEquals("one", delivered.get(0).getMessage());
+        assertEquals("true", delivered.get(0).getNotify());
+        assertEquals("dev", delivered.get(3).getRoom());
+        assertEquals("two", delivered.get(3).getMessage());
+        assertEquals("false", delivered.get(3).getNotify());
+        for(FakeHipChatServer.Request request : delivered) {
+            assertEquals("secret", request.getToken());
+            assertEquals("Jenkins", request.getFrom());
+        }
+    }
+
+    @Test
+    public void partialBatchGoesOutAfterLinger() throws Exception {
+        BatchSender sender = new BatchSender(server.getRelayUrl(), 100, 50, queue);
+        PublishResult result = sender.submit(server.newService("secret", "ops"), "one", "red", null).get(5, TimeUnit.SECONDS);
+        assertTrue(result.isSuccess());
+        assertEquals(1, result.getRooms().size());
+        assertEquals(1, server.getRelayPostCount());
+    }
+}
@@ -0,0 +1,76 @@
+package jenkins.plugins.hipchat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChangeSummaryTest {
+
+    @Test
+    public void frequentAuthorsSurviveManyOneOffAuthors() {
+        ChangeSummary summary = new ChangeSummary(100, 2, 1);
+        for (int i = 0; i < 300; i++) {
+            if (i % 2 == 0) {
+                summary.add("alice", null);
+            }
+            if (i % 3 == 0) {
+                summary.add("bob", null);
+            }
+            summary.add("drive-by " + i, null);
+        }
+        assertEquals(Arrays.asList("alice", "bob"), summary.getTopAuthors());
+        assertTrue(summary.hasMoreAuthors());
+    }
+
+    @Test
+    public void fewAuthorsAreListedInFull() {
+        ChangeSummary summary = new ChangeSummary(100, 3, 1);
+        summary.add("bob", null);
+        summary.add("alice", null);
+        summary.add("bob", null);
+        summary.add(null, null);
+        assertEquals(Arrays.asList("bob", "alice", "unknown"), summary.getTopAuthors());
+        assertFalse(summary.hasMoreAuthors());
+        assertEquals(4, summary.getEntryCount());
+    }
+
+    @Test
+    public void filesAreCountedExactlyUpToTheCap() {
+        ChangeSummary summary = new ChangeSummary(3, 1, 1);
+        summary.add("alice", Arrays.asList("a", "b", "a"));
+        summary.add("alice", Arrays.asList("c", "b"));
+        assertEquals("3", summary.getFileCountText());
+        assertFalse(summary.isFileCountCapped());
+        summary.add("alice", Collections.singletonList("d"));
+        assertEquals("3+", summary.getFileCountText());
+        assertTrue(summary.isFileCountCapped());
+    }
+
+    @Test
+    public void cappedCountIsShownWithThousandsSeparators() {
+        List<String> paths = new ArrayList<String>();
+        for (int i = 0; i <= ChangeSummary.DEFAULT_FILE_CAP; i++) {
+            paths.add("src/File" + i + ".java");
+        }
+        ChangeSummary summary = new ChangeSummary(ChangeSummary.DEFAULT_FILE_CAP, 1, 1);
+        summary.add("alice", paths);
+        assertEquals(ChangeSummary.DEFAULT_FILE_CAP, summary.getFileCount());
+        assertEquals("10,000+", summary.getFileCountText());
+    }
+
+    @Test
+    public void directoriesAreCountedByTheirTopLevel() {
+        ChangeSummary summary = new ChangeSummary(100, 1, 2);
+        summary.add("alice", Arrays.asList("/src/main/A.java", "src/test/ATest.java", "docs\\index.md", "pom.xml", "src/B.java"));
+        assertEquals(Arrays.asList("src", "/"), summary.getTopDirectories());
+        assertTrue(summary.hasMoreDirectories());
+        assertTrue(new ChangeSummary(100, 1, 0).getTopDirectories().isEmpty());
+    }
+}
@@ -0,0 +1,101 @@
+package jenkins.plugins.hipchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private CircuitBreaker breaker;
+
+    @Before
+    public void setUp() {
+        CircuitBreaker.configure(3, 50, 10);
+        breaker = new CircuitBreaker("test");
+    }
+
+    @After
+    public void tearDown() {
+        CircuitBreaker.configure(CircuitBreaker.DEFAULT_FAILURE_THRESHOLD, CircuitBreaker.DEFAULT_ERROR_RATE_PERCENT,
+                CircuitBreaker.DEFAULT_OPEN_SECONDS);
+    }
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        breaker.recordFailure("HTTP 503", 0);
+        breaker.recordFailure("HTTP 503", 0);
+        assertEquals(0, breaker.tryAcquire(0));
+        breaker.recordFailure("HTTP 503", 0);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(10000, breaker.tryAcquire(0));
+        assertEquals(5000, breaker.tryAcquire(5 * SECOND));
+        assertEquals("HTTP 503", breaker.getLastError());
+    }
+
+    @Test
+    public void opensOnErrorRate() {
+        for(int i = 0; i < CircuitBreaker.MIN_CALLS / 2; i++) {
+            breaker.recordSuccess();
+            assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+            breaker.recordFailure("timeout", 0);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void successfulProbeCloses() {
+        open();
+        assertEquals(0, breaker.tryAcquire(10 * SECOND));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.tryAcquire(11 * SECOND) > 0);
+        breaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.tryAcquire(11 * SECOND));
+        assertEquals(0, breaker.getErrorRatePercent());
+    }
+
+    @Test
+    public void failedProbeOpensForLonger() {
+        open();
+        assertEquals(0, breaker.tryAcquire(10 * SECOND));
+        breaker.recordFailure("HTTP 502", 10 * SECOND);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(20000, breaker.tryAcquire(10 * SECOND));
+    }
+
+    @Test
+    public void resetCloses() {
+        open();
+        assertTrue(breaker.reset());
+        assertEquals(0, breaker.tryAcquire(0));
+        assertFalse(breaker.reset());
+    }
+
+    @Test
+    public void endpointsDoNotShowTheToken() {
+        CircuitBreaker endpoint = CircuitBreaker.forEndpoint("https://api.hipchat.com", "secret-token-1234");
+        assertEquals("https://api.hipchat.com (token ...1234)", endpoint.getEndpoint());
+        assertTrue(endpoint == CircuitBreaker.forEndpoint("https://api.hipchat.com", "secret-token-1234"));
+    }
+
+    @Test
+    public void tokensEndingAlikeGetTheirOwnBreakers() {
+        CircuitBreaker first = CircuitBreaker.forEndpoint("https://api.hipchat.com", "first-token-5678");
+        CircuitBreaker second = CircuitBreaker.forEndpoint("https://api.hipchat.com", "second-token-5678");
+        assertTrue(first != second);
+        assertEquals(first.getEndpoint(), second.getEndpoint());
+    }
+
+    private void open() {
+        for(int i = 0; i < 3; i++) {
+            breaker.recordFailure("HTTP 503", 0);
+        }
+    }
+}
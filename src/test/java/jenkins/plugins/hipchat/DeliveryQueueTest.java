@@ -0,0 +1,266 @@
+package jenkins.plugins.hipchat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeliveryQueueTest {
+
+    private final DeliveryQueue queue = new DeliveryQueue(10000, 4, OverflowPolicy.BLOCK, 5000);
+
+    @After
+    public void tearDown() {
+        queue.drain(5000);
+    }
+
+    @Test
+    public void deliveriesWithTheSameKeyRunInOrderOneAtATime() {
+        final int rooms = 8;
+        final List<List<Integer>> seen = new ArrayList<List<Integer>>();
+        final AtomicInteger[] running = new AtomicInteger[rooms];
+        final AtomicInteger overlaps = new AtomicInteger();
+        for(int room = 0; room < rooms; room++) {
+            seen.add(Collections.synchronizedList(new ArrayList<Integer>()));
+            running[room] = new AtomicInteger();
+        }
+        for(int i = 0; i < 2000; i++) {
+            final int room = i % rooms;
+            final int sequence = i;
+            assertTrue(queue.submit(new Runnable() {
+                public void run() {
+                    if(running[room].incrementAndGet() > 1) {
+                        overlaps.incrementAndGet();
+                    }
+                    seen.get(room).add(sequence);
+                    Thread.yield();
+                    running[room].decrementAndGet();
+                }
+            }, "room" + room));
+        }
+        assertTrue(queue.drain(10000));
+        assertEquals(0, overlaps.get());
+        for(int room = 0; room < rooms; room++) {
+            List<Integer> sequences = seen.get(room);
+            assertEquals(2000 / rooms, sequences.size());
+            for(int i = 1; i < sequences.size(); i++) {
+                assertTrue(sequences.get(i - 1) < sequences.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void otherKeysAreNotHeldUpByABusyLane() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch other = new CountDownLatch(1);
+        queue.submit(new Runnable() {
+            public void run() {
+                try {
+                    release.await();
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "busy");
+        String otherKey = keyOnAnotherLane("busy");
+        queue.submit(new Runnable() {
+            public void run() {
+                other.countDown();
+            }
+        }, otherKey);
+        assertTrue(other.await(5, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test
+    public void laneDepthAndSkewCountWaitingDeliveries() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        queue.submit(new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "busy");
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals(0, queue.getMaxLaneDepth());
+        assertEquals(0, queue.getLaneSkewPercent());
+        for(int i = 0; i < 3; i++) {
+            queue.submit(new Runnable() {
+                public void run() {
+                }
+            }, "busy");
+        }
+        assertEquals(3, queue.getMaxLaneDepth());
+        assertEquals(100 * (queue.getLaneCount() - 1), queue.getLaneSkewPercent());
+        release.countDown();
+        assertTrue(queue.drain(5000));
+        assertEquals(0, queue.getMaxLaneDepth());
+    }
+
+    @Test
+    public void droppedTokenDropsItsDelivery() {
+        DeliveryQueue tiny = new DeliveryQueue(1, 1, OverflowPolicy.DROP_OLDEST, 0);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger ran = new AtomicInteger();
+        tiny.submit(new Runnable() {
+            public void run() {
+                try {
+                    release.await();
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        for(int i = 0; i < 3; i++) {
+            tiny.submit(new Runnable() {
+                public void run() {
+                    ran.incrementAndGet();
+                }
+            }, "room");
+        }
+        release.countDown();
+        assertTrue(tiny.drain(5000));
+        assertEquals(1, ran.get());
+        assertEquals(2, tiny.getDropped());
+    }
+
+    @Test
+    public void deliveryRunByItsLaneCountsAsAcceptedWhenItsTokenTimesOut() throws Exception {
+        DeliveryQueue tiny = new DeliveryQueue(1, 1, OverflowPolicy.BLOCK, 300);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch ran = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        tiny.submit(new Runnable() {
+            public void run() {
+                started.countDown();
+                await(release);
+            }
+        }, "room");
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(tiny.submit(new Runnable() {
+            public void run() {
+            }
+        }));
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                release.countDown();
+            }
+        }.start();
+        // The queue stays full, so this token times out, but the first token's drain runs the delivery meanwhile.
+        assertTrue(tiny.submit(new Runnable() {
+            public void run() {
+                ran.countDown();
+                await(finish);
+            }
+        }, "room"));
+        assertTrue(ran.await(0, TimeUnit.SECONDS));
+        assertEquals(0, tiny.getDropped());
+        finish.countDown();
+        assertTrue(tiny.drain(5000));
+    }
+
+    @Test
+    public void virtualModeFallsBackToThePlatformPoolWithoutVirtualThreads() {
+        DeliveryQueue virtual = new DeliveryQueue(10, 3, OverflowPolicy.BLOCK, 0, DeliveryMode.VIRTUAL);
+        assertEquals(DeliveryMode.isVirtualThreadsAvailable() ? DeliveryMode.VIRTUAL : DeliveryMode.PLATFORM, virtual.getMode());
+        assertEquals(3, virtual.getWorkers());
+        assertTrue(virtual.drain(5000));
+    }
+
+    @Test
+    public void virtualModeRunsAtMostWorkersDeliveriesAtOnce() throws Exception {
+        DeliveryQueue virtual = new DeliveryQueue(100, 3, OverflowPolicy.BLOCK, 5000, DeliveryMode.VIRTUAL);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(3);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        final AtomicInteger ran = new AtomicInteger();
+        for(int i = 0; i < 20; i++) {
+            assertTrue(virtual.submit(new Runnable() {
+                public void run() {
+                    int now = running.incrementAndGet();
+                    synchronized(peak) {
+                        peak.set(Math.max(peak.get(), now));
+                    }
+                    started.countDown();
+                    await(release);
+                    ran.incrementAndGet();
+                    running.decrementAndGet();
+                }
+            }, i % 2 == 0 ? null : "room" + i));
+        }
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(3, peak.get());
+        assertEquals(3, virtual.getActiveCount());
+        release.countDown();
+        assertTrue(virtual.drain(10000));
+        assertEquals(20, ran.get());
+        assertEquals(3, peak.get());
+    }
+
+    @Test
+    public void virtualModeDrainWaitsForRunningDeliveries() throws Exception {
+        DeliveryQueue virtual = new DeliveryQueue(100, 4, OverflowPolicy.BLOCK, 5000, DeliveryMode.VIRTUAL);
+        final AtomicInteger ran = new AtomicInteger();
+        for(int i = 0; i < 50; i++) {
+            assertTrue(virtual.submit(new Runnable() {
+                public void run() {
+                    try {
+                        Thread.sleep(5);
+                    }
+                    catch(InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    ran.incrementAndGet();
+                }
+            }, "room" + (i % 5)));
+        }
+        assertTrue(virtual.drain(10000));
+        assertEquals(50, ran.get());
+        assertEquals(0, virtual.getActiveCount());
+        assertTrue(virtual.isShutdown());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String keyOnAnotherLane(String key) {
+        for(int i = 0; ; i++) {
+            String candidate = "room" + i;
+            if(queue.laneIndex(candidate) != queue.laneIndex(key)) {
+                return candidate;
+            }
+        }
+    }
+}
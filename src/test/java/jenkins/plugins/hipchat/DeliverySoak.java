@@ -0,0 +1,155 @@
+package jenkins.plugins.hipchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Soak test of the delivery path: many threads publish simulated "build completed" messages through
+ * {@link QueuedHipChatService}, as the notifier does, to a {@link FakeHipChatServer} that adds latency,
+ * 500s, 429s and dropped connections. Every message must reach every room exactly once, and end-to-end
+ * latency percentiles must stay within bounds.
+ * <p>
+ * Not part of the normal test run; run it with
+ * <code>mvn test -Dtest=DeliverySoak [-Dhipchat.soak.events=20000 -Dhipchat.soak.threads=32 ...]</code>.
+ */
+public class DeliverySoak {
+
+   private static final Logger pluginLogger = Logger.getLogger("jenkins.plugins.hipchat");
+   private static final long DELIVERY_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+   private final int events = Integer.getInteger("hipchat.soak.events", 5000);
+   private final int threads = Integer.getInteger("hipchat.soak.threads", 16);
+   private final int rooms = Integer.getInteger("hipchat.soak.rooms", 3);
+   private final long p50Millis = Long.getLong("hipchat.soak.p50Millis", 2000);
+   private final long p99Millis = Long.getLong("hipchat.soak.p99Millis", 30000);
+
+   private FakeHipChatServer server;
+   private DeliveryQueue queue;
+   private Level logLevel;
+
+   @Before
+   public void setUp() throws Exception {
+      logLevel = pluginLogger.getLevel();
+      pluginLogger.setLevel(Level.SEVERE);
+      server = new FakeHipChatServer();
+      server.setLatency(2, 8);
+      server.setErrorRate(Double.parseDouble(System.getProperty("hipchat.soak.errorRate", "0.01")));
+      server.setThrottleRate(Double.parseDouble(System.getProperty("hipchat.soak.throttleRate", "0.001")));
+      server.setDropRate(Double.parseDouble(System.getProperty("hipchat.soak.dropRate", "0.005")));
+      server.setRetryAfterSeconds(1);
+      RateLimiter.configure(Integer.MAX_VALUE, 1, 10);
+      queue = new DeliveryQueue(DeliveryQueue.DEFAULT_CAPACITY, 8, OverflowPolicy.BLOCK, TimeUnit.MINUTES.toMillis(1));
+   }
+
+   @After
+   public void tearDown() {
+      queue.drain(TimeUnit.SECONDS.toMillis(10));
+      server.stop();
+      RateLimiter.configure(RateLimiter.DEFAULT_REQUESTS, RateLimiter.DEFAULT_PERIOD_SECONDS, RateLimiter.DEFAULT_MAX_ATTEMPTS);
+      pluginLogger.setLevel(logLevel);
+   }
+
+   @Test
+   public void everyMessageIsDeliveredExactlyOnce() throws Exception {
+      final String roomIds = roomIds();
+      final AtomicLongArray sent = new AtomicLongArray(events);
+      final AtomicInteger rejected = new AtomicInteger();
+      ExecutorService builds = Executors.newFixedThreadPool(threads);
+      long start = System.nanoTime();
+      for(int t = 0; t < threads; t++) {
+         final int first = t;
+         builds.execute(new Runnable() {
+            public void run() {
+               HipChatService service = new QueuedHipChatService(server.newService("soak", roomIds), queue);
+               for(int i = first; i < events; i += threads) {
+                  sent.set(i, System.nanoTime());
+                  PublishResult result = service.publish(message(i), i % 10 == 0 ? "red" : "green");
+                  if(result.getState() != PublishResult.State.QUEUED) {
+                     rejected.incrementAndGet();
+                  }
+               }
+            }
+         });
+      }
+      builds.shutdown();
+      assertTrue("publishing threads did not finish", builds.awaitTermination(DELIVERY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+      assertEquals("messages rejected by the delivery queue", 0, rejected.get());
+
+      int expected = events * rooms;
+      long deadline = System.currentTimeMillis() + DELIVERY_TIMEOUT_MILLIS;
+      while(server.getDeliveredCount() < expected && System.currentTimeMillis() < deadline) {
+         Thread.sleep(100);
+      }
+      long elapsed = System.nanoTime() - start;
+
+      Map<String, Integer> deliveries = new HashMap<String, Integer>();
+      LatencyHistogram latency = new LatencyHistogram();
+      for(FakeHipChatServer.Request request : server.getDelivered()) {
+         String key = request.getRoom() + "|" + request.getMessage();
+         Integer count = deliveries.get(key);
+         deliveries.put(key, count == null ? 1 : count + 1);
+         latency.recordNanos(request.getReceivedNanos() - sent.get(index(request.getMessage())));
+      }
+      List<String> lost = new ArrayList<String>();
+      List<String> duplicated = new ArrayList<String>();
+      for(int i = 0; i < events; i++) {
+         for(String room : roomIds.split(",")) {
+            Integer count = deliveries.get(room + "|" + message(i));
+            if(count == null) {
+               lost.add(room + ": " + message(i));
+            }
+            else if(count > 1) {
+               duplicated.add(room + ": " + message(i) + " x" + count);
+            }
+         }
+      }
+
+      LatencyHistogram.Snapshot snapshot = latency.snapshot();
+      System.out.println(String.format("DeliverySoak: %d events x %d rooms from %d threads in %d ms, %d requests to the fake, "
+            + "latency p50=%d ms p99=%d ms max=%d ms", events, rooms, threads, TimeUnit.NANOSECONDS.toMillis(elapsed),
+            server.getRequests().size(), snapshot.getValueAtQuantile(0.5) / 1000, snapshot.getValueAtQuantile(0.99) / 1000,
+            snapshot.getMax() / 1000));
+
+      assertTrue("lost " + lost.size() + " message(s), e.g. " + head(lost), lost.isEmpty());
+      assertTrue("duplicated " + duplicated.size() + " message(s), e.g. " + head(duplicated), duplicated.isEmpty());
+      assertTrue("p50 latency over " + p50Millis + " ms", snapshot.getValueAtQuantile(0.5) <= p50Millis * 1000);
+      assertTrue("p99 latency over " + p99Millis + " ms", snapshot.getValueAtQuantile(0.99) <= p99Millis * 1000);
+   }
+
+   private String roomIds() {
+      StringBuilder ids = new StringBuilder("soak-0");
+      for(int i = 1; i < rooms; i++) {
+         ids.append(",soak-").append(i);
+      }
+      return ids.toString();
+   }
+
+   private static String message(int index) {
+      return "<a href='http://jenkins.example.com/job/soak/" + index + "/console'>soak #" + index + "</a> - Success after 1 min 2 sec";
+   }
+
+   private static int index(String message) {
+      int start = message.indexOf('#') + 1;
+      return Integer.parseInt(message.substring(start, message.indexOf('<', start)));
+   }
+
+   private static List<String> head(List<String> list) {
+      return list.subList(0, Math.min(5, list.size()));
+   }
+}
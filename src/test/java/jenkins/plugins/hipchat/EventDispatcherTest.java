@@ -0,0 +1,94 @@
+package jenkins.plugins.hipchat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventDispatcherTest {
+
+    private final EventDispatcher dispatcher = new EventDispatcher(4, 2);
+
+    @After
+    public void tearDown() {
+        dispatcher.drain(5000);
+    }
+
+    @Test
+    public void eventsOfOneJobAreHandledInOrder() {
+        final List<Integer> seen = Collections.synchronizedList(new ArrayList<Integer>());
+        for (int i = 0; i < 500; i++) {
+            final int sequence = i;
+            assertTrue(dispatcher.dispatch("job", "event " + i, new Runnable() {
+                public void run() {
+                    seen.add(sequence);
+                }
+            }));
+        }
+        assertTrue(dispatcher.drain(10000));
+        assertEquals(500, seen.size());
+        for (int i = 0; i < seen.size(); i++) {
+            assertEquals(i, (int) seen.get(i));
+        }
+    }
+
+    @Test
+    public void fullBacklogMakesTheCallerWaitInsteadOfDropping() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger handled = new AtomicInteger();
+        Runnable slow = new Runnable() {
+            public void run() {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                handled.incrementAndGet();
+            }
+        };
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 20; i++) {
+                    dispatcher.dispatch("job", "event", new Runnable() {
+                        public void run() {
+                            handled.incrementAndGet();
+                        }
+                    });
+                }
+            }
+        };
+        dispatcher.dispatch("job", "slow event", slow);
+        producer.start();
+        producer.join(200);
+        assertTrue(producer.isAlive());
+        release.countDown();
+        producer.join(10000);
+        assertTrue(dispatcher.drain(10000));
+        assertEquals(21, handled.get());
+    }
+
+    @Test
+    public void eventsAfterShutdownRunOnTheCallingThread() {
+        assertTrue(dispatcher.drain(5000));
+        final Thread caller = Thread.currentThread();
+        final AtomicInteger handledHere = new AtomicInteger();
+        assertFalse(dispatcher.dispatch("job", "late event", new Runnable() {
+            public void run() {
+                if (Thread.currentThread() == caller) {
+                    handledHere.incrementAndGet();
+                }
+            }
+        }));
+        assertEquals(1, handledHere.get());
+    }
+}
@@ -0,0 +1,435 @@
+package jenkins.plugins.hipchat;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process stand-in for the HipChat v1 <code>/v1/rooms/message</code> and v2
+ * <code>/v2/room/{room}/notification</code> endpoints on a local port, for tests, benchmarks and soak runs,
+ * plus a <code>/relay</code> endpoint taking {@link BatchSender} batches (recorded as one request per message). It records every request and can be told to answer slowly, fail with
+ * a 500, throttle with a 429 and <code>Retry-After</code>, or drop the connection without answering.
+ * Failed, throttled and dropped requests are recorded but never count as delivered.
+ */
+public class FakeHipChatServer {
+
+   private static final String V1_PATH = "/v1/rooms/message";
+   private static final Pattern V2_PATH = Pattern.compile("/v2/room/([^/]+)/notification");
+   private static final String RELAY_PATH = "/relay";
+   private static final Pattern RELAY_MESSAGE = Pattern.compile("\\{\"room\":(?:[^\"}]|\"(?:[^\"\\\\]|\\\\.)*\")*\\}");
+   private static final Pattern JSON_FIELD = Pattern.compile("\"(\\w+)\":(?:\"((?:[^\"\\\\]|\\\\.)*)\"|(true|false))");
+   private static final byte[] OK = "{\"status\":\"sent\"}".getBytes();
+   private static final byte[] ERROR = "{\"error\":{\"code\":500,\"message\":\"fake failure\"}}".getBytes();
+   private static final byte[] THROTTLED = "{\"error\":{\"code\":429,\"message\":\"rate limit exceeded\"}}".getBytes();
+   private static final byte[] NOT_FOUND = "{\"error\":{\"code\":404,\"message\":\"not found\"}}".getBytes();
+
+   private final HttpServer server;
+   private final ExecutorService executor;
+   private final Random random = new Random();
+   private final ConcurrentLinkedQueue<Request> requests = new ConcurrentLinkedQueue<Request>();
+   private final AtomicInteger throttleNext = new AtomicInteger();
+   private final AtomicInteger relayPosts = new AtomicInteger();
+   private volatile long latencyMillis;
+   private volatile long latencyJitterMillis;
+   private volatile double errorRate;
+   private volatile double throttleRate;
+   private volatile int retryAfterSeconds = 1;
+   private volatile double dropRate;
+
+   public FakeHipChatServer() throws IOException {
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      executor = Executors.newCachedThreadPool();
+      server.setExecutor(executor);
+      server.createContext("/", new HttpHandler() {
+         public void handle(HttpExchange exchange) throws IOException {
+            try {
+               respond(exchange);
+            }
+            finally {
+               exchange.close();
+            }
+         }
+      });
+      server.start();
+   }
+
+   /**
+    * Delays every answer by <code>millis</code>, plus up to <code>jitterMillis</code> at random.
+    */
+   public void setLatency(long millis, long jitterMillis) {
+      this.latencyMillis = millis;
+      this.latencyJitterMillis = jitterMillis;
+   }
+
+   /**
+    * Fraction (0..1) of posts answered with a 500.
+    */
+   public void setErrorRate(double errorRate) {
+      this.errorRate = errorRate;
+   }
+
+   /**
+    * Fraction (0..1) of posts answered with a 429 carrying {@link #setRetryAfterSeconds(int) Retry-After}.
+    */
+   public void setThrottleRate(double throttleRate) {
+      this.throttleRate = throttleRate;
+   }
+
+   /**
+    * Answers the next <code>count</code> posts with a 429, regardless of the throttle rate.
+    */
+   public void throttleNext(int count) {
+      throttleNext.set(count);
+   }
+
+   public void setRetryAfterSeconds(int retryAfterSeconds) {
+      this.retryAfterSeconds = retryAfterSeconds;
+   }
+
+   /**
+    * Fraction (0..1) of posts whose connection is closed before any response is sent.
+    */
+   public void setDropRate(double dropRate) {
+      this.dropRate = dropRate;
+   }
+
+   /**
+    * What to pass to {@link StandardHipChatService#setHost(String)}, e.g. <code>http://127.0.0.1:54321</code>.
+    */
+   public String getUrl() {
+      return "http://127.0.0.1:" + server.getAddress().getPort();
+   }
+
+   /**
+    * The URL to configure as the batch relay.
+    */
+   public String getRelayUrl() {
+      return getUrl() + RELAY_PATH;
+   }
+
+   /**
+    * How many batches were posted to the relay.
+    */
+   public int getRelayPostCount() {
+      return relayPosts.get();
+   }
+
+   public StandardHipChatService newService(String token, String rooms) {
+      StandardHipChatService service = new StandardHipChatService(token, rooms, "Jenkins");
+      service.setHost(getUrl());
+      return service;
+   }
+
+   /**
+    * Every request received so far, in arrival order.
+    */
+   public List<Request> getRequests() {
+      return new ArrayList<Request>(requests);
+   }
+
+   /**
+    * The requests that were accepted (200 for v1, 204 for v2), in arrival order.
+    */
+   public List<Request> getDelivered() {
+      List<Request> delivered = new ArrayList<Request>();
+      for(Request request : requests) {
+         if(request.isDelivered()) {
+            delivered.add(request);
+         }
+      }
+      return delivered;
+   }
+
+   public int getDeliveredCount() {
+      int count = 0;
+      for(Request request : requests) {
+         if(request.isDelivered()) {
+            count++;
+         }
+      }
+      return count;
+   }
+
+   public void reset() {
+      requests.clear();
+      throttleNext.set(0);
+      relayPosts.set(0);
+   }
+
+   public void stop() {
+      server.stop(0);
+      executor.shutdownNow();
+   }
+
+   private void respond(HttpExchange exchange) throws IOException {
+      long received = System.nanoTime();
+      String path = exchange.getRequestURI().getPath();
+      Matcher v2 = V2_PATH.matcher(path);
+      String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+      Map<String, String> params;
+      if(RELAY_PATH.equals(path)) {
+         relay(exchange, readBody(exchange.getRequestBody()), authorization, received);
+         return;
+      }
+      if(v2.matches()) {
+         params = parseJson(readBody(exchange.getRequestBody()));
+         params.put("room_id", v2.group(1));
+         putBearerToken(params, authorization);
+      }
+      else {
+         params = parseForm(readBody(exchange.getRequestBody()));
+         params.putAll(parseForm(exchange.getRequestURI().getRawQuery()));
+      }
+      sleep(latencyMillis + (latencyJitterMillis > 0 ? (long)(random.nextDouble() * latencyJitterMillis) : 0));
+
+      if(!V1_PATH.equals(path) && !v2.matches()) {
+         requests.add(new Request(params, 404, received));
+         send(exchange, 404, NOT_FOUND);
+         return;
+      }
+      if(dropRate > 0 && random.nextDouble() < dropRate) {
+         requests.add(new Request(params, -1, received));
+         return;
+      }
+      if(takeForcedThrottle() || (throttleRate > 0 && random.nextDouble() < throttleRate)) {
+         requests.add(new Request(params, 429, received));
+         exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+         send(exchange, 429, THROTTLED);
+         return;
+      }
+      if(errorRate > 0 && random.nextDouble() < errorRate) {
+         requests.add(new Request(params, 500, received));
+         send(exchange, 500, ERROR);
+         return;
+      }
+      if(v2.matches()) {
+         requests.add(new Request(params, 204, received));
+         exchange.sendResponseHeaders(204, -1);
+      }
+      else {
+         requests.add(new Request(params, 200, received));
+         send(exchange, 200, OK);
+      }
+   }
+
+   /**
+    * Answers a batch: failure injection applies to the whole post, otherwise every message is delivered.
+    */
+   private void relay(HttpExchange exchange, String body, String authorization, long received) throws IOException {
+      relayPosts.incrementAndGet();
+      List<Map<String, String>> messages = new ArrayList<Map<String, String>>();
+      Matcher message = RELAY_MESSAGE.matcher(body);
+      while(message.find()) {
+         Map<String, String> params = parseJson(message.group());
+         params.put("room_id", params.remove("room"));
+         putBearerToken(params, authorization);
+         messages.add(params);
+      }
+      sleep(latencyMillis + (latencyJitterMillis > 0 ? (long)(random.nextDouble() * latencyJitterMillis) : 0));
+      int status = 200;
+      if(dropRate > 0 && random.nextDouble() < dropRate) {
+         status = -1;
+      }
+      else if(takeForcedThrottle() || (throttleRate > 0 && random.nextDouble() < throttleRate)) {
+         status = 429;
+      }
+      else if(errorRate > 0 && random.nextDouble() < errorRate) {
+         status = 500;
+      }
+      StringBuilder results = new StringBuilder("{\"results\":[");
+      for(int i = 0; i < messages.size(); i++) {
+         requests.add(new Request(messages.get(i), status == 200 ? 204 : status, received));
+         results.append(i > 0 ? "," : "").append(204);
+      }
+      if(status == -1) {
+         return;
+      }
+      if(status == 429) {
+         exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+         send(exchange, 429, THROTTLED);
+      }
+      else if(status == 500) {
+         send(exchange, 500, ERROR);
+      }
+      else {
+         send(exchange, 200, results.append("]}").toString().getBytes("UTF-8"));
+      }
+   }
+
+   private static void putBearerToken(Map<String, String> params, String authorization) {
+      if(authorization != null && authorization.startsWith("Bearer ")) {
+         params.put("auth_token", authorization.substring("Bearer ".length()));
+      }
+   }
+
+   private boolean takeForcedThrottle() {
+      int remaining;
+      do {
+         remaining = throttleNext.get();
+         if(remaining <= 0) {
+            return false;
+         }
+      } while(!throttleNext.compareAndSet(remaining, remaining - 1));
+      return true;
+   }
+
+   private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+      exchange.getResponseHeaders().set("Content-Type", "application/json");
+      exchange.sendResponseHeaders(status, body.length);
+      OutputStream out = exchange.getResponseBody();
+      out.write(body);
+      out.close();
+   }
+
+   private static String readBody(InputStream in) throws IOException {
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int read;
+      while((read = in.read(buffer)) >= 0) {
+         body.write(buffer, 0, read);
+      }
+      in.close();
+      return body.toString("UTF-8");
+   }
+
+   private static Map<String, String> parseForm(String form) throws UnsupportedEncodingException {
+      Map<String, String> params = new HashMap<String, String>();
+      if(form == null || form.length() == 0) {
+         return params;
+      }
+      for(String pair : form.split("&")) {
+         int equals = pair.indexOf('=');
+         if(equals > 0) {
+            params.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"), URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+         }
+      }
+      return params;
+   }
+
+   /**
+    * Reads the string and boolean fields of a flat JSON object, which is all a notification body has.
+    */
+   private static Map<String, String> parseJson(String json) {
+      Map<String, String> fields = new HashMap<String, String>();
+      Matcher field = JSON_FIELD.matcher(json);
+      while(field.find()) {
+         fields.put(field.group(1), field.group(2) != null ? unescapeJson(field.group(2)) : field.group(3));
+      }
+      return fields;
+   }
+
+   private static String unescapeJson(String value) {
+      StringBuilder text = new StringBuilder(value.length());
+      for(int i = 0; i < value.length(); i++) {
+         char c = value.charAt(i);
+         if(c != '\\') {
+            text.append(c);
+            continue;
+         }
+         char escaped = value.charAt(++i);
+         switch(escaped) {
+            case 'n':
+               text.append('\n');
+               break;
+            case 'r':
+               text.append('\r');
+               break;
+            case 't':
+               text.append('\t');
+               break;
+            case 'u':
+               text.append((char)Integer.parseInt(value.substring(i + 1, i + 5), 16));
+               i += 4;
+               break;
+            default:
+               text.append(escaped);
+         }
+      }
+      return text.toString();
+   }
+
+   private static void sleep(long millis) {
+      if(millis <= 0) {
+         return;
+      }
+      try {
+         Thread.sleep(millis);
+      }
+      catch(InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /**
+    * One recorded post. The status is what the fake answered, or -1 if it dropped the connection.
+    */
+   public static class Request {
+      private final Map<String, String> params;
+      private final int status;
+      private final long receivedNanos;
+
+      Request(Map<String, String> params, int status, long receivedNanos) {
+         this.params = params;
+         this.status = status;
+         this.receivedNanos = receivedNanos;
+      }
+
+      public String getToken() {
+         return params.get("auth_token");
+      }
+
+      public String getRoom() {
+         return params.get("room_id");
+      }
+
+      public String getFrom() {
+         return params.get("from");
+      }
+
+      public String getMessage() {
+         return params.get("message");
+      }
+
+      public String getColor() {
+         return params.get("color");
+      }
+
+      public String getNotify() {
+         return params.get("notify");
+      }
+
+      public int getStatus() {
+         return status;
+      }
+
+      public boolean isDelivered() {
+         return status == 200 || status == 204;
+      }
+
+      /**
+       * When the request arrived, on the {@link System#nanoTime()} clock of this JVM.
+       */
+      public long getReceivedNanos() {
+         return receivedNanos;
+      }
+   }
+}
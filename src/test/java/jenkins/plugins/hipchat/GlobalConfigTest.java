@@ -0,0 +1,74 @@
+package jenkins.plugins.hipchat;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GlobalConfigTest {
+
+    private volatile GlobalConfig published = snapshot(0);
+
+    @Test
+    public void readersNeverSeeSettingsFromTwoSnapshots() throws InterruptedException {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicInteger mixed = new AtomicInteger();
+        final AtomicInteger reads = new AtomicInteger();
+        Thread[] readers = new Thread[4];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread() {
+                @Override
+                public void run() {
+                    while (running.get()) {
+                        GlobalConfig config = published;
+                        String version = config.getToken();
+                        if (!version.equals(config.getRoom()) || !config.getJenkinsUrl().endsWith("/" + version + "/")
+                                || !version.equals(config.getRoomMapping().resolve("host"))) {
+                            mixed.incrementAndGet();
+                        }
+                        reads.incrementAndGet();
+                    }
+                }
+            };
+            readers[i].start();
+        }
+        for (int i = 1; i <= 20000; i++) {
+            published = snapshot(i);
+        }
+        running.set(false);
+        for (Thread reader : readers) {
+            reader.join(10000);
+        }
+        assertTrue(reads.get() > 0);
+        assertEquals(0, mixed.get());
+    }
+
+    @Test
+    public void roomMappingIsCompiledWithTheSnapshot() {
+        GlobalConfig config = GlobalConfig.of("token", null, "ops", "http://ci/", "qa*=qa-room");
+        assertEquals(ApiVersion.V1, config.getApiVersion());
+        assertEquals("qa-room", config.getRoomMapping().resolve("qa1"));
+        assertEquals("qa*=qa-room", config.getRoomsByHostText());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidRoomMappingIsRejected() {
+        GlobalConfig.of("token", ApiVersion.V1, "ops", "http://ci/", "re:(=broken");
+    }
+
+    @Test
+    public void savedInvalidRoomMappingIsIgnored() {
+        GlobalConfig config = GlobalConfig.lenient("token", ApiVersion.V1, "ops", "http://ci/", "re:(=broken");
+        assertTrue(config.getRoomMapping().isEmpty());
+        assertEquals("re:(=broken", config.getRoomsByHostText());
+        assertEquals("ops", config.getRoom());
+    }
+
+    private static GlobalConfig snapshot(int version) {
+        String value = Integer.toString(version);
+        return GlobalConfig.of(value, ApiVersion.V1, value, "http://ci/" + value + "/", "host=" + value);
+    }
+}
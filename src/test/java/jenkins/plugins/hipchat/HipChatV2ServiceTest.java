@@ -0,0 +1,57 @@
+package jenkins.plugins.hipchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HipChatV2ServiceTest {
+    private FakeHipChatServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeHipChatServer();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void notificationIsEscapedJson() throws Exception {
+        StringWriter json = new StringWriter();
+        new HipChatV2Service.Notification("Jenkins", "<b>\"quoted\"</b>\\\n\u0001", "red", true).write(json);
+        assertEquals("{\"message\":\"<b>\\\"quoted\\\"</b>\\\\\\n\\u0001\",\"message_format\":\"html\","
+                + "\"color\":\"red\",\"notify\":true,\"from\":\"Jenkins\"}", json.toString());
+    }
+
+    @Test
+    public void roomNamesAreEncodedIntoThePath() {
+        assertEquals("Build%20Status%2Fops", HipChatV2Service.encodePathSegment(" Build Status/ops"));
+    }
+
+    @Test
+    public void publishPostsNotificationWithBearerToken() {
+        HipChatV2Service service = new HipChatV2Service("secret", "ops,Build Status", "Jenkins");
+        service.setHost(server.getUrl());
+        PublishResult result = service.publish("<b>FAILURE</b> \u2713", "green");
+        assertTrue(result.isSuccess());
+        List<FakeHipChatServer.Request> delivered = server.getDelivered();
+        assertEquals(2, delivered.size());
+        assertEquals("ops", delivered.get(0).getRoom());
+        assertEquals("Build Status", delivered.get(1).getRoom());
+        for(FakeHipChatServer.Request request : delivered) {
+            assertEquals(204, request.getStatus());
+            assertEquals("secret", request.getToken());
+            assertEquals("<b>FAILURE</b> \u2713", request.getMessage());
+            assertEquals("green", request.getColor());
+            assertEquals("false", request.getNotify());
+        }
+    }
+}
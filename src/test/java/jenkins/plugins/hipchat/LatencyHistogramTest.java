@@ -0,0 +1,40 @@
+package jenkins.plugins.hipchat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverEveryValueInOrder() {
+        int previous = -1;
+        for(long value = 0; value < 1L << 37; value = value < 1000 ? value + 1 : value + value / 7) {
+            int index = LatencyHistogram.index(value);
+            assertTrue(index >= previous);
+            assertTrue(index < LatencyHistogram.BUCKETS);
+            assertTrue(LatencyHistogram.highestEquivalent(index) >= value);
+            previous = index;
+        }
+    }
+
+    @Test
+    public void quantilesAreWithinPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(long micros = 1; micros <= 100000; micros++) {
+            histogram.record(micros);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(100000, snapshot.getCount());
+        assertEquals(100000, snapshot.getMax());
+        assertEquals(50000, snapshot.getValueAtQuantile(0.5), 50000 * 0.04);
+        assertEquals(99000, snapshot.getValueAtQuantile(0.99), 99000 * 0.04);
+        assertEquals(100000, snapshot.getValueAtQuantile(1.0));
+    }
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        assertEquals(0, new LatencyHistogram().snapshot().getValueAtQuantile(0.99));
+    }
+}
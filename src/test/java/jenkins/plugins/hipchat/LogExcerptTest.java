@@ -0,0 +1,186 @@
+package jenkins.plugins.hipchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LogExcerptTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private File log;
+
+    @Before
+    public void setUp() throws IOException {
+        log = File.createTempFile("log", ".txt");
+    }
+
+    @After
+    public void tearDown() {
+        log.delete();
+    }
+
+    @Test
+    public void lastLinesAreQuoted() throws IOException {
+        write("one\ntwo\r\nthree\nfour\n");
+        assertEquals("two\nthree\nfour", new LogExcerpt(3, null, 0).excerpt(log, UTF8));
+        assertEquals("one\ntwo\nthree\nfour", new LogExcerpt(10, null, 0).excerpt(log, UTF8));
+    }
+
+    @Test
+    public void linesAreFoundAcrossBlocks() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        write(text.toString());
+        assertEquals("line 4998\nline 4999", new LogExcerpt(2, null, 1024 * 1024).excerpt(log, UTF8));
+    }
+
+    @Test
+    public void searchStopsAtTheLimitWithoutPartialLines() throws IOException {
+        StringBuilder text = new StringBuilder("ERROR way back\n");
+        for (int i = 0; i < 100; i++) {
+            text.append(line(i, 1500)).append('\n');
+        }
+        write(text.toString());
+        LogExcerpt excerpt = new LogExcerpt(100000, null, LogExcerpt.BLOCK_SIZE);
+        String[] lines = excerpt.excerpt(log, UTF8).split("\n");
+        assertEquals(LogExcerpt.BLOCK_SIZE / 1501, lines.length);
+        assertTrue(lines[0].startsWith("line "));
+        assertTrue(lines[lines.length - 1].startsWith("line 99 "));
+        assertNull(new LogExcerpt(0, "ERROR", LogExcerpt.BLOCK_SIZE).excerpt(log, UTF8));
+    }
+
+    @Test
+    public void firstMatchingLineIsQuotedInsteadOfTheTail() throws IOException {
+        write("compiling\nERROR: first\nERROR: second\ndone\n");
+        assertEquals("ERROR: first", new LogExcerpt(2, "ERROR", 0).excerpt(log, UTF8));
+        assertEquals("ERROR: second\ndone", new LogExcerpt(2, "FATAL", 0).excerpt(log, UTF8));
+    }
+
+    @Test
+    public void excerptIsCachedUntilTheLogChanges() throws IOException {
+        write("one\ntwo\n");
+        LogExcerpt excerpt = new LogExcerpt(1, null, 0);
+        String first = excerpt.excerpt(log, UTF8);
+        assertEquals("two", first);
+        assertTrue(first == excerpt.excerpt(log, UTF8));
+        write("one\ntwo\nthree\n");
+        assertEquals("three", excerpt.excerpt(log, UTF8));
+    }
+
+    @Test
+    public void sameLengthRewriteIsReadAgainWhenTheTimestampChanges() throws IOException {
+        write("one\nbad\n");
+        assertTrue(log.setLastModified(1000000000000L));
+        LogExcerpt excerpt = new LogExcerpt(1, null, 0);
+        assertEquals("bad", excerpt.excerpt(log, UTF8));
+        write("one\nok!\n");
+        assertTrue(log.setLastModified(1000000000000L));
+        assertEquals("bad", excerpt.excerpt(log, UTF8));
+        assertTrue(log.setLastModified(1000000060000L));
+        assertEquals("ok!", excerpt.excerpt(log, UTF8));
+    }
+
+    @Test
+    public void appendWithinTheSameTimestampIsReadAgain() throws IOException {
+        write("one\n");
+        assertTrue(log.setLastModified(1000000000000L));
+        LogExcerpt excerpt = new LogExcerpt(1, null, 0);
+        assertEquals("one", excerpt.excerpt(log, UTF8));
+        write("one\ntwo\n");
+        assertTrue(log.setLastModified(1000000000000L));
+        assertEquals("two", excerpt.excerpt(log, UTF8));
+    }
+
+    @Test
+    public void matchBeforeTheWindowFallsBackToTheTail() throws IOException {
+        StringBuilder text = new StringBuilder("ERROR: too early\n");
+        for (int i = 0; i < 1000; i++) {
+            text.append(line(i, 40)).append('\n');
+        }
+        write(text.toString());
+        assertEquals(line(999, 40), new LogExcerpt(1, "ERROR", LogExcerpt.BLOCK_SIZE).excerpt(log, UTF8));
+        assertEquals("ERROR: too early", new LogExcerpt(1, "ERROR", 1024 * 1024).excerpt(log, UTF8));
+    }
+
+    @Test
+    public void longMatchingLineIsTruncated() throws IOException {
+        write("start\nERROR " + line(1, 1000) + "\nend");
+        String match = new LogExcerpt(1, "ERROR", 0).excerpt(log, UTF8);
+        assertEquals(LogExcerpt.MAX_LINE_CHARS + 3, match.length());
+        assertTrue(match.startsWith("ERROR line 1 "));
+        assertTrue(match.endsWith("..."));
+    }
+
+    @Test
+    public void lastLineWithoutNewlineCounts() throws IOException {
+        write("one\ntwo\nthree");
+        assertEquals("two\nthree", new LogExcerpt(2, null, 0).excerpt(log, UTF8));
+    }
+
+    @Test
+    public void tailIsCutFromTheTopToFitTheLimit() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            text.append(line(i, 60)).append('\n');
+        }
+        write(text.toString());
+        String excerpt = new LogExcerpt(100, null, 0).excerpt(log, UTF8);
+        assertTrue(excerpt.length() <= LogExcerpt.MAX_EXCERPT_CHARS);
+        assertTrue(excerpt.startsWith("...\n"));
+        assertTrue(excerpt.endsWith(line(99, 60)));
+        assertEquals(1 + (LogExcerpt.MAX_EXCERPT_CHARS - 3) / 61, excerpt.split("\n").length);
+    }
+
+    @Test
+    public void tailThatFillsTheLimitExactlyIsKeptWhole() throws IOException {
+        StringBuilder text = new StringBuilder(line(0, 50)).append('\n');
+        for (int i = 1; i < 40; i++) {
+            text.append(line(i, 49)).append('\n');
+        }
+        write(text.toString());
+        String excerpt = new LogExcerpt(40, null, 0).excerpt(log, UTF8);
+        assertEquals(LogExcerpt.MAX_EXCERPT_CHARS, excerpt.length());
+        assertTrue(excerpt.startsWith(line(0, 50)));
+        write("extra\n" + text);
+        excerpt = new LogExcerpt(41, null, 0).excerpt(log, UTF8);
+        assertTrue(excerpt.length() <= LogExcerpt.MAX_EXCERPT_CHARS);
+        assertTrue(excerpt.startsWith("...\n"));
+    }
+
+    @Test
+    public void disabledOrEmptyGivesNothing() throws IOException {
+        write("one\n");
+        assertNull(new LogExcerpt(0, " ", 0).excerpt(log, UTF8));
+        write("");
+        assertNull(new LogExcerpt(5, null, 0).excerpt(log, UTF8));
+    }
+
+    private static String line(int number, int length) {
+        StringBuilder line = new StringBuilder("line ").append(number).append(' ');
+        while (line.length() < length) {
+            line.append('x');
+        }
+        return line.toString();
+    }
+
+    private void write(String text) throws IOException {
+        FileOutputStream out = new FileOutputStream(log);
+        try {
+            out.write(text.getBytes(UTF8));
+        }
+        finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package jenkins.plugins.hipchat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class MessageBuilderTest {
+
+    @Test
+    public void releasedBufferIsReusedEmpty() {
+        StringBuilder buffer = ActiveNotifier.MessageBuilder.takeBuffer();
+        buffer.append("previous message");
+        ActiveNotifier.MessageBuilder.releaseBuffer(buffer);
+        StringBuilder reused = ActiveNotifier.MessageBuilder.takeBuffer();
+        assertSame(buffer, reused);
+        assertEquals(0, reused.length());
+        ActiveNotifier.MessageBuilder.releaseBuffer(reused);
+    }
+
+    @Test
+    public void bufferInUseIsNotHandedOutTwice() {
+        StringBuilder first = ActiveNotifier.MessageBuilder.takeBuffer();
+        StringBuilder second = ActiveNotifier.MessageBuilder.takeBuffer();
+        assertNotSame(first, second);
+        ActiveNotifier.MessageBuilder.releaseBuffer(second);
+        ActiveNotifier.MessageBuilder.releaseBuffer(first);
+    }
+
+    @Test
+    public void bufferGrownPast16KIsDiscarded() {
+        StringBuilder small = ActiveNotifier.MessageBuilder.takeBuffer();
+        ActiveNotifier.MessageBuilder.releaseBuffer(small);
+        StringBuilder large = ActiveNotifier.MessageBuilder.takeBuffer();
+        assertSame(small, large);
+        large.ensureCapacity(16 * 1024 + 1);
+        ActiveNotifier.MessageBuilder.releaseBuffer(large);
+        StringBuilder fresh = ActiveNotifier.MessageBuilder.takeBuffer();
+        assertNotSame(large, fresh);
+        assertEquals(256, fresh.capacity());
+    }
+}
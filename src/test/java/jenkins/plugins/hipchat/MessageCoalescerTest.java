@@ -0,0 +1,55 @@
+package jenkins.plugins.hipchat;
+
+import hudson.model.Result;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MessageCoalescerTest {
+
+    @Test
+    public void smallDigestListsEveryMessageWorstFirst() {
+        String digest = MessageCoalescer.digest(Arrays.asList(
+                new MessageCoalescer.Entry("b", Result.SUCCESS, "b passed", "green"),
+                new MessageCoalescer.Entry("a", Result.FAILURE, "a failed", "red")));
+        assertEquals("2 builds finished: 1 FAILURE, 1 SUCCESS<br/>a failed<br/>b passed", digest);
+    }
+
+    @Test
+    public void longDigestIsCutAtAWholeMessageAndCountsTheRest() {
+        List<MessageCoalescer.Entry> entries = new ArrayList<MessageCoalescer.Entry>();
+        for (int i = 0; i < 20; i++) {
+            entries.add(new MessageCoalescer.Entry("job" + (char) ('a' + i), i == 19 ? Result.FAILURE : Result.SUCCESS,
+                    message(i, 1500), i == 19 ? "red" : "green"));
+        }
+        String digest = MessageCoalescer.digest(entries);
+        assertTrue(digest.length() <= MessageCoalescer.MAX_DIGEST_CHARS);
+        assertTrue(digest.startsWith("20 builds finished: 1 FAILURE, 19 SUCCESS<br/>" + message(19, 1500) + "<br/>"));
+        assertTrue(digest.endsWith("<br/>... and 15 more"));
+    }
+
+    @Test
+    public void digestThatFitsExactlyIsNotCut() {
+        String header = "2 builds finished: 2 SUCCESS";
+        int each = (MessageCoalescer.MAX_DIGEST_CHARS - header.length()) / 2 - "<br/>".length();
+        String digest = MessageCoalescer.digest(Arrays.asList(
+                new MessageCoalescer.Entry("a", Result.SUCCESS, message(0, each), "green"),
+                new MessageCoalescer.Entry("b", Result.SUCCESS, message(1, each), "green")));
+        assertTrue(digest.length() <= MessageCoalescer.MAX_DIGEST_CHARS);
+        assertTrue(digest.endsWith(message(1, each)));
+    }
+
+    private static String message(int job, int length) {
+        StringBuilder message = new StringBuilder("job ").append(job).append(' ');
+        while (message.length() < length) {
+            message.append('x');
+        }
+        return message.toString();
+    }
+}
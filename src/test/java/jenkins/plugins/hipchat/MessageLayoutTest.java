@@ -0,0 +1,35 @@
+package jenkins.plugins.hipchat;
+
+import hudson.model.Result;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class MessageLayoutTest {
+
+    @Test
+    public void escapesHtmlInOnePass() {
+        assertEquals("a &lt;b&gt; &amp; &quot;c&quot; &#39;d&#39;", MessageLayout.escape("a <b> & \"c\" 'd'"));
+        StringBuilder out = new StringBuilder("x ");
+        MessageLayout.escape(out, "R&D");
+        assertEquals("x R&amp;D", out.toString());
+    }
+
+    @Test
+    public void plainTextIsNotCopied() {
+        String text = "nothing to escape";
+        assertSame(text, MessageLayout.escape(text));
+    }
+
+    @Test
+    public void statusAndColorComeFromResult() {
+        assertEquals("<b>FAILURE</b>", MessageLayout.getStatusMessage(Result.FAILURE));
+        assertEquals("Not built", MessageLayout.getStatusMessage(Result.NOT_BUILT));
+        assertEquals("Unknown", MessageLayout.getStatusMessage(null));
+        assertEquals("green", MessageLayout.getColor(Result.SUCCESS));
+        assertEquals("red", MessageLayout.getColor(Result.FAILURE));
+        assertEquals("yellow", MessageLayout.getColor(Result.ABORTED));
+    }
+}
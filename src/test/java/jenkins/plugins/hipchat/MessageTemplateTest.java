@@ -0,0 +1,52 @@
+package jenkins.plugins.hipchat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageTemplateTest {
+
+    private static class Variables implements MessageTemplate.VariableResolver {
+        final Map<String, String> values = new HashMap<String, String>();
+        final List<String> asked = new ArrayList<String>();
+
+        public String resolve(String name) {
+            asked.add(name);
+            return values.get(name);
+        }
+    }
+
+    @Test
+    public void expandsBothVariableForms() {
+        Variables vars = new Variables();
+        vars.values.put("HOST", "qa1");
+        vars.values.put("BUILD.ID", "42");
+        assertEquals("deploy to qa1 (#42)", MessageTemplate.parse("deploy to $HOST (#${BUILD.ID})").expand(vars));
+    }
+
+    @Test
+    public void unknownVariablesAreLeftAlone() {
+        Variables vars = new Variables();
+        assertEquals("$NOPE and ${NOPE} cost $5", MessageTemplate.parse("$NOPE and ${NOPE} cost $5").expand(vars));
+        assertEquals("$ {x} ${ $", MessageTemplate.parse("$ {x} ${ $").expand(vars));
+    }
+
+    @Test
+    public void onlyReferencedVariablesAreResolved() {
+        Variables vars = new Variables();
+        MessageTemplate plain = MessageTemplate.parse("no variables here");
+        assertFalse(plain.hasVariables());
+        assertEquals("no variables here", plain.expand(vars));
+        assertTrue(vars.asked.isEmpty());
+
+        MessageTemplate.parse("$A-$B").expand(vars);
+        assertEquals(2, vars.asked.size());
+    }
+}
@@ -0,0 +1,96 @@
+package jenkins.plugins.hipchat;
+
+import hudson.model.Result;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationFilterTest {
+    private static final long MINUTE = 60 * 1000;
+
+    private final NotificationFilter filter = new NotificationFilter(60 * MINUTE, 4);
+
+    @Test
+    public void repeatedFailuresAreHeldBackWithOneReminderPerInterval() {
+        assertEquals("", filter.check("ops", "job", Result.FAILURE, 0));
+        assertNull(filter.check("ops", "job", Result.FAILURE, 10 * MINUTE));
+        assertNull(filter.check("ops", "job", Result.FAILURE, 20 * MINUTE));
+        assertEquals(" - still failing (x4)", filter.check("ops", "job", Result.FAILURE, 60 * MINUTE));
+        assertNull(filter.check("ops", "job", Result.FAILURE, 70 * MINUTE));
+    }
+
+    @Test
+    public void fixIsSentRightAway() {
+        filter.check("ops", "job", Result.FAILURE, 0);
+        filter.check("ops", "job", Result.FAILURE, MINUTE);
+        assertEquals(" - fixed", filter.check("ops", "job", Result.SUCCESS, 2 * MINUTE));
+        assertNull(filter.check("ops", "job", Result.SUCCESS, 3 * MINUTE));
+    }
+
+    @Test
+    public void roomsAndJobsAreTrackedSeparately() {
+        filter.check("ops", "job", Result.FAILURE, 0);
+        assertEquals("", filter.check("dev", "job", Result.FAILURE, MINUTE));
+        assertEquals("", filter.check("ops", "other", Result.FAILURE, MINUTE));
+    }
+
+    @Test
+    public void flappingJobIsReportedOnceUntilItSettles() {
+        filter.check("ops", "job", Result.SUCCESS, 0);
+        assertEquals("", filter.check("ops", "job", Result.FAILURE, MINUTE));
+        assertEquals(" - fixed", filter.check("ops", "job", Result.SUCCESS, 2 * MINUTE));
+        assertEquals("", filter.check("ops", "job", Result.FAILURE, 3 * MINUTE));
+        assertEquals(" - flapping (4 changes within 60 minutes)", filter.check("ops", "job", Result.SUCCESS, 4 * MINUTE));
+        assertNull(filter.check("ops", "job", Result.FAILURE, 5 * MINUTE));
+        assertNull(filter.check("ops", "job", Result.SUCCESS, 6 * MINUTE));
+        assertEquals(" - still flapping (x3)", filter.check("ops", "job", Result.FAILURE, 64 * MINUTE));
+        for(int i = 0; i < 3; i++) {
+            filter.check("ops", "job", Result.SUCCESS, (200 + i) * MINUTE);
+        }
+        assertEquals(" - settled (passing)", filter.check("ops", "job", Result.SUCCESS, 300 * MINUTE));
+        assertNull(filter.check("ops", "job", Result.SUCCESS, 301 * MINUTE));
+    }
+
+    @Test
+    public void sameResultWithADifferentMessageIsSentRightAway() {
+        long compileError = NotificationFilter.fingerprint("FAILURE cannot find symbol at Foo.java:12");
+        long testFailure = NotificationFilter.fingerprint("FAILURE expected:<1> but was:<2>");
+        assertEquals("", filter.check("ops", "job", Result.FAILURE, compileError, 0));
+        assertNull(filter.check("ops", "job", Result.FAILURE, compileError, MINUTE));
+        assertEquals("", filter.check("ops", "job", Result.FAILURE, testFailure, 2 * MINUTE));
+        assertNull(filter.check("ops", "job", Result.FAILURE, testFailure, 3 * MINUTE));
+        assertEquals(" - still failing (x3)", filter.check("ops", "job", Result.FAILURE, testFailure, 62 * MINUTE));
+    }
+
+    @Test
+    public void fingerprintIgnoresNumbers() {
+        assertEquals(NotificationFilter.fingerprint("#12 failed after 3 tests"), NotificationFilter.fingerprint("#1357 failed after 40 tests"));
+        assertTrue(NotificationFilter.fingerprint("failed in Foo") != NotificationFilter.fingerprint("failed in Bar"));
+    }
+
+    @Test
+    public void expiredStatesAreDroppedWhenOthersAreAdded() {
+        filter.check("ops", "old", Result.FAILURE, 0);
+        filter.check("ops", "recent", Result.FAILURE, NotificationFilter.STATE_TTL_MILLIS);
+        filter.check("ops", "new", Result.FAILURE, NotificationFilter.STATE_TTL_MILLIS + MINUTE);
+        assertEquals(2, filter.size());
+    }
+
+    @Test
+    public void disabledFilterSendsEverything() {
+        NotificationFilter disabled = new NotificationFilter(0, 4);
+        assertEquals("", disabled.check("ops", "job", Result.FAILURE, 0));
+        assertEquals("", disabled.check("ops", "job", Result.FAILURE, 0));
+    }
+
+    @Test
+    public void trackedJobsAreBounded() {
+        for(int i = 0; i < NotificationFilter.MAX_TRACKED + 100; i++) {
+            filter.check("ops", "job" + i, Result.SUCCESS, 0);
+        }
+        assertEquals(NotificationFilter.MAX_TRACKED, filter.size());
+    }
+}
@@ -0,0 +1,117 @@
+package jenkins.plugins.hipchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationHistoryTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("history", ".bin");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void entriesComeBackNewestFirstWithTheirFields() {
+        NotificationHistory history = new NotificationHistory(file, 10);
+        history.record(1000, "ops", "red", 204, 35, 0xabcL);
+        history.record(2000, "dev \u2713", "green", -1, 5000, 0xdefL);
+        List<NotificationHistory.Entry> entries = history.query(Long.MIN_VALUE, Long.MAX_VALUE, 0, 10);
+        assertEquals(2, entries.size());
+        NotificationHistory.Entry newest = entries.get(0);
+        assertEquals(2000, newest.getTimestamp());
+        assertEquals("dev \u2713", newest.getRoom());
+        assertEquals("green", newest.getColor());
+        assertEquals(-1, newest.getStatus());
+        assertEquals(5000, newest.getLatencyMillis());
+        assertEquals("def", newest.getMessageHash());
+        assertEquals("ops", entries.get(1).getRoom());
+    }
+
+    @Test
+    public void ringKeepsTheLatestRecordsAndPagesAcrossTheWrap() {
+        NotificationHistory history = new NotificationHistory(file, 5);
+        for (int i = 1; i <= 8; i++) {
+            history.record(i * 1000L, "room" + i, "yellow", 200, i, i);
+        }
+        assertEquals(5, history.size());
+        assertEquals(5, history.count(Long.MIN_VALUE, Long.MAX_VALUE));
+        assertRooms(history.query(Long.MIN_VALUE, Long.MAX_VALUE, 0, 3), "room8", "room7", "room6");
+        assertRooms(history.query(Long.MIN_VALUE, Long.MAX_VALUE, 3, 3), "room5", "room4");
+        assertRooms(history.query(Long.MIN_VALUE, Long.MAX_VALUE, 5, 3));
+    }
+
+    @Test
+    public void timeRangeIsInclusive() {
+        NotificationHistory history = new NotificationHistory(file, 10);
+        for (int i = 1; i <= 6; i++) {
+            history.record(i * 1000L, "room" + i, "yellow", 200, i, i);
+        }
+        assertEquals(3, history.count(2000, 4000));
+        assertRooms(history.query(2000, 4000, 0, 10), "room4", "room3", "room2");
+        assertRooms(history.query(2500, 3500, 0, 10), "room3");
+    }
+
+    @Test
+    public void historyIsReloadedFromTheFile() {
+        NotificationHistory history = new NotificationHistory(file, 3);
+        for (int i = 1; i <= 4; i++) {
+            history.record(i * 1000L, "room" + i, "purple", 200, i, i);
+        }
+        NotificationHistory reloaded = new NotificationHistory(file, 3);
+        assertEquals(3, reloaded.size());
+        assertRooms(reloaded.query(3000, Long.MAX_VALUE, 0, 10), "room4", "room3");
+        reloaded.record(500, "late", "gray", 200, 1, 1);
+        assertEquals(4000, reloaded.query(Long.MIN_VALUE, Long.MAX_VALUE, 0, 1).get(0).getTimestamp());
+    }
+
+    @Test
+    public void longRoomNamesAreCutToFit() {
+        NotificationHistory history = new NotificationHistory(file, 2);
+        StringBuilder room = new StringBuilder();
+        for (int i = 0; i < 30; i++) {
+            room.append('\u00e9');
+        }
+        history.record(1000, room.toString(), "unknown", 200, 1, 1);
+        NotificationHistory.Entry entry = history.query(Long.MIN_VALUE, Long.MAX_VALUE, 0, 1).get(0);
+        assertEquals(NotificationHistory.MAX_ROOM_BYTES / 2, entry.getRoom().length());
+        assertEquals(null, entry.getColor());
+    }
+
+    @Test
+    public void forgottenHistoryIsReplacedAndDropsLateRecords() {
+        File jobDir = file.getParentFile();
+        NotificationHistory old = NotificationHistory.forJob(jobDir);
+        try {
+            NotificationHistory.forget(jobDir);
+            old.record(1000, "ops", "red", 200, 1, 1);
+            assertEquals(0, old.size());
+            assertTrue(old != NotificationHistory.forJob(jobDir));
+        }
+        finally {
+            NotificationHistory.forget(jobDir);
+            new File(jobDir, NotificationHistory.FILE_NAME).delete();
+        }
+    }
+
+    private static void assertRooms(List<NotificationHistory.Entry> entries, String... rooms) {
+        assertEquals(rooms.length, entries.size());
+        for (int i = 0; i < rooms.length; i++) {
+            assertEquals(rooms[i], entries.get(i).getRoom());
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package jenkins.plugins.hipchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OutboxTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("outbox", "");
+        dir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void pendingRecordsAreRecoveredAfterReopening() throws IOException {
+        Outbox outbox = new Outbox(dir, Outbox.DEFAULT_SEGMENT_SIZE, 1000);
+        long first = outbox.append(new Outbox.Record("token", "room1", "from", "first", "green"));
+        outbox.append(new Outbox.Record("token", "room2", "from", "second \u2713", "red"));
+        outbox.ack(first);
+        outbox.close();
+
+        Outbox reopened = new Outbox(dir, Outbox.DEFAULT_SEGMENT_SIZE, 1000);
+        List<Outbox.Record> recovered = reopened.getRecovered();
+        assertEquals(1, recovered.size());
+        assertEquals("room2", recovered.get(0).getRoom());
+        assertEquals("second \u2713", recovered.get(0).getMessage());
+        assertEquals("red", recovered.get(0).getColor());
+        reopened.close();
+    }
+
+    @Test
+    public void tokenIsStoredOnlyAsADigest() throws IOException {
+        Outbox outbox = new Outbox(dir, 64 * 1024, 1000);
+        outbox.append(new Outbox.Record("secret-token", "room", "from", "message", "green"));
+        outbox.close();
+        for (File segment : dir.listFiles()) {
+            assertEquals(-1, new String(readFully(segment), "UTF-8").indexOf("secret-token"));
+        }
+        Outbox reopened = new Outbox(dir, 64 * 1024, 1000);
+        Outbox.Record recovered = reopened.getRecovered().get(0);
+        assertNull(recovered.getToken());
+        assertEquals(Outbox.Record.digest("secret-token"), recovered.getTokenDigest());
+        assertFalse(Outbox.Record.digest("secret-token").equals(Outbox.Record.digest("other-token")));
+        reopened.close();
+    }
+
+    @Test
+    public void fullyDeliveredSegmentsAreDeleted() throws IOException {
+        Outbox outbox = new Outbox(dir, 64 * 1024, 1000);
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            message.append('x');
+        }
+        for (int i = 0; i < 200; i++) {
+            outbox.ack(outbox.append(new Outbox.Record("token", "room", "from", message.toString(), "green")));
+        }
+        assertEquals(0, outbox.getPendingCount());
+        assertTrue(dir.listFiles().length <= 1);
+        outbox.close();
+        Outbox reopened = new Outbox(dir, 64 * 1024, 1000);
+        assertTrue(reopened.getRecovered().isEmpty());
+        reopened.close();
+    }
+
+    @Test
+    public void recordsResentTooOftenAreDropped() throws IOException {
+        Outbox outbox = new Outbox(dir, Outbox.DEFAULT_SEGMENT_SIZE, 1000, Outbox.DEFAULT_MAX_AGE_MILLIS, 2);
+        outbox.append(new Outbox.Record("token", "room", "from", "never delivered", "red"));
+        outbox.close();
+        for (int replays = 0; replays < 2; replays++) {
+            outbox = new Outbox(dir, Outbox.DEFAULT_SEGMENT_SIZE, 1000, Outbox.DEFAULT_MAX_AGE_MILLIS, 2);
+            assertEquals(1, outbox.getRecovered().size());
+            assertEquals(replays, outbox.getRecovered().get(0).getReplays());
+            outbox.close();
+        }
+        outbox = new Outbox(dir, Outbox.DEFAULT_SEGMENT_SIZE, 1000, Outbox.DEFAULT_MAX_AGE_MILLIS, 2);
+        assertTrue(outbox.getRecovered().isEmpty());
+        assertEquals(0, outbox.getPendingCount());
+        outbox.close();
+    }
+
+    @Test
+    public void recordsOlderThanTheMaximumAgeAreDropped() throws IOException, InterruptedException {
+        Outbox outbox = new Outbox(dir, Outbox.DEFAULT_SEGMENT_SIZE, 1000);
+        outbox.append(new Outbox.Record("token", "room", "from", "stale", "red"));
+        outbox.close();
+        Thread.sleep(20);
+        outbox = new Outbox(dir, Outbox.DEFAULT_SEGMENT_SIZE, 1000, 10, Outbox.DEFAULT_MAX_REPLAYS);
+        assertTrue(outbox.getRecovered().isEmpty());
+        outbox.close();
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            in.readFully(bytes);
+            return bytes;
+        }
+        finally {
+            in.close();
+        }
+    }
+}
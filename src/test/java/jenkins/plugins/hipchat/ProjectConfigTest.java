@@ -0,0 +1,86 @@
+package jenkins.plugins.hipchat;
+
+import hudson.model.Item;
+import hudson.model.Saveable;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ProjectConfigTest {
+
+    private final ConfigChangeListener saves = new ConfigChangeListener();
+    private final ConfigChangeListener.Items items = new ConfigChangeListener.Items();
+
+    @Before
+    public void setUp() {
+        ProjectConfig.remember("folder/app", config("app"));
+        ProjectConfig.remember("folder/lib", config("lib"));
+        ProjectConfig.remember("other", config("other"));
+    }
+
+    @After
+    public void tearDown() {
+        ProjectConfig.clear();
+    }
+
+    @Test
+    public void firstConfigCachedForAProjectWins() {
+        ProjectConfig cached = ProjectConfig.peek("other");
+        assertSame(cached, ProjectConfig.remember("other", config("other")));
+        assertSame(cached, ProjectConfig.peek("other"));
+    }
+
+    @Test
+    public void deletingAnItemDropsOnlyItsConfig() {
+        items.onDeleted(item("folder/app"));
+        assertNull(ProjectConfig.peek("folder/app"));
+        assertNotNull(ProjectConfig.peek("folder/lib"));
+        assertNotNull(ProjectConfig.peek("other"));
+    }
+
+    @Test
+    public void renamingAnItemDropsEveryConfig() {
+        items.onRenamed(item("folder"), "folder", "apps");
+        assertNull(ProjectConfig.peek("folder/app"));
+        assertNull(ProjectConfig.peek("folder/lib"));
+        assertNull(ProjectConfig.peek("other"));
+    }
+
+    @Test
+    public void savingSomethingElseKeepsTheCache() {
+        saves.onChange((Saveable) proxy(Saveable.class, null), null);
+        assertNotNull(ProjectConfig.peek("folder/app"));
+        assertNotNull(ProjectConfig.peek("other"));
+    }
+
+    private static ProjectConfig config(String name) {
+        return new ProjectConfig(null, null, name, null);
+    }
+
+    private static Item item(String fullName) {
+        return (Item) proxy(Item.class, fullName);
+    }
+
+    /**
+     * A stand-in whose <code>getFullName</code> returns <code>fullName</code>; nothing else is expected to be called.
+     */
+    private static Object proxy(Class<?> type, final String fullName) {
+        return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getFullName")) {
+                    return fullName;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}
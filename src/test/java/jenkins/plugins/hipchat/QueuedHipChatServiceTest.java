@@ -0,0 +1,107 @@
+package jenkins.plugins.hipchat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class QueuedHipChatServiceTest {
+
+    private final DeliveryQueue queue = new DeliveryQueue(10000, 4, OverflowPolicy.BLOCK, 5000);
+    private final Map<String, List<Integer>> seen = new ConcurrentHashMap<String, List<Integer>>();
+    private final Map<String, CountDownLatch> delivered = new ConcurrentHashMap<String, CountDownLatch>();
+    private final CountDownLatch slow = new CountDownLatch(1);
+
+    @After
+    public void tearDown() {
+        queue.drain(5000);
+    }
+
+    @Test
+    public void roomsSharedBetweenServicesKeepTheirOrder() throws Exception {
+        HipChatService both = new QueuedHipChatService(new RecordingService("ops,dev"), queue);
+        HipChatService opsOnly = new QueuedHipChatService(new RecordingService(" ops"), queue);
+        for (int i = 0; i < 1000; i++) {
+            (i % 2 == 0 ? both : opsOnly).publish(Integer.toString(i), "yellow");
+        }
+        queue.drain(10000);
+        assertInOrder(seen.get("ops"), 1000);
+        assertInOrder(seen.get("dev"), 500);
+    }
+
+    @Test
+    public void asyncResultCollectsEveryRoom() throws Exception {
+        HipChatService service = new QueuedHipChatService(new RecordingService("ops,dev,qa"), queue);
+        PublishResult result = service.publishAsync("hello", "green").get();
+        assertEquals(PublishResult.State.COMPLETED, result.getState());
+        assertEquals(3, result.getRooms().size());
+        assertEquals("dev", result.getRooms().get(1).getRoomId());
+    }
+
+    @Test
+    public void slowRoomDoesNotHoldUpTheOthers() throws Exception {
+        String fast = "fast";
+        for (int i = 0; queue.laneIndex(fast) == queue.laneIndex("slow"); i++) {
+            fast = "fast" + i;
+        }
+        HipChatService service = new QueuedHipChatService(new RecordingService("slow," + fast), queue);
+        Future<PublishResult> result = service.publishAsync("hello", "green");
+        assertTrue(latch(fast).await(5, TimeUnit.SECONDS));
+        assertFalse(result.isDone());
+        slow.countDown();
+        assertEquals(PublishResult.State.COMPLETED, result.get(5, TimeUnit.SECONDS).getState());
+    }
+
+    private static void assertInOrder(List<Integer> sequences, int expected) {
+        assertEquals(expected, sequences.size());
+        for (int i = 1; i < sequences.size(); i++) {
+            assertTrue(sequences.get(i - 1) < sequences.get(i));
+        }
+    }
+
+    private synchronized CountDownLatch latch(String room) {
+        if (!delivered.containsKey(room)) {
+            delivered.put(room, new CountDownLatch(1));
+        }
+        return delivered.get(room);
+    }
+
+    private class RecordingService extends StandardHipChatService {
+        RecordingService(String rooms) {
+            super("token", rooms, "Jenkins");
+        }
+
+        @Override
+        public RoomResult publishToRoom(String roomId, String message, String color, DeliveryCallback callback) {
+            String room = roomId.trim();
+            if (!seen.containsKey(room)) {
+                seen.put(room, Collections.synchronizedList(new ArrayList<Integer>()));
+            }
+            if (!message.equals("hello")) {
+                seen.get(room).add(Integer.valueOf(message));
+            }
+            else if (room.equals("slow")) {
+                try {
+                    slow.await(10, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            latch(room).countDown();
+            Thread.yield();
+            return new RoomResult(roomId, 200, 1, null);
+        }
+    }
+}
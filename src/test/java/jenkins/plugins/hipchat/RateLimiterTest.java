@@ -0,0 +1,55 @@
+package jenkins.plugins.hipchat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+
+    @After
+    public void tearDown() {
+        RateLimiter.configure(RateLimiter.DEFAULT_REQUESTS, RateLimiter.DEFAULT_PERIOD_SECONDS, RateLimiter.DEFAULT_MAX_ATTEMPTS);
+    }
+
+    @Test
+    public void waitsAreSpreadByUpToATenthOfTheBackoff() {
+        boolean spread = false;
+        for (int i = 0; i < 100; i++) {
+            long delay = RateLimiter.waitDelayMillis(3000, 4);
+            assertTrue(delay >= 3000);
+            assertTrue(delay <= 3000 + 8000 / 10);
+            spread |= delay != 3000;
+        }
+        assertTrue(spread);
+    }
+
+    @Test
+    public void postsOverTheLimitAreDelayedEvenOnTheirLastAttempt() {
+        RateLimiter.configure(1, 3600, 1);
+        assertEquals(0, RateLimiter.reserve("limited"));
+        StandardHipChatService service = new StandardHipChatService("limited", "ops", "Jenkins");
+        for (int i = 0; i < 10; i++) {
+            RoomResult result = service.publishToRoom("ops", "message " + i, "red", null);
+            assertTrue(result.isRetrying());
+            assertNull(result.getError());
+        }
+    }
+
+    @Test
+    public void eachHeldBackPostGetsItsOwnLaterSlot() {
+        RateLimiter.configure(100, 300, RateLimiter.DEFAULT_MAX_ATTEMPTS);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, RateLimiter.reserve("burst"));
+        }
+        long previous = 0;
+        for (int i = 0; i < 50; i++) {
+            long wait = RateLimiter.reserve("burst");
+            assertTrue(wait > previous);
+            previous = wait;
+        }
+        assertTrue(previous >= 49 * 3000);
+    }
+}
@@ -0,0 +1,54 @@
+package jenkins.plugins.hipchat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RoomMappingTest {
+
+    @Test
+    public void exactKeysWinOverPatterns() {
+        RoomMapping mapping = RoomMapping.parse("qa*.foobar.com=100\nqa1.foobar.com = 23722\n");
+        assertEquals("23722", mapping.resolve("qa1.foobar.com"));
+        assertEquals("100", mapping.resolve("qa2.foobar.com"));
+    }
+
+    @Test
+    public void patternsAreTriedInDeclarationOrder() {
+        RoomMapping mapping = RoomMapping.parse("re:(prod|stage)-(\\d+)\\.example\\.com=ops\n*.example.com=dev\nbuild-?=builds");
+        assertEquals("ops", mapping.resolve("prod-12.example.com"));
+        assertEquals("dev", mapping.resolve("qa.example.com"));
+        assertEquals("builds", mapping.resolve("build-7"));
+        assertEquals("build-77", mapping.resolve("build-77"));
+    }
+
+    @Test
+    public void backreferencesStillReferToTheirOwnPattern() {
+        RoomMapping mapping = RoomMapping.parse("re:(a)(b)x=first\nre:(\\w)-\\1=twice\nre:([0-9]\\Q\\1\\E)(.)\\20=quoted");
+        assertEquals("twice", mapping.resolve("q-q"));
+        assertEquals("q-r", mapping.resolve("q-r"));
+        assertEquals("quoted", mapping.resolve("7\\1zz0"));
+        assertEquals("first", mapping.resolve("abx"));
+    }
+
+    @Test
+    public void renumberingKeepsEscapesAndLiteralDigits() {
+        assertEquals("(\\w)(?:\\4)", RoomMapping.renumber("(\\w)\\1", 3));
+        assertEquals("(?:x)(\\d)(?:\\3)0\\\\1", RoomMapping.renumber("(?:x)(\\d)\\10\\\\1", 2));
+    }
+
+    @Test
+    public void unmappedParametersAreReturnedAsIs() {
+        assertEquals("Dev Team", RoomMapping.parse("a=b").resolve("Dev Team"));
+        assertEquals("1", RoomMapping.parse("x?y=1").resolve("x.y"));
+        assertNull(RoomMapping.EMPTY.resolve(null));
+        assertTrue(RoomMapping.parse("\n\n").isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void linesWithoutEqualsAreRejected() {
+        RoomMapping.parse("qa1.foobar.com");
+    }
+}
@@ -1,19 +1,80 @@
 package jenkins.plugins.hipchat;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 public class StandardHipChatServiceTest {
     private StandardHipChatService service;
+    private FakeHipChatServer server;
 
     @Before
     public void setUp() throws Exception {
         service = new StandardHipChatService("token", "room", "from");
         service.setHost("localhost");
+        server = new FakeHipChatServer();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
     }
 
     @Test
     public void publishShouldNotRethrowExceptions() {
         service.publish("message");
     }
+
+    @Test
+    public void publishPostsToEveryRoom() {
+        PublishResult result = server.newService("secret", "ops,dev").publish("<b>FAILURE</b>", "red");
+        assertTrue(result.isSuccess());
+        List<FakeHipChatServer.Request> delivered = server.getDelivered();
+        assertEquals(2, delivered.size());
+        for(FakeHipChatServer.Request request : delivered) {
+            assertEquals("secret", request.getToken());
+            assertEquals("Jenkins", request.getFrom());
+            assertEquals("<b>FAILURE</b>", request.getMessage());
+            assertEquals("red", request.getColor());
+            assertEquals("1", request.getNotify());
+        }
+        assertEquals("ops", delivered.get(0).getRoom());
+        assertEquals("dev", delivered.get(1).getRoom());
+    }
+
+    @Test
+    public void retriesGoBackThroughTheDeliveryQueue() throws Exception {
+        DeliveryQueue queue = new DeliveryQueue(100, 1, OverflowPolicy.BLOCK, 5000);
+        try {
+            StandardHipChatService throttled = server.newService("secret", "ops");
+            throttled.setRetryQueue(queue);
+            server.setRetryAfterSeconds(0);
+            server.throttleNext(1);
+            final CountDownLatch done = new CountDownLatch(1);
+            final AtomicReference<String> thread = new AtomicReference<String>();
+            final AtomicReference<RoomResult> outcome = new AtomicReference<RoomResult>();
+            RoomResult first = throttled.publishToRoom("ops", "<b>FAILURE</b>", "red", new DeliveryCallback() {
+                public void completed(RoomResult result) {
+                    thread.set(Thread.currentThread().getName());
+                    outcome.set(result);
+                    done.countDown();
+                }
+            });
+            assertTrue(first.isRetrying());
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertTrue(outcome.get().isSuccess());
+            assertTrue(thread.get(), thread.get().startsWith("HipChat delivery"));
+        }
+        finally {
+            queue.drain(5000);
+        }
+    }
 }
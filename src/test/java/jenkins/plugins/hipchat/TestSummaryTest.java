@@ -0,0 +1,49 @@
+package jenkins.plugins.hipchat;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestSummaryTest {
+
+    @Test
+    public void newFailuresAreCountedAgainstThePreviousBuild() {
+        TestSummary previous = TestSummary.of(1, 2, 4310, new String[] { "a.Test.one", "a.Test.two" });
+        TestSummary current = TestSummary.of(2, 12, 4310, new String[] { "a.Test.two", "b.Test.three", "b.Test.four", "b.Test.five" });
+        assertEquals(3, current.countNewFailures(previous));
+        assertEquals("12 failed / 4,310 tests (+3 new failures)", current.describe(previous));
+    }
+
+    @Test
+    public void unknownOrTruncatedHistoryReportsNoNewFailures() {
+        TestSummary current = TestSummary.of(2, 1, 10, new String[] { "a.Test.one" });
+        assertEquals(-1, current.countNewFailures(null));
+        assertEquals("1 failed / 10 tests", current.describe(null));
+        String[] many = new String[TestSummary.MAX_FINGERPRINTS + 1];
+        for (int i = 0; i < many.length; i++) {
+            many[i] = "Test" + i;
+        }
+        assertEquals(-1, current.countNewFailures(TestSummary.of(1, many.length, many.length, many)));
+        assertEquals("all 1,200 tests passed", TestSummary.of(3, 0, 1200, new String[0]).describe(current));
+    }
+
+    @Test
+    public void summarySurvivesSavingAndLoading() throws IOException {
+        File file = File.createTempFile("tests", ".bin");
+        try {
+            TestSummary saved = TestSummary.of(7, 2, 50, new String[] { "a.Test.one", "a.Test.two" });
+            saved.save(file);
+            TestSummary loaded = TestSummary.load(file);
+            assertEquals(7, loaded.getNumber());
+            assertEquals(2, loaded.getFailCount());
+            assertEquals(50, loaded.getTotalCount());
+            assertEquals(0, saved.countNewFailures(loaded));
+        }
+        finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package jenkins.plugins.hipchat;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class TokenBucketTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void tokensRunOutAndRefill() {
+        TokenBucket bucket = new TokenBucket(2, 2, TimeUnit.SECONDS, 0);
+        assertEquals(0, bucket.reserve(0));
+        assertEquals(0, bucket.reserve(0));
+        assertEquals(SECOND, bucket.reserve(0));
+        assertEquals(0, bucket.reserve(3 * SECOND));
+    }
+
+    @Test
+    public void reservationsQueueBehindEachOther() {
+        TokenBucket bucket = new TokenBucket(100, 300, TimeUnit.SECONDS, 0);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, bucket.reserve(0));
+        }
+        for (int i = 1; i <= 20; i++) {
+            assertEquals(i * 3 * SECOND, bucket.reserve(0));
+        }
+        assertEquals(21 * 3 * SECOND - 6 * SECOND, bucket.reserve(6 * SECOND));
+    }
+
+    @Test
+    public void pauseBlocksUntilItEnds() {
+        TokenBucket bucket = new TokenBucket(10, 10, TimeUnit.SECONDS, 0);
+        bucket.pause(5 * SECOND, 0);
+        assertEquals(4 * SECOND, bucket.reserve(2 * SECOND));
+        assertEquals(2 * SECOND, bucket.reserve(5 * SECOND));
+        assertEquals(0, bucket.reserve(8 * SECOND));
+    }
+
+    @Test
+    public void serverRemainingLowersAvailableTokens() {
+        TokenBucket bucket = new TokenBucket(100, 300, TimeUnit.SECONDS, 0);
+        bucket.update(3, 60 * SECOND, 0);
+        assertEquals(3.0, bucket.available(0), 0.001);
+        bucket.update(0, 60 * SECOND, 0);
+        assertEquals(33 * SECOND, bucket.reserve(30 * SECOND));
+    }
+}